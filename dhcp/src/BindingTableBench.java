@@ -0,0 +1,153 @@
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Замер таблиц привязок: память на запись и время поиска для arpTable (IP -> MAC) и ipTable
+ * (IP -> ClientInfo) — прежние ConcurrentHashMap со строковыми ключами против {@link LongLongMap}
+ * и {@link IntObjectMap}. Объекты ClientInfo общие для обоих вариантов и в память таблиц не входят.
+ * <p>
+ * Память считается по занятой куче после System.gc(), поэтому точнее с -XX:+UseSerialGC; ключи
+ * поиска заготовлены заранее, так что время — только сам поиск, без разбора адреса.
+ */
+public class BindingTableBench {
+    private static final int NETWORK = 0x0A000000; // 10.0.0.0
+    private static final long LOCAL_MAC = 0x02_00_00_00_00_00L;
+    private static final int QUERIES = 1 << 20;
+    private static final int ROUNDS = 5;
+
+    private final int entries;
+    private final Router.ClientInfo[] clients;
+    private final int[] queryIps = new int[QUERIES];
+    private final String[] queryStrings = new String[QUERIES];
+    private long sink;
+    private boolean warmUp;
+
+    public BindingTableBench(int entries) {
+        this.entries = entries;
+        this.clients = new Router.ClientInfo[entries];
+        for (int i = 0; i < entries; i++) {
+            clients[i] = new Router.ClientInfo(NETWORK + i + 1, LOCAL_MAC | i, 0);
+        }
+        String[] ipStrings = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            ipStrings[i] = Addr.formatIp(clients[i].ip);
+        }
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < QUERIES; i++) {
+            int host = random.nextInt(entries);
+            queryIps[i] = clients[host].ip;
+            queryStrings[i] = ipStrings[host];
+        }
+    }
+
+    /**
+     * Каждая таблица строится в своём методе: к следующему замеру прежняя уже недостижима. Первый проход
+     * не печатается — в свежей JVM он прогревает JIT, а после первого замера часть таблицы остаётся
+     * достижимой и занижает следующий.
+     */
+    public void run() {
+        System.out.printf("Записей: %d, поисков за проход: %d%n", entries, QUERIES);
+        for (int pass = 0; pass < 2; pass++) {
+            warmUp = pass == 0;
+            stringArpTable();
+            arpTable();
+            stringIpTable();
+            ipTable();
+        }
+        if (sink == 42) System.out.println(); // чтобы JIT не выбросил поиски
+    }
+
+    private void stringArpTable() {
+        Map<String, String> arp = new ConcurrentHashMap<>();
+        long bytes = measure(() -> {
+            for (Router.ClientInfo info : clients) {
+                arp.put(Addr.formatIp(info.ip), Addr.formatMac(info.mac));
+            }
+        });
+        report("arpTable", "ConcurrentHashMap<String,String>", bytes, time(() -> {
+            for (String ip : queryStrings) sink += arp.get(ip).length();
+        }));
+    }
+
+    private void arpTable() {
+        LongLongMap arp = new LongLongMap();
+        long bytes = measure(() -> {
+            for (Router.ClientInfo info : clients) {
+                arp.put(Addr.ipKey(info.ip), info.mac);
+            }
+        });
+        report("arpTable", "LongLongMap", bytes, time(() -> {
+            for (int ip : queryIps) sink += arp.get(Addr.ipKey(ip));
+        }));
+    }
+
+    private void stringIpTable() {
+        Map<String, Router.ClientInfo> ipTable = new ConcurrentHashMap<>();
+        long bytes = measure(() -> {
+            for (Router.ClientInfo info : clients) {
+                ipTable.put(Addr.formatIp(info.ip), info);
+            }
+        });
+        report("ipTable", "ConcurrentHashMap<String,ClientInfo>", bytes, time(() -> {
+            for (String ip : queryStrings) sink += ipTable.get(ip).port;
+        }));
+    }
+
+    private void ipTable() {
+        IntObjectMap<Router.ClientInfo> ipTable = new IntObjectMap<>();
+        long bytes = measure(() -> {
+            for (Router.ClientInfo info : clients) {
+                ipTable.put(info.ip, info);
+            }
+        });
+        report("ipTable", "IntObjectMap<ClientInfo>", bytes, time(() -> {
+            for (int ip : queryIps) sink += ipTable.get(ip).port;
+        }));
+    }
+
+    /** Прирост занятой кучи после fill; заполненная таблица остаётся достижимой у вызывающего. */
+    private static long measure(Runnable fill) {
+        long before = usedHeap();
+        fill.run();
+        return usedHeap() - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Лучший из {@link #ROUNDS} проходов, нс на поиск: первые проходы прогревают JIT. */
+    private static double time(Runnable lookups) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            lookups.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / QUERIES;
+    }
+
+    private void report(String table, String implementation, long bytes, double lookupNs) {
+        if (warmUp) return;
+        System.out.printf("%-9s %-37s %6.1f Б/запись, поиск %6.1f нс%n",
+                table, implementation, (double) bytes / entries, lookupNs);
+    }
+
+    public static void main(String[] args) {
+        int entries = 1_000_000;
+        try {
+            if (args.length > 0) entries = Integer.parseInt(args[0]);
+            if (entries < 1 || entries > 0xFFFFFF) throw new IllegalArgumentException("Некорректное число записей: " + entries);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Использование: java -XX:+UseSerialGC BindingTableBench [<записей, до 16M>]");
+            System.err.println(e.getMessage());
+            return;
+        }
+        new BindingTableBench(entries).run();
+    }
+}
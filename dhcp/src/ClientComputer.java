@@ -1,176 +1,276 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-
-public class ClientComputer {
-    private String ipAddress;
-    private final String macAddress;
-    private final int listenPort;
-    private final String routerHost = "localhost";
-    private final int routerPort;
-    private final int dhcpPort = 6767;
-    private ServerSocket serverSocket;
-
-    public ClientComputer(String routerPortStr, String mac) throws IOException {
-        this.routerPort = Integer.parseInt(routerPortStr);
-        this.macAddress = mac;
-        this.listenPort = 6000 + new Random().nextInt(1000);
-
-        obtainIpFromDhcp();
-        registerWithRouter();
-        startListeningThread();
-    }
-
-    private void obtainIpFromDhcp() throws IOException {
-        try (Socket socket = new Socket("localhost", dhcpPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-            out.println("DISCOVER " + macAddress);
-            String offer = in.readLine();
-
-            if (offer == null) {
-                throw new IOException("Нет ответа от DHCP-сервера.");
-            }
-
-            if (offer.equals("NO_AVAILABLE_IP")) {
-                throw new IOException("DHCP-сервер не имеет доступных IP.");
-            }
-
-            if (!offer.startsWith("OFFER")) {
-                throw new IOException("Некорректный OFFER: " + offer);
-            }
-
-            ipAddress = offer.split(" ")[1];
-            System.out.println("DHCP предложил IP: " + ipAddress);
-
-            out.println("REQUEST " + macAddress + " " + ipAddress);
-            String ack = in.readLine();
-
-            if (ack == null || !ack.startsWith("ACK") || !ack.contains(ipAddress)) {
-                throw new IOException("DHCP не подтвердил IP-адрес. Ответ: " + ack);
-            }
-
-            System.out.println("DHCP подтвердил IP: " + ipAddress);
-        }
-    }
-
-    private void registerWithRouter() throws IOException {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            out.println("REGISTER " + ipAddress + " " + macAddress + " " + listenPort);
-        }
-    }
-
-    private void startListeningThread() {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(listenPort);
-                System.out.println("Клиент слушает на порту " + listenPort);
-
-                while (!serverSocket.isClosed()) {
-                    try (Socket socket = serverSocket.accept();
-                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                        String msg = in.readLine();
-                        handleIncomingMessage(msg);
-                    }
-                }
-            } catch (IOException e) {
-                if (!serverSocket.isClosed()) {
-                    System.err.println("Ошибка слушающего потока: " + e.getMessage());
-                }
-            }
-        }).start();
-    }
-
-    private void handleIncomingMessage(String msg) {
-        if (msg == null) return;
-
-        if (msg.startsWith("PING_FROM")) {
-            String fromIP = msg.split(" ")[1];
-            System.out.println("Получен PING от " + fromIP);
-            sendPongBack(fromIP);
-        } else if (msg.startsWith("PONG_FROM")) {
-            String fromIP = msg.split(" ")[1];
-            System.out.println("Получен PONG от " + fromIP);
-        }
-    }
-
-    private void sendPing(String targetIP) {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            out.println("PING " + ipAddress + " " + targetIP);
-        } catch (IOException e) {
-            System.err.println("Ошибка отправки PING: " + e.getMessage());
-        }
-    }
-
-    private void sendPongBack(String targetIP) {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            out.println("PONG " + ipAddress + " " + targetIP);
-        } catch (IOException e) {
-            System.err.println("Ошибка отправки PONG: " + e.getMessage());
-        }
-    }
-
-    private void disconnect() {
-        try {
-            try (Socket socket = new Socket(routerHost, routerPort);
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                out.println("DISCONNECT " + ipAddress);
-            }
-
-            try (Socket dhcpSocket = new Socket("localhost", dhcpPort);
-                 PrintWriter dhcpOut = new PrintWriter(dhcpSocket.getOutputStream(), true)) {
-                dhcpOut.println("RELEASE " + macAddress);
-            }
-
-            System.out.println("Клиент отключён.");
-
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-
-        } catch (IOException e) {
-            System.err.println("Ошибка при отключении клиента: " + e.getMessage());
-        }
-    }
-
-    public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Использование: java ClientComputer <RouterPort> <MAC>");
-            return;
-        }
-
-        try {
-            ClientComputer client = new ClientComputer(args[0], args[1]);
-            Scanner scanner = new Scanner(System.in);
-
-            while (true) {
-                System.out.print("> ");
-                String input = scanner.nextLine().trim().toLowerCase();
-
-                if (input.equals("exit")) {
-                    client.disconnect();
-                    break;
-                } else if (input.startsWith("ping ")) {
-                    String[] parts = input.split(" ");
-                    if (parts.length == 2) {
-                        client.sendPing(parts[1]);
-                    } else {
-                        System.out.println("Использование: ping <IP>");
-                    }
-                } else {
-                    System.out.println("Неизвестная команда. Используйте 'ping <IP>' или 'exit'.");
-                }
-            }
-
-        } catch (IOException e) {
-            System.err.println("Ошибка инициализации клиента: " + e.getMessage());
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class ClientComputer {
+    private String ipAddress;
+    private final String macAddress;
+    private final int listenPort;
+    private final String routerHost = "localhost";
+    private final int routerPort;
+    private final int[] dhcpPorts;
+    private int dhcpPort;
+    private final File leaseFile;
+    private ServerSocket serverSocket;
+
+    public ClientComputer(String routerPortStr, String mac, int... dhcpPorts) throws IOException {
+        this.routerPort = Integer.parseInt(routerPortStr);
+        this.macAddress = mac;
+        this.dhcpPorts = dhcpPorts.length > 0 ? dhcpPorts : new int[]{6767};
+        this.leaseFile = new File("lease-" + mac.replaceAll("[:-]", "") + ".txt");
+        this.listenPort = 6000 + new Random().nextInt(1000);
+
+        obtainIpFromDhcp();
+        registerWithRouter();
+        startListeningThread();
+    }
+
+    /**
+     * Пара DHCP-серверов делит клиентов по хешу MAC; если «свой» сервер недоступен,
+     * обращаемся к следующему, и тот забирает половину пула партнёра.
+     */
+    private Socket connectToDhcp() throws IOException {
+        long hash = Addr.parseMac(macAddress) * 0x9E3779B97F4A7C15L;
+        int first = (int) Long.remainderUnsigned(hash >>> 32, dhcpPorts.length);
+        IOException lastError = null;
+        for (int i = 0; i < dhcpPorts.length; i++) {
+            int port = dhcpPorts[(first + i) % dhcpPorts.length];
+            try {
+                Socket socket = new Socket("localhost", port);
+                dhcpPort = port;
+                return socket;
+            } catch (IOException e) {
+                System.err.println("DHCP-сервер на порту " + port + " недоступен: " + e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private void obtainIpFromDhcp() throws IOException {
+        try (Socket socket = connectToDhcp();
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+            if (rebootWithCachedLease(out, in)) {
+                return;
+            }
+
+            out.println("DISCOVER " + macAddress);
+            String offer = in.readLine();
+
+            if (offer == null) {
+                throw new IOException("Нет ответа от DHCP-сервера.");
+            }
+
+            if (offer.equals("NO_AVAILABLE_IP")) {
+                throw new IOException("DHCP-сервер не имеет доступных IP.");
+            }
+
+            if (!offer.startsWith("OFFER")) {
+                throw new IOException("Некорректный OFFER: " + offer);
+            }
+
+            ipAddress = offer.split(" ")[1];
+            System.out.println("DHCP предложил IP: " + ipAddress);
+
+            out.println("REQUEST " + macAddress + " " + ipAddress);
+            String ack = in.readLine();
+
+            if (!acknowledges(ack, ipAddress)) {
+                throw new IOException("DHCP не подтвердил IP-адрес. Ответ: " + ack);
+            }
+
+            saveLease(ack);
+            System.out.println("DHCP подтвердил IP: " + ipAddress);
+        }
+    }
+
+    /**
+     * INIT-REBOOT: если в кеше есть непросроченная аренда, сразу запрашиваем её без DISCOVER/OFFER.
+     * При NAK возвращаем false и проходим полный обмен на том же соединении.
+     */
+    private boolean rebootWithCachedLease(PrintWriter out, BufferedReader in) throws IOException {
+        String[] cached = loadLease();
+        if (cached == null) return false;
+
+        String cachedIp = cached[0];
+        out.println("REQUEST " + macAddress + " " + cachedIp);
+        String ack = in.readLine();
+
+        if (acknowledges(ack, cachedIp)) {
+            ipAddress = cachedIp;
+            saveLease(ack);
+            System.out.println("DHCP подтвердил сохранённый IP: " + ipAddress);
+            return true;
+        }
+
+        System.out.println("Сохранённая аренда " + cachedIp + " отклонена (" + ack + "), запрашиваем новый IP.");
+        leaseFile.delete();
+        return false;
+    }
+
+    /** ACK именно этого адреса: "ACK 192.168.0.10 …" не подтверждает 192.168.0.1. */
+    private static boolean acknowledges(String ack, String ip) {
+        if (ack == null) return false;
+        String[] parts = ack.split(" ");
+        return parts.length >= 2 && parts[0].equals("ACK") && parts[1].equals(ip);
+    }
+
+    /** @return {IP, окончание аренды} из кеша или null, если аренды нет или она истекла. */
+    private String[] loadLease() {
+        if (!leaseFile.exists()) return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(leaseFile))) {
+            String[] lease = reader.readLine().split(" ");
+            if (Long.parseLong(lease[1]) > System.currentTimeMillis()) {
+                return lease;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Не удалось прочитать сохранённую аренду: " + e.getMessage());
+        }
+        leaseFile.delete();
+        return null;
+    }
+
+    private void saveLease(String ack) {
+        String[] parts = ack.split(" ");
+        if (parts.length < 3) return; // сервер не сообщил срок аренды — кешировать нечего
+
+        long expiresAt;
+        try {
+            expiresAt = System.currentTimeMillis() + Long.parseLong(parts[2]) * 1000L;
+        } catch (NumberFormatException e) {
+            System.err.println("Некорректный срок аренды в ответе сервера: " + ack);
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(leaseFile))) {
+            writer.println(ipAddress + " " + expiresAt);
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить аренду: " + e.getMessage());
+        }
+    }
+
+    private void registerWithRouter() throws IOException {
+        try (Socket socket = new Socket(routerHost, routerPort);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            out.println("REGISTER " + ipAddress + " " + macAddress + " " + listenPort);
+        }
+    }
+
+    private void startListeningThread() {
+        new Thread(() -> {
+            try {
+                serverSocket = new ServerSocket(listenPort);
+                System.out.println("Клиент слушает на порту " + listenPort);
+
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept();
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        String msg = in.readLine();
+                        handleIncomingMessage(msg);
+                    }
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Ошибка слушающего потока: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    private void handleIncomingMessage(String msg) {
+        if (msg == null) return;
+
+        if (msg.startsWith("PING_FROM")) {
+            String fromIP = msg.split(" ")[1];
+            System.out.println("Получен PING от " + fromIP);
+            sendPongBack(fromIP);
+        } else if (msg.startsWith("PONG_FROM")) {
+            String fromIP = msg.split(" ")[1];
+            System.out.println("Получен PONG от " + fromIP);
+        }
+    }
+
+    private void sendPing(String targetIP) {
+        try (Socket socket = new Socket(routerHost, routerPort);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            out.println("PING " + ipAddress + " " + targetIP);
+        } catch (IOException e) {
+            System.err.println("Ошибка отправки PING: " + e.getMessage());
+        }
+    }
+
+    private void sendPongBack(String targetIP) {
+        try (Socket socket = new Socket(routerHost, routerPort);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            out.println("PONG " + ipAddress + " " + targetIP);
+        } catch (IOException e) {
+            System.err.println("Ошибка отправки PONG: " + e.getMessage());
+        }
+    }
+
+    private void disconnect() {
+        try {
+            try (Socket socket = new Socket(routerHost, routerPort);
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("DISCONNECT " + ipAddress);
+            }
+
+            try (Socket dhcpSocket = new Socket("localhost", dhcpPort);
+                 PrintWriter dhcpOut = new PrintWriter(dhcpSocket.getOutputStream(), true)) {
+                dhcpOut.println("RELEASE " + macAddress);
+            }
+            leaseFile.delete();
+
+            System.out.println("Клиент отключён.");
+
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Ошибка при отключении клиента: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Использование: java ClientComputer <RouterPort> <MAC> [<DHCPPort> ...]");
+            return;
+        }
+
+        try {
+            int[] dhcpPorts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                dhcpPorts[i - 2] = Integer.parseInt(args[i]);
+            }
+            ClientComputer client = new ClientComputer(args[0], args[1], dhcpPorts);
+            Scanner scanner = new Scanner(System.in);
+
+            while (true) {
+                System.out.print("> ");
+                String input = scanner.nextLine().trim().toLowerCase();
+
+                if (input.equals("exit")) {
+                    client.disconnect();
+                    break;
+                } else if (input.startsWith("ping ")) {
+                    String[] parts = input.split(" ");
+                    if (parts.length == 2) {
+                        client.sendPing(parts[1]);
+                    } else {
+                        System.out.println("Использование: ping <IP>");
+                    }
+                } else {
+                    System.out.println("Неизвестная команда. Используйте 'ping <IP>' или 'exit'.");
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Ошибка инициализации клиента: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Неблокирующее соединение, закреплённое за одним {@link EventLoop}.
+ * <p>
+ * Входящие данные разбираются либо как кадры {@link Frames}, либо как строки старого протокола;
+ * формат определяется по первому байту. Исходящие сообщения копятся в ограниченной очереди:
+ * {@link #send} можно вызывать из любого потока, запись в сокет выполняет только поток цикла.
+ * Очередь сбрасывается одной задачей после обработки текущих событий цикла (или сразу, если в ней
+ * набралось {@link #BATCH_BYTES}), до {@link #MAX_GATHER} сообщений за одну gathering-запись.
+ * Если очередь получателя выросла выше {@link #HIGH_WATERMARK}, источник сообщений ставится
+ * на паузу ({@link #pauseUntilDrained}) и возобновляет чтение, когда очередь опустится
+ * ниже {@link #LOW_WATERMARK}.
+ */
+public class Connection implements EventLoop.Handler {
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    public static final int HIGH_WATERMARK = 256 * 1024;
+    public static final int LOW_WATERMARK = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int MAX_GATHER = 128;
+
+    enum Mode { DETECT, FRAMED, LINE }
+
+    public interface Listener {
+        void onMessage(Connection connection, String message);
+
+        void onClose(Connection connection);
+    }
+
+    final SocketChannel channel;
+    final EventLoop loop;
+    private final Listener listener;
+    private SelectionKey key;
+    private volatile Mode mode;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // только в потоке цикла
+    private final List<Connection> pausedSources = new ArrayList<>();
+    private volatile boolean closeAfterFlush;
+    private volatile boolean closed;
+    private volatile Object attachment;
+
+    private Connection(EventLoop loop, SocketChannel channel, Mode mode, Listener listener) {
+        this.loop = loop;
+        this.channel = channel;
+        this.mode = mode;
+        this.listener = listener;
+    }
+
+    /** Принятое сервером соединение; формат определяется по первому байту. */
+    public static Connection accepted(EventLoop loop, SocketChannel channel, Listener listener) {
+        Connection connection = new Connection(loop, channel, Mode.DETECT, listener);
+        loop.execute(() -> connection.register(SelectionKey.OP_READ));
+        return connection;
+    }
+
+    /** Исходящее соединение старого протокола к клиенту, который слушает свой порт. */
+    public static Connection connect(EventLoop loop, int port, Listener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(loop, channel, Mode.LINE, listener);
+        channel.connect(new InetSocketAddress("localhost", port));
+        loop.execute(() -> connection.register(SelectionKey.OP_CONNECT));
+        return connection;
+    }
+
+    private void register(int ops) {
+        try {
+            if (channel.isConnected()) ops = SelectionKey.OP_READ;
+            key = loop.register(channel, ops, this);
+            if (channel.isConnected()) {
+                channel.socket().setTcpNoDelay(true);
+                flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /** Клиент говорит кадрами {@link Frames}; известно после первого прочитанного байта. */
+    public boolean isFramed() {
+        return mode == Mode.FRAMED;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (!channel.finishConnect()) return;
+            channel.socket().setTcpNoDelay(true);
+            key.interestOps(SelectionKey.OP_READ);
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) onReadable();
+        if (key.isValid() && key.isWritable()) flush();
+    }
+
+    private void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        if (mode == Mode.DETECT && readBuffer.hasRemaining()) {
+            mode = readBuffer.get(0) == 0 ? Mode.FRAMED : Mode.LINE;
+        }
+        if (mode == Mode.FRAMED) decodeFrames();
+        else decodeLines();
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            // в буфер не поместилось одно сообщение целиком
+            if (readBuffer.capacity() >= Frames.MAX_FRAME + 4) throw new IOException("Слишком длинное сообщение");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, Frames.MAX_FRAME + 4));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    private void decodeFrames() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > Frames.MAX_FRAME) throw new IOException("Некорректная длина кадра: " + length);
+            if (readBuffer.remaining() < 4 + length) return;
+            readBuffer.getInt();
+            String message = new String(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(),
+                    length, StandardCharsets.UTF_8);
+            readBuffer.position(readBuffer.position() + length);
+            listener.onMessage(this, message);
+            if (closed) return;
+        }
+    }
+
+    private void decodeLines() {
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') continue;
+            int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+            String message = new String(readBuffer.array(), readBuffer.arrayOffset() + start, end - start,
+                    StandardCharsets.UTF_8);
+            start = i + 1;
+            readBuffer.position(start);
+            listener.onMessage(this, message);
+            if (closed) return;
+        }
+    }
+
+    /** Кодирует сообщение в формате этого соединения и ставит в очередь. */
+    public boolean send(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer;
+        if (mode == Mode.FRAMED) {
+            buffer = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+        } else {
+            buffer = ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n');
+        }
+        buffer.flip();
+        return send(buffer);
+    }
+
+    /** @return false, если соединение закрыто или очередь заполнена — сообщение отброшено. */
+    public boolean send(ByteBuffer buffer) {
+        int size = buffer.remaining();
+        if (closed || queuedBytes.get() + size > MAX_QUEUED_BYTES) return false;
+        int queued = queuedBytes.addAndGet(size);
+        outbound.add(buffer);
+        if (queued >= BATCH_BYTES && loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    public boolean isCongested() {
+        return queuedBytes.get() > HIGH_WATERMARK;
+    }
+
+    /** Приостанавливает чтение из {@code source}, пока очередь этого соединения не разгрузится. */
+    public void pauseUntilDrained(Connection source) {
+        if (source == null || source == this) return;
+        synchronized (pausedSources) {
+            if (pausedSources.contains(source)) return;
+            pausedSources.add(source);
+        }
+        source.setReading(false);
+        // очередь могла разгрузиться до того, как источник попал в список
+        if (queuedBytes.get() < LOW_WATERMARK || closed) resumePausedSources();
+    }
+
+    private void resumePausedSources() {
+        List<Connection> sources;
+        synchronized (pausedSources) {
+            if (pausedSources.isEmpty()) return;
+            sources = new ArrayList<>(pausedSources);
+            pausedSources.clear();
+        }
+        for (Connection source : sources) {
+            source.setReading(true);
+        }
+    }
+
+    private void setReading(boolean reading) {
+        loop.execute(() -> {
+            if (key == null || !key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        });
+    }
+
+    /** Закрыть соединение, как только очередь будет записана. */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null || !channel.isConnected()) return;
+        try {
+            while (!outbound.isEmpty()) {
+                int n = 0;
+                for (Iterator<ByteBuffer> it = outbound.iterator(); it.hasNext() && n < MAX_GATHER; ) {
+                    gather[n++] = it.next();
+                }
+                long written = channel.write(gather, 0, n);
+                queuedBytes.addAndGet((int) -written);
+                boolean partial = gather[n - 1].hasRemaining();
+                for (int i = 0; i < n; i++) {
+                    if (!gather[i].hasRemaining()) outbound.poll();
+                    gather[i] = null;
+                }
+                if (partial) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (queuedBytes.get() < LOW_WATERMARK) resumePausedSources();
+        if (closeAfterFlush) close();
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        outbound.clear();
+        queuedBytes.set(0);
+        resumePausedSources();
+        listener.onClose(this);
+    }
+}
@@ -1,119 +1,206 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class DHCPServer {
-    private static final int PORT = 6767;
-    private final Set<String> availableIPs = Collections.newSetFromMap(new ConcurrentHashMap<>());
-    private final Map<String, String> macToIp = new ConcurrentHashMap<>(); // MAC -> IP
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
-
-    public DHCPServer() {
-        for (int i = 1; i <= 100; i++) {
-            availableIPs.add("192.168.0." + i);
-        }
-    }
-
-    public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("DHCP-сервер запущен на порту " + PORT);
-
-        while (true) {
-            Socket socket = serverSocket.accept();
-            executor.submit(() -> handleClient(socket));
-        }
-    }
-
-    private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            String msg;
-            while ((msg = in.readLine()) != null) {
-
-                String[] parts = msg.split(" ");
-                String command = parts[0];
-                String mac = parts.length > 1 ? parts[1] : null;
-                String ip = parts.length > 2 ? parts[2] : null;
-
-                switch (command) {
-                    case "DISCOVER":;
-                        handleDiscover(mac, out);
-                        break;
-                    case "REQUEST":
-                        handleRequest(mac, ip, out);
-                        break;
-                    case "RELEASE":
-                        handleRelease(mac);
-                        break;
-                    default:
-                        out.println("ERROR Unknown command");
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Ошибка обработки клиента: " + e.getMessage());
-        }
-    }
-
-    private void handleDiscover(String mac, PrintWriter out) {
-        System.out.println("Обработка DISCOVER для MAC: " + mac);
-
-        if (mac == null) {
-            out.println("ERROR Missing MAC");
-            return;
-        }
-
-        if (macToIp.containsKey(mac)) {
-            System.out.println("Известный клиент: mac->ip; OFFER же используемого IP");
-            out.println("OFFER " + macToIp.get(mac));
-        } else if (!availableIPs.isEmpty()) {
-            String ip = availableIPs.iterator().next();
-            System.out.println("Отправка OFFER с предложением IP: " + ip);
-            out.println("OFFER " + ip);
-        } else {
-            System.out.println("Нет свободных айпи");
-            out.println("NO_AVAILABLE_IP");
-        }
-    }
-
-    private void handleRequest(String mac, String ip, PrintWriter out) {
-        System.out.println("Обработка REQUEST от MAC: " + mac + " на IP: " + ip);
-
-        if (mac == null || ip == null) {
-            out.println("NAK");
-            return;
-        }
-
-        if (availableIPs.contains(ip)) {
-            macToIp.put(mac, ip);
-            availableIPs.remove(ip);
-            out.println("ACK " + ip);
-            System.out.println("Выдан IP " + ip + " для MAC " + mac);
-        } else if (ip.equals(macToIp.get(mac))) {
-            out.println("ACK " + ip);
-        } else {
-            out.println("NAK");
-        }
-    }
-
-    private void handleRelease(String mac) {
-        System.out.println("Обработка RELEASE для MAC: " + mac);
-
-        if (mac == null) return;
-
-        String ip = macToIp.remove(mac);
-        if (ip != null) {
-            availableIPs.add(ip);
-            System.out.println("IP " + ip + " освобождён от MAC " + mac);
-        }
-    }
-
-    public static void main(String[] args) {
-        try {
-            new DHCPServer().start();
-        } catch (IOException e) {
-            System.err.println("Ошибка запуска DHCP-сервера: " + e.getMessage());
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DHCPServer {
+    private static final int DEFAULT_PORT = 6767;
+    private static final String DEFAULT_SCOPE = "192.168.0.0/24:100";
+    private final Scope[] scopes; // отсортированы по адресу сети
+    private final Map<String, Scope> scopesByClass = new HashMap<>();
+    private final Scope defaultScope;
+    private final int port;
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(Math.max(10, 2 * Runtime.getRuntime().availableProcessors()));
+
+    public DHCPServer(int port, List<Scope> scopeList) {
+        this.port = port;
+        if (scopeList.isEmpty()) throw new IllegalArgumentException("Не задано ни одной области");
+        defaultScope = scopeList.get(0);
+        scopes = scopeList.toArray(new Scope[0]);
+        Arrays.sort(scopes, (a, b) -> Integer.compareUnsigned(a.network, b.network));
+        for (int i = 0; i < scopes.length; i++) {
+            if (i > 0 && scopes[i - 1].contains(scopes[i].network)) {
+                throw new IllegalArgumentException("Области пересекаются: " + scopes[i - 1] + " и " + scopes[i]);
+            }
+            if (scopes[i].clientClass != null) scopesByClass.put(scopes[i].clientClass, scopes[i]);
+        }
+    }
+
+    /** Включает режим пары active/active: половина пула каждой области и синхронизация с партнёром. */
+    public void enableFailover(int role, int syncPort, int partnerSyncPort) throws IOException {
+        new FailoverPeer(role, syncPort, partnerSyncPort, scopes, this::scopeFor).start();
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("DHCP-сервер запущен на порту " + port);
+        for (Scope scope : scopes) {
+            System.out.println("Область: " + scope);
+        }
+
+        while (true) {
+            Socket socket = serverSocket.accept();
+            executor.submit(() -> handleClient(socket));
+        }
+    }
+
+    private void handleClient(Socket socket) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            String msg;
+            while ((msg = in.readLine()) != null) {
+
+                // позиционные аргументы: команда, MAC, IP; опции relay-агента: giaddr=<IP>, class=<имя>
+                List<String> parts = new ArrayList<>(3);
+                String giaddr = null;
+                String clientClass = null;
+                for (String token : msg.split(" ")) {
+                    if (token.startsWith("giaddr=")) giaddr = token.substring(7);
+                    else if (token.startsWith("class=")) clientClass = token.substring(6);
+                    else parts.add(token);
+                }
+                if (parts.isEmpty()) continue;
+                String command = parts.get(0);
+                long mac;
+                int ip;
+                Scope hinted;
+                try {
+                    mac = parts.size() > 1 ? Addr.parseMac(parts.get(1)) : LongLongMap.NO_VALUE;
+                    ip = parts.size() > 2 ? Addr.parseIp(parts.get(2)) : 0;
+                    hinted = giaddr != null ? scopeFor(Addr.parseIp(giaddr)) : scopesByClass.get(clientClass);
+                } catch (IllegalArgumentException e) {
+                    out.println("ERROR " + e.getMessage());
+                    continue;
+                }
+                // подсказка есть, но области под неё нет: адрес из чужой подсети хуже отказа
+                if (hinted == null && (giaddr != null || clientClass != null) && !command.equals("RENEW")) {
+                    System.err.println("Нет области для " + (giaddr != null ? "giaddr=" + giaddr : "класса " + clientClass)
+                            + ", " + command + " отклонён.");
+                    if (!command.equals("RELEASE")) out.println("NAK");
+                    continue;
+                }
+
+                switch (command) {
+                    case "DISCOVER":
+                        handleDiscover(mac, hinted != null ? hinted : defaultScope, out);
+                        break;
+                    case "REQUEST":
+                        handleRequest(mac, ip, giaddr != null ? hinted : null, out);
+                        break;
+                    case "RENEW":
+                        handleRenew(mac, ip, out);
+                        break;
+                    case "RELEASE":
+                        handleRelease(mac, hinted);
+                        break;
+                    default:
+                        out.println("ERROR Unknown command");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка обработки клиента: " + e.getMessage());
+        }
+    }
+
+    /** @return область, подсеть которой содержит {@code ip}, или null. */
+    private Scope scopeFor(int ip) {
+        int lo = 0, hi = scopes.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(scopes[mid].network, ip) <= 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return hi >= 0 && scopes[hi].contains(ip) ? scopes[hi] : null;
+    }
+
+    private void handleDiscover(long mac, Scope scope, PrintWriter out) {
+        if (mac == LongLongMap.NO_VALUE) {
+            out.println("ERROR Missing MAC");
+            return;
+        }
+
+        System.out.println("Обработка DISCOVER для MAC: " + Addr.formatMac(mac) + " в области " + scope);
+
+        long ip = scope.offer(mac);
+        if (ip != Scope.NO_IP) {
+            System.out.println("Отправка OFFER с предложением IP: " + Addr.formatIp((int) ip));
+            out.println("OFFER " + Addr.formatIp((int) ip));
+        } else {
+            System.out.println("Нет свободных айпи");
+            out.println("NO_AVAILABLE_IP");
+        }
+    }
+
+    private void handleRequest(long mac, int ip, Scope relayScope, PrintWriter out) {
+        if (mac == LongLongMap.NO_VALUE || ip == 0) {
+            out.println("NAK");
+            return;
+        }
+
+        String ipStr = Addr.formatIp(ip);
+        System.out.println("Обработка REQUEST от MAC: " + Addr.formatMac(mac) + " на IP: " + ipStr);
+
+        // запрошенный адрес сам определяет область; relay из другой подсети получает NAK
+        Scope scope = scopeFor(ip);
+        if (scope != null && (relayScope == null || relayScope == scope) && scope.request(mac, ip)) {
+            out.println("ACK " + ipStr + " " + Scope.LEASE_SECONDS);
+            System.out.println("Выдан IP " + ipStr + " для MAC " + Addr.formatMac(mac));
+        } else {
+            out.println("NAK");
+        }
+    }
+
+    private void handleRenew(long mac, int ip, PrintWriter out) {
+        Scope scope = scopeFor(ip);
+        if (mac != LongLongMap.NO_VALUE && scope != null && scope.renew(mac, ip)) {
+            out.println("ACK " + Addr.formatIp(ip) + " " + Scope.LEASE_SECONDS);
+        } else {
+            out.println("NAK");
+        }
+    }
+
+    private void handleRelease(long mac, Scope hinted) {
+        if (mac == LongLongMap.NO_VALUE) return;
+
+        System.out.println("Обработка RELEASE для MAC: " + Addr.formatMac(mac));
+
+        for (Scope scope : hinted != null ? new Scope[]{hinted} : scopes) {
+            long ip = scope.release(mac);
+            if (ip != Scope.NO_IP) {
+                System.out.println("IP " + Addr.formatIp((int) ip) + " освобождён от MAC " + Addr.formatMac(mac));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            int port = DEFAULT_PORT;
+            int[] failover = null;
+            List<Scope> scopes = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--failover")) {
+                    failover = new int[]{Integer.parseInt(args[++i]), Integer.parseInt(args[++i]), Integer.parseInt(args[++i])};
+                } else {
+                    scopes.add(Scope.parse(args[i]));
+                }
+            }
+            if (scopes.isEmpty()) scopes.add(Scope.parse(DEFAULT_SCOPE));
+
+            DHCPServer server = new DHCPServer(port, scopes);
+            if (failover != null) {
+                server.enableFailover(failover[0], failover[1], failover[2]);
+            }
+            server.start();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Использование: java DHCPServer [--port <порт>] [--failover <роль 0|1> <порт синхронизации> <порт партнёра>]"
+                    + " [<сеть>/<префикс>[:<размер пула>][@<класс>] ...]");
+            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Ошибка запуска DHCP-сервера: " + e.getMessage());
+        }
+    }
+}
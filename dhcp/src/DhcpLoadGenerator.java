@@ -0,0 +1,206 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Нагрузочный генератор «загрузки парка»: N виртуальных клиентов в одной JVM проходят
+ * DISCOVER/OFFER/REQUEST/ACK, затем RENEW и RELEASE.
+ * <p>
+ * Время получения адреса отсчитывается от запланированного момента старта клиента, а не от
+ * фактического, поэтому очередь в самом генераторе не прячет задержки сервера.
+ */
+public class DhcpLoadGenerator {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final int clients;
+    private final int[] ports;
+    private final String pattern;
+    private final double rate;
+    private final int renews;
+    private final boolean release;
+    private final String hint;
+
+    private final long[] timeToLease;
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger naks = new AtomicInteger();
+    private final AtomicInteger renewed = new AtomicInteger();
+
+    public DhcpLoadGenerator(int clients, int[] ports, String pattern, double rate, int renews, boolean release, String hint) {
+        if (!(rate > 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Некорректная частота прихода: " + rate);
+        }
+        if (pattern.equals("burst") && rate < 1) {
+            throw new IllegalArgumentException("Для шаблона burst частота должна быть не меньше 1 клиента/с: " + rate);
+        }
+        this.clients = clients;
+        this.ports = ports;
+        this.pattern = pattern;
+        this.rate = rate;
+        this.renews = renews;
+        this.release = release;
+        this.hint = hint;
+        this.timeToLease = new long[clients];
+        startOffset(0); // проверка шаблона до запуска потоков
+    }
+
+    /** Смещение старта i-го клиента от начала прогона, нс. */
+    private long startOffset(int i) {
+        return switch (pattern) {
+            case "herd" -> 0;
+            case "trickle" -> (long) (i * 1e9 / rate);
+            // пачки по rate клиентов раз в секунду
+            case "burst" -> (i / (long) rate) * 1_000_000_000L;
+            default -> throw new IllegalArgumentException("Неизвестный шаблон прихода: " + pattern);
+        };
+    }
+
+    public void run(int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        long begin = System.nanoTime();
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < clients) {
+                    long scheduled = begin + startOffset(i);
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    runClient(i, scheduled);
+                }
+            }));
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        // исключение в потоке иначе теряется, и прогон заканчивается пустым отчётом
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                System.err.println("Поток генератора завершился с ошибкой: " + e.getCause());
+            }
+        }
+        report(System.nanoTime() - begin);
+    }
+
+    private void runClient(int index, long scheduled) {
+        String mac = String.format("02:00:%02X:%02X:%02X:%02X",
+                (index >>> 24) & 0xFF, (index >>> 16) & 0xFF, (index >>> 8) & 0xFF, index & 0xFF);
+        String suffix = hint != null ? " " + hint : "";
+        int port = ports[(int) Long.remainderUnsigned((Addr.parseMac(mac) * 0x9E3779B97F4A7C15L) >>> 32, ports.length)];
+
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.setTcpNoDelay(true);
+
+            String ip = null;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && ip == null; attempt++) {
+                out.println("DISCOVER " + mac + suffix);
+                String offer = in.readLine();
+                if (offer == null || !offer.startsWith("OFFER")) break;
+
+                String offered = offer.split(" ")[1];
+                requests.incrementAndGet();
+                out.println("REQUEST " + mac + " " + offered + suffix);
+                String ack = in.readLine();
+                if (ack != null && ack.startsWith("ACK")) {
+                    ip = offered;
+                } else {
+                    naks.incrementAndGet();
+                }
+            }
+
+            if (ip == null) {
+                failed.incrementAndGet();
+                return;
+            }
+            timeToLease[index] = System.nanoTime() - scheduled;
+            leased.incrementAndGet();
+
+            for (int r = 0; r < renews; r++) {
+                requests.incrementAndGet();
+                out.println("RENEW " + mac + " " + ip);
+                String ack = in.readLine();
+                if (ack != null && ack.startsWith("ACK")) renewed.incrementAndGet();
+                else naks.incrementAndGet();
+            }
+
+            if (release) {
+                out.println("RELEASE " + mac + suffix);
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        long[] latencies = new long[leased.get()];
+        int n = 0;
+        for (long l : timeToLease) {
+            if (l > 0 && n < latencies.length) latencies[n++] = l;
+        }
+        Arrays.sort(latencies, 0, n);
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Клиентов: %d, шаблон: %s, длительность: %.2f с%n", clients, pattern, seconds);
+        System.out.printf("Аренд: %d (%.0f в секунду), отказов: %d, продлений: %d%n",
+                leased.get(), leased.get() / seconds, failed.get(), renewed.get());
+        System.out.printf("NAK: %d из %d REQUEST/RENEW (%.2f%%)%n",
+                naks.get(), requests.get(), requests.get() == 0 ? 0.0 : 100.0 * naks.get() / requests.get());
+        if (n > 0) {
+            System.out.printf("Время получения адреса, мс: p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+                    percentile(latencies, n, 0.50), percentile(latencies, n, 0.99),
+                    percentile(latencies, n, 0.999), latencies[n - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, int n, double q) {
+        return sorted[Math.min(n - 1, (int) Math.ceil(q * n) - 1)] / 1e6;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        DhcpLoadGenerator generator;
+        int clients = 10_000;
+        int threads = 200;
+        List<Integer> ports = new ArrayList<>();
+        String pattern = "herd";
+        double rate = 1000;
+        int renews = 0;
+        boolean release = true;
+        String hint = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--clients" -> clients = Integer.parseInt(args[++i]);
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--port" -> ports.add(Integer.parseInt(args[++i]));
+                    case "--pattern" -> pattern = args[++i];
+                    case "--rate" -> rate = Double.parseDouble(args[++i]);
+                    case "--renew" -> renews = Integer.parseInt(args[++i]);
+                    case "--no-release" -> release = false;
+                    case "--hint" -> hint = args[++i];
+                    default -> throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+                }
+            }
+            if (ports.isEmpty()) ports.add(6767);
+            if (clients < 1 || threads < 1) throw new IllegalArgumentException("Число клиентов и потоков должно быть положительным");
+            generator = new DhcpLoadGenerator(clients, ports.stream().mapToInt(Integer::intValue).toArray(),
+                    pattern, rate, renews, release, hint);
+        } catch (RuntimeException e) {
+            System.out.println("Использование: java DhcpLoadGenerator [--clients N] [--threads T] [--port P ...]"
+                    + " [--pattern herd|trickle|burst] [--rate клиентов/с] [--renew K] [--no-release]"
+                    + " [--hint giaddr=<IP>|class=<имя>]");
+            System.err.println(e.getMessage());
+            return;
+        }
+        generator.run(threads);
+    }
+}
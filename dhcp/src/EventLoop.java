@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Поток с собственным {@link Selector}: обслуживает закреплённые за ним каналы и выполняет задачи,
+ * переданные из других потоков. Всё состояние канала меняется только в потоке его цикла.
+ */
+public class EventLoop implements Runnable {
+    private static final long SELECT_TIMEOUT_MS = 100;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        /** Вызывается при ошибке обработки или остановке цикла. */
+        void close();
+    }
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public static EventLoop[] startGroup(String prefix, int size) throws IOException {
+        EventLoop[] loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop(prefix + "-" + i);
+            loops[i].thread.start();
+        }
+        return loops;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Ставит задачу в очередь цикла; выполняется после обработки текущих событий. */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /** Только из потока цикла. */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                System.err.println("Ошибка селектора: " + e.getMessage());
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) handler.ready(key);
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка обработчика в цикле " + thread.getName() + ": " + e);
+                    handler.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка задачи в цикле " + thread.getName() + ": " + e);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+
+/**
+ * Связь с партнёром в паре active/active. Каждый сервер раздаёт свою половину пула каждой области,
+ * а изменения аренд асинхронно и пачками отправляет партнёру по отдельному TCP-соединению:
+ * <pre>
+ * BIND &lt;MAC&gt; &lt;IP&gt; &lt;окончание аренды, мс&gt;
+ * UNBIND &lt;MAC&gt; &lt;IP&gt;
+ * HEARTBEAT
+ * </pre>
+ * При (пере)подключении сначала передаётся полный список аренд. Если партнёр молчит дольше
+ * {@link #PARTNER_TIMEOUT_MS}, сервер начинает раздавать и его половину пула.
+ */
+public class FailoverPeer implements Scope.LeaseListener {
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_INTERVAL_MS = 50;
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
+    private static final long PARTNER_TIMEOUT_MS = 3000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final int role;
+    private final int listenPort;
+    private final int partnerPort;
+    private final Scope[] scopes;
+    private final IntFunction<Scope> scopeLookup;
+    private final BlockingQueue<String> updates = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean connected;
+    private volatile boolean partnerDown;
+    private volatile long lastHeard = System.currentTimeMillis();
+
+    public FailoverPeer(int role, int listenPort, int partnerPort, Scope[] scopes, IntFunction<Scope> scopeLookup) {
+        if (role != 0 && role != 1) throw new IllegalArgumentException("Роль в паре должна быть 0 или 1");
+        this.role = role;
+        this.listenPort = listenPort;
+        this.partnerPort = partnerPort;
+        this.scopes = scopes;
+        this.scopeLookup = scopeLookup;
+    }
+
+    public void start() throws IOException {
+        for (Scope scope : scopes) {
+            scope.split(role, this);
+        }
+        ServerSocket serverSocket = new ServerSocket(listenPort);
+        System.out.println("Failover: роль " + role + ", синхронизация на порту " + listenPort
+                + ", партнёр на порту " + partnerPort);
+
+        new Thread(() -> acceptLoop(serverSocket), "failover-receiver").start();
+        new Thread(this::sendLoop, "failover-sender").start();
+        monitor.scheduleAtFixedRate(this::checkPartner, PARTNER_TIMEOUT_MS, HEARTBEAT_INTERVAL_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void bound(long mac, int ip, long expiresAt) {
+        if (connected) updates.offer("BIND " + Addr.formatMac(mac) + " " + Addr.formatIp(ip) + " " + expiresAt);
+    }
+
+    @Override
+    public void released(long mac, int ip) {
+        if (connected) updates.offer("UNBIND " + Addr.formatMac(mac) + " " + Addr.formatIp(ip));
+    }
+
+    private void sendLoop() {
+        while (true) {
+            try (Socket socket = new Socket("localhost", partnerPort);
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
+
+                // всё, что копилось до подключения, перекрывается полной выгрузкой
+                updates.clear();
+                connected = true;
+                System.out.println("Failover: соединение с партнёром установлено, отправка полного состояния");
+                for (String line : snapshot()) {
+                    out.write(line);
+                    out.newLine();
+                }
+                out.write("HEARTBEAT");
+                out.newLine();
+                out.flush();
+
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                long lastHeartbeat = System.currentTimeMillis();
+                while (true) {
+                    String first = updates.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        updates.drainTo(batch, BATCH_SIZE - 1);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastHeartbeat >= HEARTBEAT_INTERVAL_MS) {
+                        batch.add("HEARTBEAT");
+                        lastHeartbeat = now;
+                    }
+                    if (batch.isEmpty()) continue;
+                    for (String line : batch) {
+                        out.write(line);
+                        out.newLine();
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    System.err.println("Failover: соединение с партнёром потеряно: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        Scope.LeaseListener collector = new Scope.LeaseListener() {
+            @Override
+            public void bound(long mac, int ip, long expiresAt) {
+                lines.add("BIND " + Addr.formatMac(mac) + " " + Addr.formatIp(ip) + " " + expiresAt);
+            }
+
+            @Override
+            public void released(long mac, int ip) {
+            }
+        };
+        for (Scope scope : scopes) {
+            scope.forEachLease(collector);
+        }
+        return lines;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                new Thread(() -> receive(socket), "failover-peer").start();
+            } catch (IOException e) {
+                System.err.println("Failover: ошибка приёма соединения: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                heard();
+                String[] parts = line.split(" ");
+                try {
+                    switch (parts[0]) {
+                        case "BIND" -> {
+                            int ip = Addr.parseIp(parts[2]);
+                            Scope scope = scopeLookup.apply(ip);
+                            if (scope != null) {
+                                scope.applyPeerBinding(Addr.parseMac(parts[1]), ip, Long.parseLong(parts[3]));
+                            }
+                        }
+                        case "UNBIND" -> {
+                            int ip = Addr.parseIp(parts[2]);
+                            Scope scope = scopeLookup.apply(ip);
+                            if (scope != null) scope.applyPeerRelease(Addr.parseMac(parts[1]), ip);
+                        }
+                        case "HEARTBEAT" -> {
+                        }
+                        default -> System.err.println("Failover: неизвестное сообщение: " + line);
+                    }
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    System.err.println("Failover: некорректное сообщение: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failover: ошибка чтения от партнёра: " + e.getMessage());
+        }
+    }
+
+    private void heard() {
+        lastHeard = System.currentTimeMillis();
+        if (partnerDown) {
+            partnerDown = false;
+            for (Scope scope : scopes) {
+                scope.setTakeover(false);
+            }
+            System.out.println("Failover: партнёр снова доступен, раздаём только свою половину пула");
+        }
+    }
+
+    private void checkPartner() {
+        if (!partnerDown && System.currentTimeMillis() - lastHeard > PARTNER_TIMEOUT_MS) {
+            partnerDown = true;
+            for (Scope scope : scopes) {
+                scope.setTakeover(true);
+            }
+            System.out.println("Failover: партнёр не отвечает, берём на себя его половину пула");
+        }
+    }
+}
@@ -0,0 +1,37 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кадры постоянного соединения клиент–роутер: [длина, int32 big-endian][сообщение, UTF-8].
+ * Первый байт кадра всегда 0 (длина меньше 16 МБ), поэтому роутер отличает такое соединение
+ * от старого текстового протокола «одна строка на соединение» по первому байту.
+ */
+public final class Frames {
+    public static final int MAX_FRAME = 64 * 1024;
+
+    private Frames() {
+    }
+
+    public static void write(DataOutputStream out, String msg) throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /** @return сообщение или null, если соединение закрыто. */
+    public static String read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Некорректная длина кадра: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,176 +1,352 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class Router {
-    private final int listenPort;
-    private final Map<String, ClientInfo> ipTable = new ConcurrentHashMap<>();
-    private final Map<String, String> arpTable = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-
-    public Router(int port) {
-        this.listenPort = port;
-    }
-
-    public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(listenPort);
-        System.out.println("Router запущен на порту " + listenPort);
-
-        new Thread(() -> {
-            Scanner scanner = new Scanner(System.in);
-            while (true) {
-                String command = scanner.nextLine();
-                if ("STOP".equalsIgnoreCase(command.trim())) {
-                    System.out.println("Остановка роутера по команде STOP...");
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Ошибка при закрытии сокета: " + e.getMessage());
-                    }
-                    break;
-                }
-            }
-        }).start();
-
-        try {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.submit(() -> handleClient(clientSocket));
-            }
-        } catch (IOException e) {
-            System.out.println("Сервер остановлен.");
-        } finally {
-            shutdown();
-        }
-    }
-
-    private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            String message = in.readLine();
-            if (message != null) {
-                if (message.startsWith("REGISTER")) {
-                    handleRegister(message);
-                } else if (message.startsWith("DISCONNECT")) {
-                    handleDisconnect(message);
-                } else if (message.startsWith("PING")) {
-                    //System.out.println("Текущая таблица IP: " + ipTable.keySet());
-                    handlePing(message);
-                } else if (message.startsWith("PONG")) {
-                    handlePong(message);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Ошибка клиента: " + e.getMessage());
-        }
-    }
-
-    private void handleRegister(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        String mac = parts[2];
-        int port = Integer.parseInt(parts[3]);
-
-        ClientInfo existing = ipTable.get(ip);
-        if (existing != null && !existing.mac.equals(mac)) {
-            System.err.println("Конфликт IP-адреса: " + ip + " уже зарегистрирован другим MAC.");
-        }
-
-        if (arpTable.containsValue(mac) && !ip.equals(getIpByMac(mac))) {
-            System.err.println("Конфликт MAC-адреса: " + mac + " уже используется другим IP.");
-        }
-
-        ClientInfo info = new ClientInfo(ip, mac, port);
-        ipTable.put(ip, info);
-        arpTable.put(ip, mac);
-
-        System.out.println("Зарегистрирован: IP=" + ip + " MAC=" + mac + " Port=" + port);
-    }
-
-    private String getIpByMac(String mac) {
-        for (Map.Entry<String, String> entry : arpTable.entrySet()) {
-            if (entry.getValue().equals(mac)) {
-                return entry.getKey();
-            }
-        }
-        return null;
-    }
-
-    private void handleDisconnect(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        ClientInfo removed = ipTable.remove(ip);
-        if (removed != null) {
-            arpTable.remove(ip);
-            System.out.println("Отключён: IP=" + ip);
-        }
-    }
-
-    private void handlePing(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String toIP = parts[2];
-
-        ClientInfo from = ipTable.get(fromIP);
-        ClientInfo to = ipTable.get(toIP);
-
-        if (from == null || to == null) {
-            System.err.println("Один из узлов не найден в таблице IP.");
-            return;
-        }
-
-        threadPool.submit(() -> sendMessage(to.port, "PING_FROM " + fromIP));
-    }
-
-    private void handlePong(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String toIP = parts[2];
-
-        ClientInfo from = ipTable.get(fromIP);
-        ClientInfo to = ipTable.get(toIP);
-
-        if (from == null || to == null) {
-            System.err.println("Один из узлов не найден в таблице IP.");
-            return;
-        }
-
-        threadPool.submit(() -> sendMessage(to.port, "PONG_FROM " + fromIP));
-    }
-
-    private void sendMessage(int port, String msg) {
-        try (Socket socket = new Socket("localhost", port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(msg);
-        } catch (IOException e) {
-            System.err.println("Ошибка отправки на порт " + port + ": " + e.getMessage());
-        }
-    }
-
-    private void shutdown() {
-        threadPool.shutdown();
-
-        System.out.println("Роутер корректно завершил работу.");
-    }
-
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.out.println("Использование: java Router <Port>");
-            return;
-        }
-        new Router(Integer.parseInt(args[0])).start();
-    }
-
-    static class ClientInfo {
-        String ip, mac;
-        int port;
-
-        ClientInfo(String ip, String mac, int port) {
-            this.ip = ip;
-            this.mac = mac;
-            this.port = port;
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Router implements Connection.Listener {
+    private final int listenPort;
+    private final IntObjectMap<ClientInfo> ipTable = new IntObjectMap<>();
+    private final LongLongMap arpTable = new LongLongMap(); // IP -> MAC
+    private final LongLongMap macTable = new LongLongMap(); // MAC -> IP, обратный индекс arpTable
+    private final EventLoop[] loops;
+    private int nextLoop;
+    private volatile TableLog state; // null, если таблицы не сохраняются на диск
+    private final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Как часто таблицы пишутся на диск целиком; изменения между снимками идут в журнал. */
+    private static final long SNAPSHOT_INTERVAL_MS = 30_000;
+    private static final long LOG_FLUSH_MS = 200;
+    /** Через сколько после запуска узлы из снимка, не зарегистрировавшиеся заново, проверяются пробным подключением. */
+    private static final long RESTORE_GRACE_MS = 5_000;
+    private static final int PROBE_TIMEOUT_MS = 500;
+    // записи журнала таблиц: ключ — IP, значение — MAC << 16 | порт
+    private static final int STATE_HOST = 1;
+    private static final int STATE_HOST_REMOVED = 2;
+
+    public Router(int port) throws IOException {
+        this.listenPort = port;
+        this.loops = EventLoop.startGroup("router", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Загружает таблицы, сохранённые прошлым запуском, и дальше сохраняет их в файлы с префиксом base.
+     * Сообщения восстановленным узлам уходят сразу; те, кто не зарегистрировался заново
+     * за {@link #RESTORE_GRACE_MS}, проверяются в фоне пробным подключением. Вызывать до {@link #start}.
+     */
+    public void persist(Path base) throws IOException {
+        TableLog log = new TableLog(base);
+        long records;
+        synchronized (ipTable) {
+            records = log.load((type, key, value) -> {
+                int ip = (int) key;
+                ClientInfo old = ipTable.remove(ip);
+                if (old != null) {
+                    arpTable.remove(Addr.ipKey(ip));
+                    macTable.remove(old.mac);
+                }
+                if (type != STATE_HOST) return;
+                ClientInfo info = new ClientInfo(ip, value >>> 16, (int) (value & 0xFFFF));
+                info.restored = true;
+                ipTable.put(ip, info);
+                arpTable.put(Addr.ipKey(ip), info.mac);
+                macTable.put(info.mac, Addr.ipKey(ip));
+            });
+            state = log;
+        }
+        snapshots.scheduleWithFixedDelay(this::flushState, LOG_FLUSH_MS, LOG_FLUSH_MS, TimeUnit.MILLISECONDS);
+        snapshots.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        snapshots.schedule(this::verifyRestored, RESTORE_GRACE_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Таблицы сохраняются в " + base + ": восстановлено узлов " + ipTable.size()
+                + " (записей прочитано " + records + ")");
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort));
+        System.out.println("Router запущен на порту " + listenPort + ", циклов событий: " + loops.length);
+
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(server, SelectionKey.OP_ACCEPT, new Acceptor(server));
+            } catch (IOException e) {
+                System.err.println("Не удалось начать приём соединений: " + e.getMessage());
+            }
+        });
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            if ("STOP".equalsIgnoreCase(scanner.nextLine().trim())) {
+                System.out.println("Остановка роутера по команде STOP...");
+                break;
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("Ошибка при закрытии сокета: " + e.getMessage());
+        }
+        System.out.println("Сервер остановлен.");
+        shutdown();
+    }
+
+    /** Принимает соединения и раздаёт их циклам по кругу. */
+    private class Acceptor implements EventLoop.Handler {
+        private final ServerSocketChannel server;
+
+        Acceptor(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                Connection.accepted(loop, channel, Router.this);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Connection connection, String message) {
+        try {
+            if (message.startsWith("REGISTER")) {
+                handleRegister(message);
+            } else if (message.startsWith("DISCONNECT")) {
+                handleDisconnect(message);
+            } else if (message.startsWith("PING")) {
+                handlePing(message, connection);
+            } else if (message.startsWith("PONG")) {
+                handlePong(message, connection);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Некорректное сообщение: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+    }
+
+    private void handleRegister(String msg) {
+        String[] parts = msg.split(" ");
+        int ip = Addr.parseIp(parts[1]);
+        long mac = Addr.parseMac(parts[2]);
+        int port = Integer.parseInt(parts[3]);
+
+        synchronized (ipTable) {
+            // новая регистрация вытесняет старые привязки, чтобы индексы оставались взаимно однозначными
+            ClientInfo existing = ipTable.get(ip);
+            if (existing != null && existing.mac != mac) {
+                System.err.println("Конфликт IP-адреса: " + parts[1] + " уже зарегистрирован другим MAC.");
+                macTable.remove(existing.mac);
+            }
+
+            long macIp = macTable.get(mac);
+            if (macIp != LongLongMap.NO_VALUE && macIp != Addr.ipKey(ip)) {
+                System.err.println("Конфликт MAC-адреса: " + parts[2] + " уже используется другим IP.");
+                ipTable.remove((int) macIp);
+                arpTable.remove(macIp);
+                record(STATE_HOST_REMOVED, macIp, 0);
+            }
+
+            ClientInfo info = new ClientInfo(ip, mac, port);
+            ipTable.put(ip, info);
+            arpTable.put(Addr.ipKey(ip), mac);
+            macTable.put(mac, Addr.ipKey(ip));
+            if (existing == null || existing.mac != mac || existing.port != port) record(STATE_HOST, ip, mac << 16 | port);
+        }
+
+        System.out.println("Зарегистрирован: IP=" + Addr.formatIp(ip) + " MAC=" + Addr.formatMac(mac) + " Port=" + port);
+    }
+
+    private void handleDisconnect(String msg) {
+        String[] parts = msg.split(" ");
+        int ip = Addr.parseIp(parts[1]);
+        ClientInfo removed;
+        synchronized (ipTable) {
+            removed = ipTable.remove(ip);
+            if (removed != null) {
+                arpTable.remove(Addr.ipKey(ip));
+                macTable.remove(removed.mac);
+                record(STATE_HOST_REMOVED, ip, 0);
+            }
+        }
+        if (removed != null) {
+            System.out.println("Отключён: IP=" + parts[1]);
+        }
+    }
+
+    /** Только под монитором ipTable: порядок записей в журнале совпадает с порядком изменений. */
+    private void record(int type, long key, long value) {
+        TableLog log = state;
+        if (log == null) return;
+        try {
+            log.append(type, key, value);
+        } catch (IOException e) {
+            System.err.println("Не удалось записать журнал таблиц: " + e.getMessage());
+        }
+    }
+
+    private void flushState() {
+        try {
+            state.flush();
+        } catch (IOException e) {
+            System.err.println("Не удалось записать журнал таблиц: " + e.getMessage());
+        }
+    }
+
+    /** Снимок собирается под монитором ipTable вместе со сменой поколения журнала, пишется на диск уже без него. */
+    private void snapshot() {
+        try {
+            long gen;
+            ByteBuffer records;
+            synchronized (ipTable) {
+                gen = state.rotate();
+                records = ByteBuffer.allocate(ipTable.size() * TableLog.RECORD_BYTES);
+                ipTable.forEach((ip, info) -> TableLog.put(records, STATE_HOST, ip, info.mac << 16 | info.port));
+            }
+            state.writeSnapshot(gen, List.of(records.flip()));
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить снимок таблиц: " + e.getMessage());
+        }
+    }
+
+    /** Узлы из снимка, так и не зарегистрировавшиеся заново: кто не принимает подключение на своём порту, удаляется. */
+    private void verifyRestored() {
+        List<ClientInfo> restored = new ArrayList<>();
+        synchronized (ipTable) {
+            ipTable.forEach((ip, info) -> {
+                if (info.restored) restored.add(info);
+            });
+        }
+        for (ClientInfo info : restored) {
+            if (isListening(info.port)) continue;
+            synchronized (ipTable) {
+                if (ipTable.get(info.ip) != info) continue; // успел зарегистрироваться заново
+                ipTable.remove(info.ip);
+                arpTable.remove(Addr.ipKey(info.ip));
+                macTable.remove(info.mac);
+                record(STATE_HOST_REMOVED, info.ip, 0);
+            }
+            System.err.println("Узел " + Addr.formatIp(info.ip) + " не принимает соединения на порту " + info.port
+                    + " после перезапуска роутера, удалён.");
+        }
+    }
+
+    private static boolean isListening(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private ClientInfo lookup(int ip) {
+        synchronized (ipTable) {
+            return ipTable.get(ip);
+        }
+    }
+
+    private void handlePing(String msg, Connection source) {
+        String[] parts = msg.split(" ");
+        String fromIP = parts[1];
+
+        ClientInfo from = lookup(Addr.parseIp(fromIP));
+        ClientInfo to = lookup(Addr.parseIp(parts[2]));
+
+        if (from == null || to == null) {
+            System.err.println("Один из узлов не найден в таблице IP.");
+            return;
+        }
+
+        sendMessage(to.port, "PING_FROM " + fromIP, source);
+    }
+
+    private void handlePong(String msg, Connection source) {
+        String[] parts = msg.split(" ");
+        String fromIP = parts[1];
+
+        ClientInfo from = lookup(Addr.parseIp(fromIP));
+        ClientInfo to = lookup(Addr.parseIp(parts[2]));
+
+        if (from == null || to == null) {
+            System.err.println("Один из узлов не найден в таблице IP.");
+            return;
+        }
+
+        sendMessage(to.port, "PONG_FROM " + fromIP, source);
+    }
+
+    /** Клиент слушает свой порт: отдельное неблокирующее соединение на сообщение, в цикле источника. */
+    private void sendMessage(int port, String msg, Connection source) {
+        try {
+            Connection conn = Connection.connect(source.loop, port, this);
+            if (!conn.send(msg)) {
+                System.err.println("Очередь на порт " + port + " переполнена, сообщение отброшено.");
+            }
+            conn.closeAfterFlush();
+        } catch (IOException e) {
+            System.err.println("Ошибка отправки на порт " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void shutdown() {
+        if (state != null) {
+            snapshots.shutdownNow();
+            try {
+                snapshots.awaitTermination(1, TimeUnit.SECONDS);
+                snapshot();
+                state.close();
+            } catch (IOException e) {
+                System.err.println("Не удалось закрыть журнал таблиц: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+
+        System.out.println("Роутер корректно завершил работу.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && !(args.length == 3 && args[1].equals("--state"))) {
+            System.out.println("Использование: java Router <Port> [--state <префикс файлов таблиц>]");
+            return;
+        }
+        Router router = new Router(Integer.parseInt(args[0]));
+        if (args.length == 3) router.persist(Path.of(args[2]));
+        router.start();
+    }
+
+    static class ClientInfo {
+        int ip;
+        long mac;
+        int port;
+        boolean restored; // из снимка прошлого запуска, узел ещё не регистрировался заново
+
+        ClientInfo(int ip, long mac, int port) {
+            this.ip = ip;
+            this.mac = mac;
+            this.port = port;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.BitSet;
+
+/**
+ * Одна DHCP-область (подсеть): собственный пул адресов, таблица аренд и монитор.
+ * Области не делят между собой никакого состояния, поэтому запросы к разным подсетям
+ * не конкурируют за блокировки.
+ */
+public class Scope {
+    public static final long NO_IP = LongLongMap.NO_VALUE;
+    public static final int LEASE_SECONDS = 3600;
+
+    final String clientClass;
+    final int network;
+    final int prefixLength;
+    final int poolStart;
+    final int poolSize;
+    private final BitSet available; // смещения свободных IP от poolStart
+    private final LongLongMap macToIp = new LongLongMap(); // MAC -> IP
+    private final LongLongMap ipToMac = new LongLongMap(); // IP -> MAC, у адреса не больше одного владельца
+    private final LongLongMap expiry = new LongLongMap(); // MAC -> окончание аренды, мс
+    private int ownFrom, ownTo; // [ownFrom, ownTo) — часть пула, которую сервер раздаёт сам
+    private volatile boolean takeover;
+    private LeaseListener listener;
+
+    public Scope(int network, int prefixLength, int poolSize, String clientClass) {
+        int hosts = prefixLength >= 31 ? 0 : (1 << (32 - prefixLength)) - 2;
+        if (prefixLength < 8 || poolSize <= 0 || poolSize > hosts) {
+            throw new IllegalArgumentException("Некорректный размер пула " + poolSize + " для /" + prefixLength);
+        }
+        this.network = network & mask(prefixLength);
+        this.prefixLength = prefixLength;
+        this.poolStart = this.network + 1;
+        this.poolSize = poolSize;
+        this.clientClass = clientClass;
+        this.available = new BitSet(poolSize);
+        available.set(0, poolSize);
+        this.ownFrom = 0;
+        this.ownTo = poolSize;
+    }
+
+    /** Формат: {@code <сеть>/<префикс>[:<размер пула>][@<класс клиента>]}, например {@code 10.1.0.0/16:5000@voip}. */
+    public static Scope parse(String spec) {
+        String clientClass = null;
+        int at = spec.indexOf('@');
+        if (at >= 0) {
+            clientClass = spec.substring(at + 1);
+            spec = spec.substring(0, at);
+        }
+        int poolSize = -1;
+        int colon = spec.indexOf(':');
+        if (colon >= 0) {
+            poolSize = Integer.parseInt(spec.substring(colon + 1));
+            spec = spec.substring(0, colon);
+        }
+        int slash = spec.indexOf('/');
+        if (slash < 0) throw new IllegalArgumentException("Ожидалась сеть в формате CIDR: " + spec);
+        int prefix = Integer.parseInt(spec.substring(slash + 1));
+        if (poolSize < 0) poolSize = prefix >= 31 ? 0 : (1 << (32 - prefix)) - 2;
+        return new Scope(Addr.parseIp(spec.substring(0, slash)), prefix, poolSize, clientClass);
+    }
+
+    static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    public boolean contains(int ip) {
+        return (ip & mask(prefixLength)) == network;
+    }
+
+    private int offset(int ip) {
+        int offset = ip - poolStart;
+        return offset >= 0 && offset < poolSize ? offset : -1;
+    }
+
+    /** Режим отказоустойчивой пары: роль 0 раздаёт первую половину пула, роль 1 — вторую. */
+    public synchronized void split(int role, LeaseListener listener) {
+        int half = poolSize / 2;
+        this.ownFrom = role == 0 ? 0 : half;
+        this.ownTo = role == 0 ? half : poolSize;
+        this.listener = listener;
+    }
+
+    /** Пока партнёр недоступен, сервер раздаёт и его половину пула. */
+    public void setTakeover(boolean takeover) {
+        this.takeover = takeover;
+    }
+
+    private boolean owns(int offset) {
+        return takeover || (offset >= ownFrom && offset < ownTo);
+    }
+
+    private int nextFree() {
+        int free = available.nextSetBit(takeover ? 0 : ownFrom);
+        return free >= 0 && owns(free) ? free : -1;
+    }
+
+    /** @return уже выданный этому MAC адрес, иначе первый свободный, иначе {@link #NO_IP}. */
+    public synchronized long offer(long mac) {
+        long bound = macToIp.get(mac);
+        if (bound != NO_IP) return bound;
+        int free = nextFree();
+        if (free < 0 && reclaimExpired(System.currentTimeMillis()) > 0) {
+            free = nextFree();
+        }
+        return free < 0 ? NO_IP : Addr.ipKey(poolStart + free);
+    }
+
+    /** Просроченные аренды возвращаются в пул лениво — только когда свободных адресов не осталось. */
+    private int reclaimExpired(long now) {
+        LongLongMap expired = new LongLongMap();
+        expiry.forEach((mac, until) -> {
+            if (until < now) expired.put(mac, until);
+        });
+        expired.forEach((mac, until) -> release(mac));
+        return expired.size();
+    }
+
+    /**
+     * Выдаёт или продлевает аренду {@code ip} клиенту. Прежняя аренда этого MAC в области
+     * возвращается в пул. Свободный адрес из половины партнёра выдаётся только в режиме takeover.
+     */
+    public synchronized boolean request(long mac, int ip) {
+        long ipKey = Addr.ipKey(ip);
+        if (macToIp.get(mac) != ipKey) {
+            int offset = offset(ip);
+            if (offset < 0 || !available.get(offset) || !owns(offset)) return false;
+        }
+        long until = System.currentTimeMillis() + LEASE_SECONDS * 1000L;
+        bind(mac, ip, until);
+        if (listener != null) listener.bound(mac, ip, until);
+        return true;
+    }
+
+    /** Продление: только для адреса, который уже закреплён за этим MAC. */
+    public synchronized boolean renew(long mac, int ip) {
+        if (macToIp.get(mac) != Addr.ipKey(ip)) return false;
+        long until = System.currentTimeMillis() + LEASE_SECONDS * 1000L;
+        expiry.put(mac, until);
+        if (listener != null) listener.bound(mac, ip, until);
+        return true;
+    }
+
+    private void bind(long mac, int ip, long until) {
+        int offset = offset(ip);
+        long ipKey = Addr.ipKey(ip);
+        long previous = macToIp.put(mac, ipKey);
+        ipToMac.put(ipKey, mac);
+        available.clear(offset);
+        if (previous != NO_IP && previous != ipKey) {
+            ipToMac.remove(previous);
+            available.set(offset((int) previous));
+        }
+        expiry.put(mac, until);
+    }
+
+    private long unbind(long mac) {
+        long ip = macToIp.remove(mac);
+        if (ip != NO_IP) {
+            ipToMac.remove(ip);
+            available.set(offset((int) ip));
+            expiry.remove(mac);
+        }
+        return ip;
+    }
+
+    /** @return освобождённый адрес или {@link #NO_IP}. */
+    public synchronized long release(long mac) {
+        long ip = unbind(mac);
+        if (ip != NO_IP && listener != null) listener.released(mac, (int) ip);
+        return ip;
+    }
+
+    /**
+     * Применяет аренду, выданную партнёром; обратно партнёру не рассылается. Если за время разрыва
+     * этот же адрес выдан здесь другому MAC, остаётся более поздняя аренда (при равенстве — большего
+     * MAC), так что оба сервера приходят к одному владельцу: проигравшая локальная аренда снимается
+     * и партнёру уходит UNBIND, выигравшая — повторно отправляется партнёру.
+     */
+    public synchronized void applyPeerBinding(long mac, int ip, long until) {
+        if (offset(ip) < 0) return;
+        long holder = ipToMac.get(Addr.ipKey(ip));
+        if (holder != LongLongMap.NO_VALUE && holder != mac) {
+            long localUntil = expiry.get(holder);
+            if (localUntil > until || (localUntil == until && holder > mac)) {
+                System.err.println("Конфликт аренд " + Addr.formatIp(ip) + ": партнёр выдал адрес " + Addr.formatMac(mac)
+                        + ", остаётся аренда " + Addr.formatMac(holder));
+                if (listener != null) listener.bound(holder, ip, localUntil);
+                return;
+            }
+            System.err.println("Конфликт аренд " + Addr.formatIp(ip) + ": аренда " + Addr.formatMac(holder)
+                    + " снята, адрес остаётся за " + Addr.formatMac(mac));
+            unbind(holder);
+            if (listener != null) listener.released(holder, ip);
+        }
+        bind(mac, ip, until);
+    }
+
+    /** Снимает аренду, только если MAC всё ещё держит именно этот адрес. */
+    public synchronized void applyPeerRelease(long mac, int ip) {
+        if (macToIp.get(mac) == Addr.ipKey(ip)) unbind(mac);
+    }
+
+    public synchronized void forEachLease(LeaseListener visitor) {
+        macToIp.forEach((mac, ip) -> visitor.bound(mac, (int) ip, expiry.get(mac)));
+    }
+
+    public synchronized int leaseCount() {
+        return macToIp.size();
+    }
+
+    public interface LeaseListener {
+        void bound(long mac, int ip, long expiresAt);
+
+        void released(long mac, int ip);
+    }
+
+    @Override
+    public String toString() {
+        return Addr.formatIp(network) + "/" + prefixLength + " (пул " + poolSize
+                + (clientClass != null ? ", класс " + clientClass : "") + ")";
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Таблицы роутера на диске: компактный снимок {@code <база>.snap} и журнал изменений после него
+ * {@code <база>.log.<поколение>}. И там и там записи по {@link #RECORD_BYTES} байт: тип, ключ, значение —
+ * что они значат, решает владелец. Журнал дописывается на каждое изменение; снимок пишется целиком
+ * во временный файл и атомарно подменяет старый, а журнал при этом начинает новое поколение, так что
+ * при загрузке поверх снимка проигрываются только записи его поколения и более поздних.
+ * При запуске файлы читаются через mmap, без копирования в кучу.
+ */
+final class TableLog implements Closeable {
+    static final int RECORD_BYTES = 1 + 8 + 8;
+    private static final int MAGIC = 0x52544C31; // "RTL1"
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 8; // magic, поколение, число записей, CRC32 записей
+    private static final int LOG_BUFFER_BYTES = 64 * 1024;
+
+    /** Получатель записей при загрузке, в порядке их появления. */
+    interface Replay {
+        void apply(int type, long key, long value);
+    }
+
+    private final Path snapshotFile;
+    private final Path directory;
+    private final String logPrefix;
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+    private FileChannel log;
+    private long generation;
+
+    TableLog(Path base) {
+        Path absolute = base.toAbsolutePath();
+        this.directory = absolute.getParent();
+        this.snapshotFile = absolute.resolveSibling(absolute.getFileName() + ".snap");
+        this.logPrefix = absolute.getFileName() + ".log.";
+    }
+
+    /**
+     * Проигрывает снимок и журналы его поколения и более поздних, затем открывает журнал нового
+     * поколения для записи. Повреждённый снимок пропускается, оборванная последняя запись журнала — тоже.
+     *
+     * @return число проигранных записей
+     */
+    synchronized long load(Replay replay) throws IOException {
+        Files.createDirectories(directory);
+        long records = 0;
+        long from = 0;
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (isValidSnapshot(map)) {
+                    from = map.getLong(4);
+                    records += replay(map.position(HEADER_BYTES), replay);
+                } else {
+                    System.err.println("Снимок " + snapshotFile + " повреждён и пропущен.");
+                }
+            }
+        }
+        long last = from;
+        for (long gen : logGenerations()) {
+            last = Math.max(last, gen);
+            if (gen < from) continue;
+            try (FileChannel channel = FileChannel.open(logFile(gen), StandardOpenOption.READ)) {
+                records += replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), replay);
+            }
+        }
+        openLog(last + 1);
+        return records;
+    }
+
+    private static boolean isValidSnapshot(ByteBuffer map) {
+        if (map.limit() < HEADER_BYTES || map.getInt(0) != MAGIC) return false;
+        int count = map.getInt(12);
+        if (count < 0 || map.limit() != HEADER_BYTES + (long) count * RECORD_BYTES) return false;
+        CRC32 crc = new CRC32();
+        crc.update(map.duplicate().position(HEADER_BYTES));
+        return crc.getValue() == map.getLong(16);
+    }
+
+    private static long replay(ByteBuffer records, Replay replay) {
+        long n = 0;
+        while (records.remaining() >= RECORD_BYTES) {
+            replay.apply(records.get(), records.getLong(), records.getLong());
+            n++;
+        }
+        return n;
+    }
+
+    /** Из любого потока; на диск запись попадает при {@link #flush} или когда наберётся буфер. */
+    synchronized void append(int type, long key, long value) throws IOException {
+        if (log == null) return; // закрыт
+        if (logBuffer.remaining() < RECORD_BYTES) writeBuffer();
+        put(logBuffer, type, key, value);
+    }
+
+    synchronized void flush() throws IOException {
+        if (log != null) writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        logBuffer.flip();
+        while (logBuffer.hasRemaining()) {
+            log.write(logBuffer);
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Закрывает текущий журнал и начинает следующее поколение. Снимок, собранный после этого вызова,
+     * передаётся в {@link #writeSnapshot} с возвращённым поколением.
+     */
+    synchronized long rotate() throws IOException {
+        if (log == null) throw new IOException("журнал таблиц закрыт");
+        writeBuffer();
+        log.close();
+        openLog(generation + 1);
+        return generation;
+    }
+
+    /**
+     * Пишет снимок и удаляет журналы, которые он покрывает. Снимки пишет один поток.
+     *
+     * @param parts записи подряд, по {@link #RECORD_BYTES} байт, каждая часть от position до limit
+     */
+    void writeSnapshot(long gen, List<ByteBuffer> parts) throws IOException {
+        CRC32 crc = new CRC32();
+        long bytes = 0;
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+            crc.update(part.duplicate());
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC).putLong(gen).putInt((int) (bytes / RECORD_BYTES)).putLong(crc.getValue()).flip();
+        ByteBuffer[] all = new ByteBuffer[parts.size() + 1];
+        all[0] = header;
+        for (int i = 0; i < parts.size(); i++) {
+            all[i + 1] = parts.get(i).duplicate();
+        }
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long left = HEADER_BYTES + bytes;
+            while (left > 0) {
+                left -= channel.write(all);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long old : logGenerations()) {
+            if (old < gen) Files.deleteIfExists(logFile(old));
+        }
+    }
+
+    static void put(ByteBuffer records, int type, long key, long value) {
+        records.put((byte) type).putLong(key).putLong(value);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log == null) return;
+        writeBuffer();
+        log.close();
+        log = null;
+    }
+
+    private void openLog(long gen) throws IOException {
+        generation = gen;
+        log = FileChannel.open(logFile(gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path logFile(long gen) {
+        return directory.resolve(logPrefix + gen);
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, logPrefix + "*")) {
+            for (Path file : files) {
+                try {
+                    gens.add(Long.parseLong(file.getFileName().toString().substring(logPrefix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        gens.sort(null);
+        return gens;
+    }
+}
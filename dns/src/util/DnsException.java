@@ -1,8 +1,8 @@
-package util;
-
-public class DnsException extends RuntimeException {
-
-    public DnsException(String message) {
-        super(message);
-    }
+package util;
+
+public class DnsException extends RuntimeException {
+
+    public DnsException(String message) {
+        super(message);
+    }
 }
\ No newline at end of file
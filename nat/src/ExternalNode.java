@@ -1,67 +1,93 @@
-import java.io.*;
-import java.net.*;
-
-public class ExternalNode {
-    private final String ipAddress = "198.51.100.10";
-    private final int listenPort = 7000;
-    private final String routerHost = "localhost";
-    private final int routerPort;
-
-    public ExternalNode(String routerPortStr) throws IOException {
-        this.routerPort = Integer.parseInt(routerPortStr);
-        startListeningThread();
-    }
-
-    private void startListeningThread() {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(listenPort)) {
-                System.out.println("External node listening on port " + listenPort + " with IP " + ipAddress);
-
-                while (true) {
-                    try (Socket socket = serverSocket.accept();
-                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                        String msg = in.readLine();
-                        handleMessage(msg);
-                    }
-                }
-
-            } catch (IOException e) {
-                System.err.println("External node listening stopped: " + e.getMessage());
-            }
-        }).start();
-    }
-
-    private void handleMessage(String msg) {
-        if (msg == null) return;
-
-        if (msg.startsWith("PING_FROM")) {
-            String fromIpPort = msg.split(" ")[1];
-            System.out.println("External node received PING from " + fromIpPort);
-            sendPongBack(fromIpPort);
-        } else {
-            System.out.println("External node received unknown message: " + msg);
-        }
-    }
-
-    private void sendPongBack(String targetIpPort) {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("PONG " + ipAddress + " " + targetIpPort);
-        } catch (IOException e) {
-            System.err.println("External node failed to send PONG to " + targetIpPort + ": " + e.getMessage());
-        }
-    }
-
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java ExternalNode <RouterPort>");
-            return;
-        }
-
-        try {
-            new ExternalNode(args[0]);
-        } catch (IOException e) {
-            System.err.println("External node initialization error: " + e.getMessage());
-        }
-    }
+import java.io.*;
+import java.net.*;
+import java.util.Scanner;
+
+public class ExternalNode {
+    private final String ipAddress;
+    private final int listenPort;
+    private final String routerHost = "localhost";
+    private final int routerPort;
+
+    public ExternalNode(String routerPortStr, String ip, int listenPort) throws IOException {
+        this.routerPort = Integer.parseInt(routerPortStr);
+        this.ipAddress = ip;
+        this.listenPort = listenPort;
+        startListeningThread();
+    }
+
+    private void startListeningThread() {
+        new Thread(() -> {
+            try (ServerSocket serverSocket = new ServerSocket(listenPort)) {
+                System.out.println("External node listening on port " + listenPort + " with IP " + ipAddress);
+
+                while (true) {
+                    try (Socket socket = serverSocket.accept();
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        String msg = in.readLine();
+                        handleMessage(msg);
+                    }
+                }
+
+            } catch (IOException e) {
+                System.err.println("External node listening stopped: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    private void handleMessage(String msg) {
+        if (msg == null) return;
+
+        if (msg.startsWith("PING_FROM")) {
+            String fromIpPort = msg.split(" ")[1];
+            System.out.println("External node received PING from " + fromIpPort);
+            sendPongBack(fromIpPort);
+        } else if (msg.startsWith("PONG_FROM")) {
+            System.out.println("External node received PONG from " + msg.split(" ")[1]);
+        } else {
+            System.out.println("External node received unknown message: " + msg);
+        }
+    }
+
+    /** A PING to a public address of the router; it reaches a private host through a forwarded port. */
+    private void sendPing(String targetIpPort) {
+        try (Socket socket = new Socket(routerHost, routerPort);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println("PING " + ipAddress + " " + targetIpPort);
+        } catch (IOException e) {
+            System.err.println("External node failed to send PING to " + targetIpPort + ": " + e.getMessage());
+        }
+    }
+
+    private void sendPongBack(String targetIpPort) {
+        try (Socket socket = new Socket(routerHost, routerPort);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println("PONG " + ipAddress + " " + targetIpPort);
+        } catch (IOException e) {
+            System.err.println("External node failed to send PONG to " + targetIpPort + ": " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("Usage: java ExternalNode <RouterPort> [<IP> <ListenPort>]");
+            System.out.println("The router must know the node: --external <IP>:<ListenPort>, 198.51.100.10:7000 by default.");
+            return;
+        }
+
+        try {
+            ExternalNode node = args.length == 3 ? new ExternalNode(args[0], args[1], Integer.parseInt(args[2]))
+                    : new ExternalNode(args[0], "198.51.100.10", 7000);
+            Scanner scanner = new Scanner(System.in);
+            while (scanner.hasNextLine()) {
+                String[] parts = scanner.nextLine().trim().split(" ");
+                if (parts.length == 2 && parts[0].equalsIgnoreCase("ping")) {
+                    node.sendPing(parts[1]);
+                } else if (!parts[0].isEmpty()) {
+                    System.out.println("Usage: ping <public IP>:<port>");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("External node initialization error: " + e.getMessage());
+        }
+    }
 }
\ No newline at end of file
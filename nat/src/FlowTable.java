@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * Connection tracking table: one entry per flow, found by its original 5-tuple (as the private host
+ * sent it) and by the reply 5-tuple (as it comes back to the public endpoint). A tuple is two longs:
+ * protocol << 48 | source port << 32 | source IP and destination port << 32 | destination IP.
+ * <p>
+ * Everything is preallocated for maxFlows, so memory stays fixed however many flows come and go:
+ * flow fields live in parallel arrays indexed by flow id, and an open-addressing index (load factor
+ * at most 1/2) maps both tuples of a flow to its id. The four tuple halves of a flow sit next to each
+ * other, so checking an index entry reads one cache line. Expired flows are found by a sweep over
+ * flow ids instead of a timer per flow, so a million flows cost no allocation.
+ * Not thread-safe; the owner of the table is responsible for synchronization.
+ */
+public class FlowTable {
+    public static final byte NEW = 1; // seen one way only
+    public static final byte ESTABLISHED = 2; // a reply came back
+    public static final byte CLOSING = 3; // mapping released, late packets are dropped until the flow expires
+    private static final byte FREE = 0;
+    private static final int EMPTY = -1;
+
+    private final long[] tuples; // per flow: original source, destination, reply source, destination
+    private final long[] deadline; // ms; the flow expires at this time
+    private final byte[] state;
+    private final int[] nextFree;
+    private int freeHead;
+    private int size;
+    private int hand; // next flow id the sweep looks at
+
+    private final int[] index; // flow id << 1 | 1 for the reply tuple, EMPTY for a free slot
+    private final int mask;
+
+    public FlowTable(int maxFlows) {
+        if (maxFlows < 1 || maxFlows > 1 << 26) throw new IllegalArgumentException("Invalid flow limit: " + maxFlows);
+        tuples = new long[maxFlows * 4];
+        deadline = new long[maxFlows];
+        state = new byte[maxFlows];
+        nextFree = new int[maxFlows];
+        for (int i = 0; i < maxFlows; i++) {
+            nextFree[i] = i + 1;
+        }
+        nextFree[maxFlows - 1] = EMPTY;
+        int capacity = Integer.highestOneBit(maxFlows * 4 - 1) << 1;
+        index = new int[capacity];
+        Arrays.fill(index, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /** The source half of a tuple. */
+    public static long endpoint(int protocol, int ip, int port) {
+        return (long) protocol << 48 | (long) port << 32 | Addr.ipKey(ip);
+    }
+
+    private static int hash(long src, long dst) {
+        long h = (src * 0x9E3779B97F4A7C15L) ^ (dst * 0xC2B2AE3D27D4EB4FL);
+        return (int) (h ^ (h >>> 29));
+    }
+
+    // an index entry times two is the offset of its tuple in tuples
+    private int hashOf(int entry) {
+        return hash(tuples[entry * 2], tuples[entry * 2 + 1]);
+    }
+
+    private boolean matches(int entry, long src, long dst) {
+        return tuples[entry * 2] == src && tuples[entry * 2 + 1] == dst;
+    }
+
+    /** @return flow id << 1, | 1 if the tuple is the flow's reply tuple; -1 if there is no such flow */
+    public int find(long src, long dst) {
+        int i = hash(src, dst) & mask;
+        int entry;
+        while ((entry = index[i]) != EMPTY) {
+            if (matches(entry, src, dst)) return entry;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a flow in state {@link #NEW}; its tuples must not be in the table yet.
+     *
+     * @return the flow id or -1 when the table is full
+     */
+    public int add(long origSrc, long origDst, long replySrc, long replyDst, long deadline) {
+        int id = freeHead;
+        if (id == EMPTY) return -1;
+        freeHead = nextFree[id];
+        tuples[id * 4] = origSrc;
+        tuples[id * 4 + 1] = origDst;
+        tuples[id * 4 + 2] = replySrc;
+        tuples[id * 4 + 3] = replyDst;
+        this.deadline[id] = deadline;
+        state[id] = NEW;
+        insert(id << 1, hash(origSrc, origDst));
+        insert(id << 1 | 1, hash(replySrc, replyDst));
+        size++;
+        return id;
+    }
+
+    private void insert(int entry, int hash) {
+        int i = hash & mask;
+        while (index[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        index[i] = entry;
+    }
+
+    public void remove(int id) {
+        if (state[id] == FREE) return;
+        delete(id << 1);
+        delete(id << 1 | 1);
+        state[id] = FREE;
+        nextFree[id] = freeHead;
+        freeHead = id;
+        size--;
+    }
+
+    private void delete(int entry) {
+        int i = hashOf(entry) & mask;
+        while (index[i] != entry) {
+            i = (i + 1) & mask;
+        }
+        // backward shift: later entries of the cluster move into the freed slot
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (index[j] != EMPTY) {
+            int home = hashOf(index[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                index[hole] = index[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        index[hole] = EMPTY;
+    }
+
+    public byte state(int id) {
+        return state[id];
+    }
+
+    /** Moves the flow to a state and sets when it expires. */
+    public void update(int id, byte newState, long newDeadline) {
+        state[id] = newState;
+        deadline[id] = newDeadline;
+    }
+
+    public long origSrc(int id) {
+        return tuples[id * 4];
+    }
+
+    public long origDst(int id) {
+        return tuples[id * 4 + 1];
+    }
+
+    public long replySrc(int id) {
+        return tuples[id * 4 + 2];
+    }
+
+    public long replyDst(int id) {
+        return tuples[id * 4 + 3];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks at the next count flow ids, round the table, and removes the flows that expired by now.
+     *
+     * @return the number of flows removed
+     */
+    public int sweep(long now, int count) {
+        int removed = 0;
+        for (int n = Math.min(count, state.length); n > 0; n--) {
+            int id = hand;
+            hand = hand + 1 == state.length ? 0 : hand + 1;
+            if (state[id] != FREE && deadline[id] <= now) {
+                remove(id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Port-forwarding lookup benchmark: {@link PortForwarding#lookup} against a walk over the rule list,
+ * which is what a router without compiled rules does for every packet. A quarter of the rules are
+ * two-port ranges, the rest single ports, spread over 8 public IPs; a quarter of the lookups miss.
+ */
+public class ForwardingBench {
+    private static final int PUBLIC_IPS = 8;
+    private static final int QUERIES = 1 << 16;
+    private static final int LOOKUPS = 1 << 21;
+    private static final int SCANS = 20_000;
+    private static final int ROUNDS = 20;
+    private static final int SCAN_ROUNDS = 3; // the scan is slow enough to need no long warm-up
+
+    private final int rules;
+    private final List<String> specs = new ArrayList<>();
+    private final long[] ruleStart;
+    private final long[] ruleEnd;
+    private final long[] queries = new long[QUERIES];
+    private long sink;
+
+    public ForwardingBench(int rules) {
+        this.rules = rules;
+        this.ruleStart = new long[rules];
+        this.ruleEnd = new long[rules];
+        for (int i = 0; i < rules; i++) {
+            int ip = Addr.parseIp("203.0.113." + (1 + i % PUBLIC_IPS));
+            int port = 2000 + i / PUBLIC_IPS * 3; // a free port after every rule, for the misses
+            boolean range = i % 4 == 0;
+            specs.add(Addr.formatIp(ip) + ":" + port + (range ? "-" + (port + 1) : "") + "=10.0.0.1:" + port);
+            ruleStart[i] = Addr.ipKey(ip) << 16 | port;
+            ruleEnd[i] = ruleStart[i] + (range ? 1 : 0);
+        }
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < QUERIES; i++) {
+            int rule = random.nextInt(rules);
+            queries[i] = random.nextInt(4) == 0 ? ruleEnd[rule] + 1 : ruleStart[rule];
+        }
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        PortForwarding forwarding = PortForwarding.compile(specs);
+        long compile = System.nanoTime() - start;
+        long best = Long.MAX_VALUE;
+        long bestScan = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                sink += forwarding.lookup(queries[i & (QUERIES - 1)]);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            if (round < SCAN_ROUNDS) {
+                start = System.nanoTime();
+                for (int i = 0; i < SCANS; i++) {
+                    sink += scan(queries[i & (QUERIES - 1)]);
+                }
+                bestScan = Math.min(bestScan, System.nanoTime() - start);
+            }
+        }
+        System.out.printf("%6d rules: compile %5.1f ms, lookup %5.1f ns, linear scan %8.1f ns%n",
+                rules, compile / 1e6, (double) best / LOOKUPS, (double) bestScan / SCANS);
+        if (sink == 42) System.out.println(); // keeps the JIT from dropping the lookups
+    }
+
+    private long scan(long endpoint) {
+        for (int i = 0; i < rules; i++) {
+            if (endpoint >= ruleStart[i] && endpoint <= ruleEnd[i]) return ruleStart[i];
+        }
+        return LongLongMap.NO_VALUE;
+    }
+
+    public static void main(String[] args) {
+        int[] counts = {1000, 5000, 20000};
+        try {
+            if (args.length > 0) {
+                counts = new int[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    counts[i] = Integer.parseInt(args[i]);
+                    // ports 2000 and up, three per rule on each public IP
+                    if (counts[i] < 1 || counts[i] > 21_000 * PUBLIC_IPS) {
+                        throw new IllegalArgumentException("Invalid rule count: " + args[i]);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java ForwardingBench [<rules> ...]");
+            System.err.println(e.getMessage());
+            return;
+        }
+        for (int rules : counts) {
+            new ForwardingBench(rules).run();
+        }
+    }
+}
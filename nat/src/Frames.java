@@ -0,0 +1,37 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames of a persistent client-router connection: [length, int32 big-endian][message, UTF-8].
+ * The first byte of a frame is always 0 (length under 16 MB), so the router tells such a connection
+ * apart from the legacy "one text line per connection" protocol by its first byte.
+ */
+public final class Frames {
+    public static final int MAX_FRAME = 64 * 1024;
+
+    private Frames() {
+    }
+
+    public static void write(DataOutputStream out, String msg) throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /** @return the message, or null if the connection was closed. */
+    public static String read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
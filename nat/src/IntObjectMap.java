@@ -0,0 +1,116 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) int -> V hash map, IPv4 keys are stored as plain ints.
+ * An empty slot is a null value, so null values are not allowed.
+ * Not thread-safe; the owner of the table is responsible for synchronization.
+ */
+public class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3) - 1) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[slot(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return values[slot(key)] != null;
+    }
+
+    /** @return the previous value or null. */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new IllegalArgumentException("null value");
+        int i = slot(key);
+        V old = (V) values[i];
+        keys[i] = key;
+        values[i] = value;
+        if (old == null && ++size * 4 >= keys.length * 3) rehash();
+        return old;
+    }
+
+    /** @return the removed value or null. */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = slot(key);
+        V old = (V) values[i];
+        if (old == null) return null;
+        size--;
+        // backward shift: later entries of the cluster move into the freed slot
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (values[j] != null) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        values[hole] = null;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<V> visitor) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) visitor.visit(keys[i], (V) values[i]);
+        }
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public interface Visitor<V> {
+        void visit(int key, V value);
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) long -> long hash map without boxing.
+ * Keys and values must be non-negative: -1 marks an empty slot and "no value".
+ * Not thread-safe; the owner of the table is responsible for synchronization.
+ */
+public class LongLongMap {
+    public static final long NO_VALUE = -1L;
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    public long get(long key) {
+        int i = slot(key);
+        return keys[i] == EMPTY ? NO_VALUE : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[slot(key)] != EMPTY;
+    }
+
+    /** @return the previous value or {@link #NO_VALUE}. */
+    public long put(long key, long value) {
+        if (key < 0 || value < 0) throw new IllegalArgumentException("Negative key or value");
+        int i = slot(key);
+        if (keys[i] == key) {
+            long old = values[i];
+            values[i] = value;
+            return old;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 >= keys.length * 3) rehash();
+        return NO_VALUE;
+    }
+
+    /** @return the removed value or {@link #NO_VALUE}. */
+    public long remove(long key) {
+        int i = slot(key);
+        if (keys[i] == EMPTY) return NO_VALUE;
+        long old = values[i];
+        size--;
+        // backward shift: later entries of the cluster move into the freed slot
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != EMPTY) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+}
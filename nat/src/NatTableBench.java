@@ -0,0 +1,176 @@
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Inbound translation benchmark: the tables a reply to a public endpoint goes through in {@link Router}
+ * (public port -> owning shard, the shard's {@link FlowTable} reply lookup and the mapping check in
+ * natTable), filled with one mapping and one flow per private endpoint, against the old string table
+ * that was scanned for the public endpoint. All mappings sit in one shard: more shards split the
+ * tables but do not change the cost of a lookup. No locking, so the times are the tables alone.
+ * <p>
+ * Memory is the used heap after System.gc(), so it is most accurate with -XX:+UseSerialGC.
+ */
+public class NatTableBench {
+    private static final int PROTO_ICMP = 1; // as in Router
+    private static final int PUBLIC_IPS = 16;
+    private static final int PEER = Addr.parseIp("198.51.100.1"); // every flow goes to this external node
+    private static final int PEER_PORT = 7;
+    private static final int LOOKUPS = 1 << 22;
+    private static final int CHURN = 1 << 20;
+    private static final int SCANS = 10;
+    private static final int ROUNDS = 5;
+
+    private final int mappings;
+    private final int[] publicIps = new int[PUBLIC_IPS];
+    private final PortAllocator ports;
+    private final IntObjectMap<AtomicIntegerArray> portShards = new IntObjectMap<>();
+    private final LongLongMap natTable = new LongLongMap();
+    private final long[] privateEndpoints;
+    private final long[] publicEndpoints;
+    private FlowTable flows; // created while the heap is measured
+    private long sink;
+
+    public NatTableBench(int mappings) {
+        this.mappings = mappings;
+        for (int i = 0; i < PUBLIC_IPS; i++) {
+            publicIps[i] = Addr.parseIp("203.0.113." + (i + 1));
+        }
+        this.ports = new PortAllocator(publicIps, PortAllocator.Policy.ANY);
+        this.privateEndpoints = new long[mappings];
+        this.publicEndpoints = new long[mappings];
+    }
+
+    public void run() {
+        long bytes = measure(() -> {
+            flows = new FlowTable(mappings);
+            for (int ip : publicIps) {
+                portShards.put(ip, new AtomicIntegerArray(PortAllocator.LAST_PORT + 1));
+            }
+            for (int i = 0; i < mappings; i++) {
+                // 16 ports per private host, 10.0.0.0/8 and up
+                privateEndpoints[i] = Addr.ipKey(0x0A000000 + i / 16) << 16 | (6000 + i % 16);
+                map(i);
+            }
+        });
+        System.out.printf("Mappings: %d over %d public IPs, natTable + port owners + flow table: %.1f MB (%.0f B/mapping)%n",
+                mappings, PUBLIC_IPS, bytes / 1e6, (double) bytes / mappings);
+
+        SplittableRandom random = new SplittableRandom(1);
+        int[] queries = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            queries[i] = random.nextInt(mappings);
+        }
+        System.out.printf("Inbound lookup: %.1f ns%n", time(LOOKUPS, () -> {
+            for (int i : queries) sink += inbound(publicEndpoints[i]);
+        }));
+        System.out.printf("Remove a mapping and map the endpoint again: %.1f ns%n", time(CHURN, () -> {
+            for (int n = 0; n < CHURN; n++) {
+                int i = queries[n];
+                unmap(i);
+                map(i);
+            }
+        }));
+
+        Map<String, String> old = new ConcurrentHashMap<>();
+        natTable.forEach((privateEndpoint, publicEndpoint) -> old.put(format(privateEndpoint), format(publicEndpoint)));
+        long start = System.nanoTime();
+        for (int n = 0; n < SCANS; n++) {
+            String[] wanted = format(publicEndpoints[queries[n]]).split(":");
+            for (Map.Entry<String, String> e : old.entrySet()) {
+                if (e.getValue().startsWith(wanted[0] + ":") && e.getValue().endsWith(":" + wanted[1])) {
+                    sink += e.getKey().length();
+                    break;
+                }
+            }
+        }
+        System.out.printf("Old string scan: %.1f ms%n", (System.nanoTime() - start) / 1e6 / SCANS);
+        if (sink == 42) System.out.println(); // keeps the JIT from dropping the lookups
+    }
+
+    private void map(int i) {
+        long privateEndpoint = privateEndpoints[i];
+        long publicEndpoint = ports.allocate((int) (privateEndpoint >>> 16), (int) (privateEndpoint & 0xFFFF));
+        natTable.put(privateEndpoint, publicEndpoint);
+        owners(publicEndpoint).set((int) (publicEndpoint & 0xFFFF), 1);
+        flows.add(FlowTable.endpoint(PROTO_ICMP, (int) (privateEndpoint >>> 16), (int) (privateEndpoint & 0xFFFF)),
+                FlowTable.endpoint(0, PEER, PEER_PORT), FlowTable.endpoint(PROTO_ICMP, PEER, PEER_PORT),
+                publicHalf(publicEndpoint), Long.MAX_VALUE);
+        publicEndpoints[i] = publicEndpoint;
+    }
+
+    private void unmap(int i) {
+        long publicEndpoint = publicEndpoints[i];
+        flows.remove(flows.find(FlowTable.endpoint(PROTO_ICMP, PEER, PEER_PORT), publicHalf(publicEndpoint)) >>> 1);
+        natTable.remove(privateEndpoints[i]);
+        owners(publicEndpoint).set((int) (publicEndpoint & 0xFFFF), 0);
+        ports.free(publicEndpoint);
+    }
+
+    /** What Router.translateReply does for a PONG from the peer to a public endpoint. */
+    private long inbound(long publicEndpoint) {
+        if (owners(publicEndpoint).get((int) (publicEndpoint & 0xFFFF)) == 0) return 0;
+        int entry = flows.find(FlowTable.endpoint(PROTO_ICMP, PEER, PEER_PORT), publicHalf(publicEndpoint));
+        if (entry < 0 || (entry & 1) == 0) return 0;
+        long natKey = endpointOf(flows.origSrc(entry >>> 1));
+        return natTable.get(natKey) == publicEndpoint ? natKey : 0;
+    }
+
+    private AtomicIntegerArray owners(long publicEndpoint) {
+        return portShards.get((int) (publicEndpoint >>> 16));
+    }
+
+    private static long endpointOf(long half) {
+        return (half & 0xFFFFFFFFL) << 16 | (half >>> 32 & 0xFFFF);
+    }
+
+    private static long publicHalf(long endpoint) {
+        return FlowTable.endpoint(0, (int) (endpoint >>> 16), (int) (endpoint & 0xFFFF));
+    }
+
+    private static String format(long endpoint) {
+        return Addr.formatIp((int) (endpoint >>> 16)) + ":" + (endpoint & 0xFFFF);
+    }
+
+    private static long measure(Runnable fill) {
+        long before = usedHeap();
+        fill.run();
+        return usedHeap() - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** The best of {@link #ROUNDS} runs, ns per operation: the first runs warm up the JIT. */
+    private static double time(int operations, Runnable run) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / operations;
+    }
+
+    public static void main(String[] args) {
+        int mappings = 1_000_000;
+        try {
+            if (args.length > 0) mappings = Integer.parseInt(args[0]);
+            int capacity = PUBLIC_IPS * (PortAllocator.LAST_PORT - PortAllocator.FIRST_PORT + 1);
+            if (mappings < SCANS || mappings > capacity) {
+                throw new IllegalArgumentException("Mappings must be within " + SCANS + "-" + capacity + ": " + mappings);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java -XX:+UseSerialGC NatTableBench [<mappings>]");
+            System.err.println(e.getMessage());
+            return;
+        }
+        new NatTableBench(mappings).run();
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Public ports of the NAT: a bitmap over {@link #FIRST_PORT}..{@link #LAST_PORT} for every public IP
+ * of the pool, a set bit is a port in use. A port is claimed with a CAS on its 64-bit word, so
+ * concurrent allocations never hand out the same port and never take a lock. Each IP keeps a hint
+ * (the word of its last allocation) and a free counter: allocation normally looks at a single word,
+ * exhausted IPs are skipped without scanning.
+ * <p>
+ * A private IP is always tried on the same public IP first (paired pooling), the next ones are
+ * used only when that one runs out of ports.
+ */
+public final class PortAllocator {
+    public static final int FIRST_PORT = 1024;
+    public static final int LAST_PORT = 65535;
+    private static final int WORDS = (LAST_PORT - FIRST_PORT + 1) / Long.SIZE; // 1008, FIRST_PORT is 64-aligned
+    private static final long EVEN_BITS = 0x5555_5555_5555_5555L; // bit 0 is an even port
+
+    /** Which ports a mapping may get. */
+    public static final class Policy {
+        public static final Policy ANY = new Policy(FIRST_PORT, LAST_PORT, false);
+
+        final int low;
+        final int high;
+        /** The public port keeps the parity of the private one (RFC 4787, REQ-4). */
+        final boolean keepParity;
+
+        public Policy(int low, int high, boolean keepParity) {
+            if (low < FIRST_PORT || high > LAST_PORT || low > high) {
+                throw new IllegalArgumentException("Port range must be within " + FIRST_PORT + "-" + LAST_PORT + ": " + low + "-" + high);
+            }
+            this.low = low;
+            this.high = high;
+            this.keepParity = keepParity;
+        }
+
+        /** "1024-65535" or "1024-65535/parity". */
+        public static Policy parse(String s) {
+            boolean parity = s.endsWith("/parity");
+            if (parity) s = s.substring(0, s.length() - "/parity".length());
+            int dash = s.indexOf('-');
+            if (dash < 0) throw new IllegalArgumentException("Invalid port range: " + s);
+            return new Policy(Integer.parseInt(s.substring(0, dash)), Integer.parseInt(s.substring(dash + 1)), parity);
+        }
+
+        @Override
+        public String toString() {
+            return low + "-" + high + (keepParity ? "/parity" : "");
+        }
+    }
+
+    private static final class PublicIp {
+        final int ip;
+        final AtomicLongArray bits = new AtomicLongArray(WORDS);
+        final AtomicInteger free = new AtomicInteger(WORDS * Long.SIZE);
+        volatile int hint;
+
+        PublicIp(int ip) {
+            this.ip = ip;
+        }
+    }
+
+    private final PublicIp[] pool;
+    private final Policy policy;
+
+    public PortAllocator(int[] publicIps, Policy policy) {
+        if (publicIps.length == 0) throw new IllegalArgumentException("No public IPs");
+        this.pool = new PublicIp[publicIps.length];
+        for (int i = 0; i < publicIps.length; i++) {
+            pool[i] = new PublicIp(publicIps[i]);
+        }
+        this.policy = policy;
+    }
+
+    public boolean isPublic(int ip) {
+        return find(ip) != null;
+    }
+
+    /** The first IP of the pool, for messages. */
+    public int primaryIp() {
+        return pool[0].ip;
+    }
+
+    public int publicIpCount() {
+        return pool.length;
+    }
+
+    public int[] publicIps() {
+        int[] ips = new int[pool.length];
+        for (int i = 0; i < pool.length; i++) {
+            ips[i] = pool[i].ip;
+        }
+        return ips;
+    }
+
+    /**
+     * Claims a public port for privateIp:privatePort.
+     *
+     * @return public IP << 16 | port, or -1 when every IP of the pool is out of ports allowed by the policy
+     */
+    public long allocate(int privateIp, int privatePort) {
+        int first = Math.floorMod(privateIp * 0x9E3779B9, pool.length);
+        for (int i = 0; i < pool.length; i++) {
+            PublicIp pub = pool[(first + i) % pool.length];
+            if (pub.free.get() == 0) continue;
+            int port = allocate(pub, privatePort);
+            if (port >= 0) return Addr.ipKey(pub.ip) << 16 | port;
+        }
+        return -1;
+    }
+
+    private int allocate(PublicIp pub, int privatePort) {
+        int lowWord = (policy.low - FIRST_PORT) / Long.SIZE;
+        int highWord = (policy.high - FIRST_PORT) / Long.SIZE;
+        int words = highWord - lowWord + 1;
+        long parity = !policy.keepParity ? -1L : (privatePort & 1) == 0 ? EVEN_BITS : ~EVEN_BITS;
+        int start = pub.hint;
+        if (start < lowWord || start > highWord) start = lowWord;
+        for (int n = 0; n < words; n++) {
+            int w = lowWord + (start - lowWord + n) % words;
+            long allowed = parity & rangeMask(w);
+            long word;
+            long candidates;
+            while ((candidates = ~(word = pub.bits.get(w)) & allowed) != 0) {
+                long bit = Long.lowestOneBit(candidates);
+                if (pub.bits.compareAndSet(w, word, word | bit)) {
+                    pub.free.decrementAndGet();
+                    if (w != start) pub.hint = w;
+                    return FIRST_PORT + w * Long.SIZE + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Ports of word w inside the policy range. */
+    private long rangeMask(int w) {
+        int base = FIRST_PORT + w * Long.SIZE;
+        long mask = -1L;
+        if (policy.low > base) mask &= -1L << (policy.low - base);
+        if (policy.high < base + Long.SIZE - 1) mask &= -1L >>> (base + Long.SIZE - 1 - policy.high);
+        return mask;
+    }
+
+    /**
+     * Marks a port restored from the table log as taken.
+     *
+     * @return false if it is outside the pool or already taken
+     */
+    public boolean reserve(long endpoint) {
+        return update(endpoint, true);
+    }
+
+    /** Returns a port to the pool. @return false if it was not allocated */
+    public boolean free(long endpoint) {
+        return update(endpoint, false);
+    }
+
+    private boolean update(long endpoint, boolean take) {
+        PublicIp pub = find((int) (endpoint >>> 16));
+        int port = (int) (endpoint & 0xFFFF);
+        if (pub == null || port < FIRST_PORT) return false;
+        int w = (port - FIRST_PORT) / Long.SIZE;
+        long bit = 1L << ((port - FIRST_PORT) % Long.SIZE);
+        long word;
+        do {
+            word = pub.bits.get(w);
+            if (((word & bit) != 0) == take) return false;
+        } while (!pub.bits.compareAndSet(w, word, word ^ bit));
+        if (take) pub.free.decrementAndGet();
+        else pub.free.incrementAndGet();
+        return true;
+    }
+
+    private PublicIp find(int ip) {
+        for (PublicIp pub : pool) {
+            if (pub.ip == ip) return pub;
+        }
+        return null;
+    }
+
+    /** Ports in use over the whole pool. */
+    public int allocated() {
+        int used = 0;
+        for (PublicIp pub : pool) {
+            used += WORDS * Long.SIZE - pub.free.get();
+        }
+        return used;
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Port-forwarding (DNAT) rules, compiled once at start into lookup tables instead of a rule list that
+ * is walked for every packet. A rule forwards a public endpoint or a range of public ports to a private
+ * endpoint; endpoints are IP << 16 | port. Single ports go to a hash map, ranges to sorted arrays that
+ * are searched by binary search, so a lookup is O(1) or O(log ranges) however many rules there are.
+ * <pre>
+ * 203.0.113.1:8080=192.168.0.2:7777        one port
+ * 203.0.113.1:9000-9099=192.168.0.5:9000   9000 -> 9000, 9001 -> 9001, ...
+ * </pre>
+ * Immutable once compiled, so it is read without locking.
+ */
+public final class PortForwarding {
+    public static final PortForwarding NONE = compile(List.of());
+
+    private final LongLongMap single;
+    private final long[] rangeStart; // sorted; ranges do not overlap
+    private final long[] rangeEnd;
+    private final long[] rangeTarget; // private endpoint of rangeStart
+    private final int rules;
+
+    private PortForwarding(LongLongMap single, long[] rangeStart, long[] rangeEnd, long[] rangeTarget) {
+        this.single = single;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.rangeTarget = rangeTarget;
+        this.rules = single.size() + rangeStart.length;
+    }
+
+    /** @throws IllegalArgumentException for a malformed rule or rules that forward the same public port */
+    public static PortForwarding compile(List<String> specs) {
+        List<long[]> ranges = new ArrayList<>(); // start, end, target
+        LongLongMap single = new LongLongMap(Math.max(16, specs.size()));
+        for (String spec : specs) {
+            int eq = spec.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Invalid forwarding rule: " + spec);
+            String from = spec.substring(0, eq).trim();
+            long target = parseEndpoint(spec.substring(eq + 1).trim());
+            int colon = from.indexOf(':');
+            int dash = from.indexOf('-', colon + 1);
+            if (colon < 0) throw new IllegalArgumentException("Invalid forwarding rule: " + spec);
+            long ip = Addr.ipKey(Addr.parseIp(from.substring(0, colon)));
+            int low = parsePort(dash < 0 ? from.substring(colon + 1) : from.substring(colon + 1, dash));
+            int high = dash < 0 ? low : parsePort(from.substring(dash + 1));
+            if (high < low || (target & 0xFFFF) + (high - low) > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid port range: " + spec);
+            }
+            if (low == high) {
+                if (single.put(ip << 16 | low, target) != LongLongMap.NO_VALUE) {
+                    throw new IllegalArgumentException("Port forwarded twice: " + from);
+                }
+            } else {
+                ranges.add(new long[]{ip << 16 | low, ip << 16 | high, target});
+            }
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] start = new long[ranges.size()];
+        long[] end = new long[ranges.size()];
+        long[] target = new long[ranges.size()];
+        for (int i = 0; i < start.length; i++) {
+            long[] range = ranges.get(i);
+            if (i > 0 && range[0] <= end[i - 1]) {
+                throw new IllegalArgumentException("Forwarded port ranges overlap at " + formatEndpoint(range[0]));
+            }
+            start[i] = range[0];
+            end[i] = range[1];
+            target[i] = range[2];
+        }
+        PortForwarding compiled = new PortForwarding(single, start, end, target);
+        single.forEach((endpoint, to) -> {
+            if (compiled.findRange(endpoint) >= 0) {
+                throw new IllegalArgumentException("Port forwarded twice: " + formatEndpoint(endpoint));
+            }
+        });
+        return compiled;
+    }
+
+    /** @return the private endpoint the public one is forwarded to, or {@link LongLongMap#NO_VALUE} */
+    public long lookup(long publicEndpoint) {
+        long target = single.get(publicEndpoint);
+        if (target != LongLongMap.NO_VALUE || rangeStart.length == 0) return target;
+        int i = findRange(publicEndpoint);
+        return i < 0 ? LongLongMap.NO_VALUE : rangeTarget[i] + (publicEndpoint - rangeStart[i]);
+    }
+
+    private int findRange(long endpoint) {
+        int i = Arrays.binarySearch(rangeStart, endpoint);
+        if (i < 0) i = -i - 2; // the last range starting below the endpoint
+        return i >= 0 && endpoint <= rangeEnd[i] ? i : -1;
+    }
+
+    /** Every forwarded public endpoint, ranges port by port. */
+    public void forEachPublic(LongLongMap.Visitor visitor) {
+        single.forEach(visitor);
+        for (int i = 0; i < rangeStart.length; i++) {
+            for (long endpoint = rangeStart[i]; endpoint <= rangeEnd[i]; endpoint++) {
+                visitor.visit(endpoint, rangeTarget[i] + (endpoint - rangeStart[i]));
+            }
+        }
+    }
+
+    public int size() {
+        return rules;
+    }
+
+    private static int parsePort(String s) {
+        int port = Integer.parseInt(s);
+        if (port < 1 || port > 0xFFFF) throw new IllegalArgumentException("Invalid port: " + s);
+        return port;
+    }
+
+    private static long parseEndpoint(String endpoint) {
+        int colon = endpoint.indexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Invalid endpoint: " + endpoint);
+        return Addr.ipKey(Addr.parseIp(endpoint.substring(0, colon))) << 16 | parsePort(endpoint.substring(colon + 1));
+    }
+
+    private static String formatEndpoint(long endpoint) {
+        return Addr.formatIp((int) (endpoint >>> 16)) + ":" + (endpoint & 0xFFFF);
+    }
+}
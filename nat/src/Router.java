@@ -1,243 +1,978 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class Router {
-    private final int listenPort;
-
-    private final Map<String, ClientInfo> ipTable = new ConcurrentHashMap<>();
-    private final Map<String, String> arpTable = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-
-    private final String publicIp = "203.0.113.1"; //
-    private static final String EXTERNAL_NODE_IP = "198.51.100.10"; //
-    private final Map<String, String> natTable = new ConcurrentHashMap<>(); // sourceIP:sourcePort -> publicIP:port
-
-
-    public Router(int port) {
-        this.listenPort = port;
-    }
-
-    public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(listenPort);
-        System.out.println("Router started on port " + listenPort + " with public IP " + publicIp);
-
-        new Thread(() -> {
-            Scanner scanner = new Scanner(System.in);
-            while (true) {
-                String command = scanner.nextLine();
-                if ("STOP".equalsIgnoreCase(command.trim())) {
-                    System.out.println("Stopping router on STOP command...");
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Error closing socket: " + e.getMessage());
-                    }
-                    break;
-                }
-            }
-        }).start();
-
-        try {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.submit(() -> handleClient(clientSocket));
-            }
-        } catch (IOException e) {
-            System.out.println("Server stopped.");
-        } finally {
-            shutdown();
-        }
-    }
-
-    private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String message = in.readLine();
-            if (message == null) return;
-
-            String command = message.split(" ")[0];
-
-            switch (command) {
-                case "REGISTER" -> handleRegister(message);
-                case "DISCONNECT" -> handleDisconnect(message);
-                case "PING" -> handlePing(message);
-                case "PONG" -> handlePong(message);
-                default -> System.err.println("Unknown command: " + command);
-            }
-
-        } catch (IOException e) {
-            System.err.println("Client error: " + e.getMessage());
-        }
-    }
-
-    private void handleRegister(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        String mac = parts[2];
-        int port = Integer.parseInt(parts[3]);
-
-        ClientInfo existing = ipTable.get(ip);
-        if (existing != null && !existing.mac.equals(mac)) {
-            System.err.println("IP conflict: " + ip + " already registered with different MAC.");
-            return;
-        }
-
-        if (arpTable.containsValue(mac) && !ip.equals(getIpByMac(mac))) {
-            System.err.println("MAC conflict: " + mac + " already used by another IP.");
-            return;
-        }
-
-        ClientInfo info = new ClientInfo(ip, mac, port);
-        ipTable.put(ip, info);
-        arpTable.put(ip, mac);
-
-        System.out.println("Registered: IP=" + ip + " MAC=" + mac + " Port=" + port);
-    }
-
-    private String getIpByMac(String mac) {
-        for (Map.Entry<String, String> entry : arpTable.entrySet()) {
-            if (entry.getValue().equals(mac)) {
-                return entry.getKey();
-            }
-        }
-        return null;
-    }
-
-    private void handleDisconnect(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        ClientInfo removed = ipTable.remove(ip);
-        if (removed != null) {
-            arpTable.remove(ip);
-            natTable.entrySet().removeIf(entry -> entry.getKey().startsWith(ip + ":"));
-            System.out.println("Disconnected: IP=" + ip);
-        }
-    }
-
-    private void handlePing(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String toIP = parts[2];
-
-        ClientInfo from = ipTable.get(fromIP);
-        if (from == null) {
-            System.err.println("Source node " + fromIP + " not found in IP table.");
-            return;
-        }
-
-        String sourceIp;
-        String message;
-
-        if (isPrivateIp(fromIP) && toIP.equals(EXTERNAL_NODE_IP)) {
-            int portForClient = 8000 + new Random().nextInt(1000);
-            sourceIp = publicIp;
-            message = "PING_FROM " + sourceIp+":" + portForClient;
-            String natKey = fromIP + ":" + from.port;
-            String natValue = publicIp + ":" + portForClient;
-            natTable.put(natKey, natValue);
-            System.out.println("NAT mapping added: " + natKey + " -> " + natValue);
-        } else{
-            sourceIp = fromIP;
-            message = "PING_FROM " + sourceIp;
-
-        }
-
-        if (toIP.equals(EXTERNAL_NODE_IP)) {
-            threadPool.submit(() -> sendMessage(7000, message));
-        } else {
-            ClientInfo to = ipTable.get(toIP);
-            if (to != null) {
-                threadPool.submit(() -> sendMessage(to.port, message));
-            } else {
-                System.err.println("Destination node " + toIP + " not found in IP table.");
-            }
-        }
-    }
-
-    private void handlePong(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String[] toIpPort = parts[2].split(":");
-
-        if (toIpPort[0].equals(publicIp)) {
-            String natKey = null;
-            for (Map.Entry<String, String> entry : natTable.entrySet()) {
-                if (entry.getValue().startsWith(toIpPort[0] + ":") && entry.getValue().endsWith(":" + toIpPort[1])) {
-                    natKey = entry.getKey();
-                    break;
-                }
-            }
-
-            if (natKey != null) {
-                String[] natParts = natKey.split(":");
-                String destIp = natParts[0];
-                int destPort = Integer.parseInt(natParts[1]);
-                threadPool.submit(() -> sendMessage(destPort, "PONG_FROM " + fromIP));
-                natTable.remove(natKey);
-            } else {
-                System.err.println("No NAT mapping found for PONG to " + toIpPort[0] + " from " + fromIP);
-            }
-        } else {
-            // local-to-local PONG
-            String toIP = toIpPort[0];
-            ClientInfo to = ipTable.get(toIP);
-            if (to != null) {
-                threadPool.submit(() -> sendMessage(to.port, "PONG_FROM " + fromIP));
-            } else {
-                System.err.println("Destination node " + toIP + " not found in IP table.");
-            }
-        }
-    }
-
-    private void sendMessage(int port, String msg) {
-        try (Socket socket = new Socket("localhost", port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String ipForPort = getIpForPort(port);
-            System.out.println("Sending to IP=" + ipForPort + " Port=" + port + ": " + msg);
-            out.println(msg);
-        } catch (IOException e) {
-            System.err.println("Error sending to port " + port + ": " + e.getMessage());
-        }
-    }
-
-    private String getIpForPort(int port) {
-        if (port == 7000) {
-            return EXTERNAL_NODE_IP;
-        }
-        for (Map.Entry<String, ClientInfo> entry : ipTable.entrySet()) {
-            if (entry.getValue().port == port) {
-                return entry.getKey();
-            }
-        }
-        return "unknown";
-    }
-
-    private boolean isPrivateIp(String ip) {
-        return ip.startsWith("192.");
-    }
-
-    private void shutdown() {
-        threadPool.shutdown();
-        System.out.println("Router shut down");
-    }
-
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.out.println("Usage: java Router <Port>");
-            return;
-        }
-        new Router(Integer.parseInt(args[0])).start();
-    }
-
-    static class ClientInfo {
-        String ip, mac;
-        int port;
-
-        ClientInfo(String ip, String mac, int port) {
-            this.ip = ip;
-            this.mac = mac;
-            this.port = port;
-        }
-    }
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class Router implements Connection.Listener {
+    private final int listenPort;
+
+    private final IntObjectMap<ClientInfo> ipTable = new IntObjectMap<>();
+    private final LongLongMap arpTable = new LongLongMap(); // IP -> MAC
+    private final LongLongMap macTable = new LongLongMap(); // MAC -> IP, reverse index of arpTable
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    private final PortAllocator ports;
+    private static final String DEFAULT_PUBLIC_IP = "203.0.113.1";
+    private static final String DEFAULT_EXTERNALS = "198.51.100.10:7000";
+    private static final String DEFAULT_PRIVATE_NETWORKS = "10.0.0.0/8,172.16.0.0/12,192.168.0.0/16"; // RFC 1918
+    private final LongLongMap externals = new LongLongMap(); // external node IP -> port it listens on, set before start
+    private Prefix[] privateNetworks = Prefix.parseList(DEFAULT_PRIVATE_NETWORKS);
+    private PortForwarding forwarding = PortForwarding.NONE;
+    // NAT state is split by a hash of the private IP, one shard per event loop, each under its own monitor;
+    // public ports come from the allocator, which is shared but lock-free
+    private final NatShard[] natShards;
+    // public IP -> per port, the index + 1 of the shard holding its mapping, 0 if the port is not mapped;
+    // lets a reply to a public endpoint find its shard without a shared lock
+    private final IntObjectMap<AtomicIntegerArray> portShards = new IntObjectMap<>();
+    private final long natTimeoutMs;
+    private final int maxFlows;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "nat-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile TableLog state; // null unless the tables are persisted
+    private final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** How often the tables are written out in full; changes in between go to the log. */
+    private static final long SNAPSHOT_INTERVAL_MS = 30_000;
+    private static final long LOG_FLUSH_MS = 200;
+    /** Restored hosts that have not registered again this long after start are probed on their port. */
+    private static final long RESTORE_GRACE_MS = 5_000;
+    private static final int PROBE_TIMEOUT_MS = 500;
+    // table log records: a host is keyed by IP with MAC << 16 | port as the value,
+    // a NAT mapping by the private endpoint with the public one as the value (IP << 16 | port)
+    private static final int STATE_HOST = 1;
+    private static final int STATE_HOST_REMOVED = 2;
+    private static final int STATE_NAT = 3;
+    private static final int STATE_NAT_REMOVED = 4;
+    /** Idle time after which a NAT mapping is dropped, as for ICMP query mappings (RFC 5508, REQ-1). */
+    private static final long DEFAULT_NAT_TIMEOUT_MS = 60_000;
+    private static final long NAT_TICK_MS = 1_000;
+    private static final int DEFAULT_MAX_FLOWS = 65_536;
+    private static final int PROTO_ICMP = 1; // PING/PONG stand for ICMP echo; the client's port is the query id
+    /** A flow without a reply yet; established flows live as long as their mapping, natTimeoutMs. */
+    private static final long FLOW_NEW_TIMEOUT_MS = 30_000;
+    private static final long FLOW_CLOSING_TIMEOUT_MS = 10_000;
+
+    public Router(int port, PortAllocator ports, long natTimeoutMs, int maxFlows) throws IOException {
+        this.listenPort = port;
+        this.ports = ports;
+        this.natTimeoutMs = natTimeoutMs;
+        this.maxFlows = maxFlows;
+        this.loops = EventLoop.startGroup("router", Runtime.getRuntime().availableProcessors());
+        this.natShards = new NatShard[loops.length];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < natShards.length; i++) {
+            natShards[i] = new NatShard(i, (maxFlows + natShards.length - 1) / natShards.length, now);
+        }
+        for (int ip : ports.publicIps()) {
+            portShards.put(ip, new AtomicIntegerArray(PortAllocator.LAST_PORT + 1));
+        }
+    }
+
+    /** Adds an external node that private hosts may reach through the NAT. Call before {@link #start}. */
+    public void addExternal(int ip, int port) {
+        externals.put(Addr.ipKey(ip), port);
+    }
+
+    /** Replaces the networks whose hosts are translated on the way out. Call before {@link #start}. */
+    public void setPrivateNetworks(Prefix[] networks) {
+        this.privateNetworks = networks;
+    }
+
+    /**
+     * Installs port-forwarding rules; their public ports are taken out of the allocator's pool.
+     * Call before {@link #persist} and {@link #start}.
+     */
+    public void setForwarding(PortForwarding rules) {
+        rules.forEachPublic((endpoint, target) -> {
+            if (!ports.isPublic((int) (endpoint >>> 16))) {
+                throw new IllegalArgumentException("Forwarded address is not a public IP of the router: " + formatEndpoint(endpoint));
+            }
+            ports.reserve(endpoint);
+        });
+        this.forwarding = rules;
+    }
+
+    /**
+     * Loads the tables saved by the previous run and keeps saving them to files prefixed with base.
+     * Restored hosts and mappings are used right away; hosts that have not registered again within
+     * {@link #RESTORE_GRACE_MS} are probed in the background. Call before {@link #start}.
+     */
+    public void persist(Path base) throws IOException {
+        TableLog log = new TableLog(base);
+        long records;
+        synchronized (ipTable) {
+            records = log.load((type, key, value) -> {
+                switch (type) {
+                    case STATE_HOST, STATE_HOST_REMOVED -> {
+                        int ip = (int) key;
+                        ClientInfo old = ipTable.remove(ip);
+                        if (old != null) {
+                            arpTable.remove(Addr.ipKey(ip));
+                            macTable.remove(old.mac);
+                        }
+                        if (type == STATE_HOST_REMOVED) return;
+                        ClientInfo info = new ClientInfo(ip, value >>> 16, (int) (value & 0xFFFF));
+                        info.restored = true;
+                        ipTable.put(ip, info);
+                        arpTable.put(Addr.ipKey(ip), info.mac);
+                        macTable.put(info.mac, Addr.ipKey(ip));
+                    }
+                    case STATE_NAT -> {
+                        if (forwarding.lookup(value) != LongLongMap.NO_VALUE) return; // the port is forwarded now
+                        addMapping(key, value, System.currentTimeMillis());
+                        ports.reserve(value);
+                    }
+                    case STATE_NAT_REMOVED -> removeMapping(key);
+                    default -> {
+                    }
+                }
+            });
+            state = log;
+        }
+        snapshots.scheduleWithFixedDelay(this::flushState, LOG_FLUSH_MS, LOG_FLUSH_MS, TimeUnit.MILLISECONDS);
+        snapshots.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        snapshots.schedule(this::verifyRestored, RESTORE_GRACE_MS, TimeUnit.MILLISECONDS);
+        int mappings = 0;
+        for (NatShard shard : natShards) {
+            synchronized (shard) {
+                mappings += shard.natTable.size();
+            }
+        }
+        System.out.println("Tables are saved to " + base + ": restored " + ipTable.size() + " hosts and "
+                + mappings + " NAT mappings (" + records + " records read)");
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort));
+        System.out.println("Router started on port " + listenPort + " with public IP " + Addr.formatIp(ports.primaryIp())
+                + (ports.publicIpCount() > 1 ? " and " + (ports.publicIpCount() - 1) + " more" : "")
+                + ", event loops and NAT shards: " + loops.length + ", NAT idle timeout " + natTimeoutMs / 1000 + " s"
+                + ", flows up to " + maxFlows + ", external nodes: " + externals.size()
+                + ", forwarding rules: " + forwarding.size());
+        timer.scheduleAtFixedRate(this::natTick, NAT_TICK_MS, NAT_TICK_MS, TimeUnit.MILLISECONDS);
+
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(server, SelectionKey.OP_ACCEPT, new Acceptor(server));
+            } catch (IOException e) {
+                System.err.println("Failed to start accepting connections: " + e.getMessage());
+            }
+        });
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            if ("STOP".equalsIgnoreCase(scanner.nextLine().trim())) {
+                System.out.println("Stopping router on STOP command...");
+                break;
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+        System.out.println("Server stopped.");
+        shutdown();
+    }
+
+    /** Accepts connections and hands them to the loops round-robin. */
+    private class Acceptor implements EventLoop.Handler {
+        private final ServerSocketChannel server;
+
+        Acceptor(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                Connection.accepted(loop, channel, Router.this);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Connection connection, String message) {
+        String command = message.split(" ")[0];
+        try {
+            switch (command) {
+                case "REGISTER" -> handleRegister(message);
+                case "DISCONNECT" -> handleDisconnect(message);
+                case "PING" -> handlePing(message, connection);
+                case "PONG" -> handlePong(message, connection);
+                default -> System.err.println("Unknown command: " + command);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Malformed message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+    }
+
+    private void handleRegister(String msg) {
+        String[] parts = msg.split(" ");
+        int ip = Addr.parseIp(parts[1]);
+        long mac = Addr.parseMac(parts[2]);
+        int port = Integer.parseInt(parts[3]);
+
+        synchronized (ipTable) {
+            ClientInfo existing = ipTable.get(ip);
+            if (existing != null && existing.mac != mac) {
+                System.err.println("IP conflict: " + parts[1] + " already registered with different MAC.");
+                return;
+            }
+
+            long macIp = macTable.get(mac);
+            if (macIp != LongLongMap.NO_VALUE && macIp != Addr.ipKey(ip)) {
+                System.err.println("MAC conflict: " + parts[2] + " already used by another IP.");
+                return;
+            }
+
+            ClientInfo info = new ClientInfo(ip, mac, port);
+            ipTable.put(ip, info);
+            arpTable.put(Addr.ipKey(ip), mac);
+            macTable.put(mac, Addr.ipKey(ip));
+            if (existing == null || existing.port != port) record(STATE_HOST, ip, mac << 16 | port);
+        }
+
+        System.out.println("Registered: IP=" + Addr.formatIp(ip) + " MAC=" + Addr.formatMac(mac) + " Port=" + port);
+    }
+
+    private void handleDisconnect(String msg) {
+        String[] parts = msg.split(" ");
+        String ip = parts[1];
+        ClientInfo removed;
+        synchronized (ipTable) {
+            removed = ipTable.remove(Addr.parseIp(ip));
+            if (removed != null) {
+                arpTable.remove(Addr.ipKey(removed.ip));
+                macTable.remove(removed.mac);
+                record(STATE_HOST_REMOVED, removed.ip, 0);
+            }
+        }
+        if (removed != null) {
+            NatShard shard = natShard(removed.ip);
+            synchronized (shard) {
+                HostMappings host = shard.natHosts.get(removed.ip);
+                while (host != null && host.count > 0) {
+                    long from = host.endpoints[host.count - 1];
+                    removeMapping(from);
+                    record(STATE_NAT_REMOVED, from, 0);
+                }
+            }
+            System.out.println("Disconnected: IP=" + ip);
+        }
+    }
+
+    /** The NAT shard of a private host; neighbouring addresses go to different shards. */
+    private NatShard natShard(int privateIp) {
+        return natShards[(int) (((privateIp * 0x9E3779B9) & 0xFFFFFFFFL) % natShards.length)];
+    }
+
+    /** The shard holding the mapping of a public endpoint, null if the port is not mapped. */
+    private NatShard publicShard(long publicEndpoint) {
+        AtomicIntegerArray owners = portShards.get((int) (publicEndpoint >>> 16));
+        int owner = owners == null ? 0 : owners.get((int) (publicEndpoint & 0xFFFF));
+        return owner == 0 ? null : natShards[owner - 1];
+    }
+
+    /** Set while the port is still taken, so a port handed out again never points to the old shard. */
+    private void setPublicShard(long publicEndpoint, NatShard shard) {
+        AtomicIntegerArray owners = portShards.get((int) (publicEndpoint >>> 16));
+        if (owners != null) owners.set((int) (publicEndpoint & 0xFFFF), shard == null ? 0 : shard.index + 1);
+    }
+
+    /**
+     * Adds or replaces the mapping of a private endpoint; the replaced public port goes back to the pool.
+     * A new mapping counts as used at now.
+     */
+    private void addMapping(long privateEndpoint, long publicEndpoint, long now) {
+        int ip = (int) (privateEndpoint >>> 16);
+        NatShard shard = natShard(ip);
+        synchronized (shard) {
+            long old = shard.natTable.put(privateEndpoint, publicEndpoint);
+            if (old != LongLongMap.NO_VALUE && old != publicEndpoint) {
+                setPublicShard(old, null);
+                ports.free(old);
+            }
+            setPublicShard(publicEndpoint, shard);
+            HostMappings host = shard.natHosts.get(ip);
+            if (host == null) {
+                host = new HostMappings(ip);
+                shard.natHosts.put(ip, host);
+            }
+            host.touch(privateEndpoint, now);
+            if (!host.scheduled) {
+                host.scheduled = true;
+                shard.natExpiry.schedule(host, now + natTimeoutMs);
+            }
+        }
+    }
+
+    /** @return the public endpoint of the removed mapping or {@link LongLongMap#NO_VALUE} */
+    private long removeMapping(long privateEndpoint) {
+        int ip = (int) (privateEndpoint >>> 16);
+        NatShard shard = natShard(ip);
+        synchronized (shard) {
+            long old = shard.natTable.remove(privateEndpoint);
+            if (old != LongLongMap.NO_VALUE) {
+                setPublicShard(old, null);
+                ports.free(old);
+                HostMappings host = shard.natHosts.get(ip);
+                host.remove(privateEndpoint);
+                if (host.count == 0) shard.natHosts.remove(ip);
+            }
+            return old;
+        }
+    }
+
+    /** Marks a mapping as used now, by traffic in either direction. Under the shard's monitor. */
+    private static void touchMapping(NatShard shard, long privateEndpoint, long now) {
+        HostMappings host = shard.natHosts.get((int) (privateEndpoint >>> 16));
+        if (host != null) host.touch(privateEndpoint, now);
+    }
+
+    /**
+     * Wheel callback, one per host with mappings: drops the host's mappings idle for longer than the
+     * timeout and schedules the next check for the earliest of the rest.
+     */
+    private void expireIdle(HostMappings host) {
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<>();
+        NatShard shard = natShard(host.ip);
+        synchronized (shard) {
+            host.scheduled = false;
+            if (shard.natHosts.get(host.ip) != host) return; // all its mappings were removed meanwhile
+            long next = Long.MAX_VALUE;
+            for (int i = host.count - 1; i >= 0; i--) {
+                long idleUntil = host.lastUsed[i] + natTimeoutMs;
+                if (idleUntil > now) {
+                    next = Math.min(next, idleUntil);
+                    continue;
+                }
+                long from = host.endpoints[i];
+                expired.add(formatEndpoint(from) + " -> " + formatEndpoint(removeMapping(from)));
+                record(STATE_NAT_REMOVED, from, 0);
+            }
+            if (host.count > 0) {
+                host.scheduled = true;
+                shard.natExpiry.schedule(host, next);
+            }
+        }
+        for (String mapping : expired) {
+            System.out.println("NAT mapping expired: " + mapping);
+        }
+    }
+
+    /**
+     * Expires idle mappings and sweeps the flow tables, one shard at a time; a tick looks at enough flows
+     * to cover a whole table within the shortest flow timeout.
+     */
+    private void natTick() {
+        long now = System.currentTimeMillis();
+        for (NatShard shard : natShards) {
+            shard.natExpiry.advance(now, this::expireIdle);
+            synchronized (shard) {
+                shard.flows.sweep(now, (int) (shard.maxFlows * NAT_TICK_MS / FLOW_CLOSING_TIMEOUT_MS) + 1);
+            }
+        }
+    }
+
+    /**
+     * Outbound half of connection tracking: finds or creates the flow of a private host and the
+     * endpoint-independent mapping (RFC 4787, REQ-1) it is translated with. The flow goes to an external
+     * node, or back in to the private endpoint target of a forwarding rule when a host reaches another
+     * one through the public address (hairpinning, REQ-9: the target sees the mapped source).
+     *
+     * @param target the forwarded private endpoint or {@link LongLongMap#NO_VALUE} for an external node
+     * @return the public endpoint, IP << 16 | port, or -1 if the packet is dropped
+     */
+    private long translateOutbound(ClientInfo from, int toIp, int toPort, long target) {
+        long natKey = Addr.ipKey(from.ip) << 16 | from.port;
+        long replySrc = target == LongLongMap.NO_VALUE ? FlowTable.endpoint(PROTO_ICMP, toIp, toPort)
+                : FlowTable.endpoint(PROTO_ICMP, (int) (target >>> 16), (int) (target & 0xFFFF));
+        long now = System.currentTimeMillis();
+        long mapped;
+        boolean added = false;
+        NatShard shard = natShard(from.ip);
+        synchronized (shard) {
+            mapped = shard.natTable.get(natKey);
+            if (mapped != LongLongMap.NO_VALUE) {
+                touchMapping(shard, natKey, now);
+            } else if ((mapped = ports.allocate(from.ip, from.port)) >= 0) {
+                addMapping(natKey, mapped, now);
+                record(STATE_NAT, natKey, mapped);
+                added = true;
+            }
+            if (mapped >= 0 && !trackFlow(shard, FlowTable.endpoint(PROTO_ICMP, from.ip, from.port),
+                    FlowTable.endpoint(0, toIp, toPort), replySrc, publicHalf(mapped), now)) {
+                System.err.println("Flow table of the shard is full (" + shard.maxFlows + " flows), PING from "
+                        + Addr.formatIp(from.ip) + " dropped.");
+                return -1;
+            }
+        }
+        if (mapped < 0) {
+            System.err.println("No free public ports left, PING from " + Addr.formatIp(from.ip) + " dropped.");
+            return -1;
+        }
+        if (added) System.out.println("NAT mapping added: " + formatEndpoint(natKey) + " -> " + formatEndpoint(mapped));
+        return mapped;
+    }
+
+    /**
+     * Port forwarding (DNAT): a PING from an external node to a forwarded public endpoint goes to the
+     * rule's private endpoint along a new flow, so the reply is translated back to the public endpoint.
+     * The flow belongs to the shard of the private endpoint, where its reply is looked up.
+     */
+    private void forwardInbound(int fromIp, int fromPort, long publicEndpoint, Connection source) {
+        long target = forwarding.lookup(publicEndpoint);
+        if (target == LongLongMap.NO_VALUE) {
+            System.err.println("No forwarding rule for " + formatEndpoint(publicEndpoint) + ", PING from " + Addr.formatIp(fromIp) + " dropped.");
+            return;
+        }
+        if (forwardTarget(target) == null) return;
+        boolean tracked;
+        NatShard shard = natShard((int) (target >>> 16));
+        synchronized (shard) {
+            tracked = trackFlow(shard, FlowTable.endpoint(PROTO_ICMP, fromIp, fromPort), publicHalf(publicEndpoint),
+                    FlowTable.endpoint(PROTO_ICMP, (int) (target >>> 16), (int) (target & 0xFFFF)),
+                    FlowTable.endpoint(0, fromIp, fromPort), System.currentTimeMillis());
+        }
+        if (!tracked) {
+            System.err.println("Flow table of the shard is full (" + shard.maxFlows + " flows), PING from "
+                    + Addr.formatIp(fromIp) + " dropped.");
+            return;
+        }
+        System.out.println("Forwarded: " + formatEndpoint(publicEndpoint) + " -> " + formatEndpoint(target));
+        sendMessage((int) (target & 0xFFFF), "PING_FROM " + Addr.formatIp(fromIp), source);
+    }
+
+    /** The host a forwarding rule points to, if it is registered with the rule's port. */
+    private ClientInfo forwardTarget(long target) {
+        ClientInfo to = lookup((int) (target >>> 16));
+        if (to == null || to.port != (int) (target & 0xFFFF)) {
+            System.err.println("Forwarding target " + formatEndpoint(target) + " is not registered.");
+            return null;
+        }
+        return to;
+    }
+
+    /**
+     * Refreshes the flow with this original tuple, or starts it over in state NEW if there is none, it is
+     * closing or its reply tuple changed (the mapping was released or replaced). A flow left in this shard
+     * with the same reply tuple by an earlier owner of the public port is dropped; one left in another
+     * shard is no longer reached by replies and just expires. Under the shard's monitor.
+     *
+     * @return false if the shard's flow table is full
+     */
+    private boolean trackFlow(NatShard shard, long src, long dst, long replySrc, long replyDst, long now) {
+        FlowTable flows = shard.flows;
+        int entry = flows.find(src, dst);
+        if (entry >= 0) {
+            int id = entry >>> 1;
+            byte state = flows.state(id);
+            if ((entry & 1) == 0 && state != FlowTable.CLOSING && flows.replySrc(id) == replySrc && flows.replyDst(id) == replyDst) {
+                flows.update(id, state, now + (state == FlowTable.ESTABLISHED ? natTimeoutMs : FLOW_NEW_TIMEOUT_MS));
+                return true;
+            }
+            flows.remove(id);
+        }
+        int stale = flows.find(replySrc, replyDst);
+        if (stale >= 0) flows.remove(stale >>> 1);
+        return flows.add(src, dst, replySrc, replyDst, now + FLOW_NEW_TIMEOUT_MS) >= 0;
+    }
+
+    /**
+     * Reply half: a packet coming back is let in only along a tracked flow, which becomes established.
+     * A reply to a public endpoint also needs the mapping the flow was created with; if it is gone,
+     * the flow moves to CLOSING and its packets are dropped until it expires. Such a reply is looked up in
+     * the shard that holds the public port, any other in the shard of the private host sending it.
+     *
+     * @return the original source and destination of the flow, IP << 16 | port each, or null if the
+     * packet is dropped
+     */
+    private long[] translateReply(int fromIp, int fromPort, int toIp, int toPort) {
+        long now = System.currentTimeMillis();
+        boolean toPublic = ports.isPublic(toIp);
+        NatShard shard = toPublic ? publicShard(Addr.ipKey(toIp) << 16 | toPort) : natShard(fromIp);
+        if (shard == null) return null;
+        synchronized (shard) {
+            FlowTable flows = shard.flows;
+            int entry = flows.find(FlowTable.endpoint(PROTO_ICMP, fromIp, fromPort), FlowTable.endpoint(0, toIp, toPort));
+            if (entry < 0 || (entry & 1) == 0) return null;
+            int id = entry >>> 1;
+            if (flows.state(id) == FlowTable.CLOSING) return null;
+            long natKey = endpointOf(flows.origSrc(id));
+            if (toPublic) {
+                if (shard.natTable.get(natKey) != (Addr.ipKey(toIp) << 16 | toPort)) {
+                    flows.update(id, FlowTable.CLOSING, now + FLOW_CLOSING_TIMEOUT_MS);
+                    return null;
+                }
+                touchMapping(shard, natKey, now);
+            }
+            flows.update(id, FlowTable.ESTABLISHED, now + natTimeoutMs);
+            return new long[]{natKey, endpointOf(flows.origDst(id))};
+        }
+    }
+
+    /** A half of a flow tuple as IP << 16 | port. */
+    private static long endpointOf(long half) {
+        return (half & 0xFFFFFFFFL) << 16 | (half >>> 32 & 0xFFFF);
+    }
+
+    /** A public endpoint, IP << 16 | port, as the destination half of a flow tuple. */
+    private static long publicHalf(long endpoint) {
+        return FlowTable.endpoint(0, (int) (endpoint >>> 16), (int) (endpoint & 0xFFFF));
+    }
+
+    private void record(int type, long key, long value) {
+        TableLog log = state;
+        if (log == null) return;
+        try {
+            log.append(type, key, value);
+        } catch (IOException e) {
+            System.err.println("Failed to write the table log: " + e.getMessage());
+        }
+    }
+
+    private void flushState() {
+        try {
+            state.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write the table log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hosts are collected under the ipTable monitor together with the log rotation, NAT mappings shard by
+     * shard; mappings changed between the rotation and their copy end up in both the snapshot and the new
+     * log and are simply replayed twice.
+     */
+    private void snapshot() {
+        try {
+            long gen;
+            ByteBuffer hosts;
+            synchronized (ipTable) {
+                gen = state.rotate();
+                hosts = ByteBuffer.allocate(ipTable.size() * TableLog.RECORD_BYTES);
+                ipTable.forEach((ip, info) -> TableLog.put(hosts, STATE_HOST, ip, info.mac << 16 | info.port));
+            }
+            List<ByteBuffer> parts = new ArrayList<>();
+            parts.add(hosts.flip());
+            for (NatShard shard : natShards) {
+                synchronized (shard) {
+                    ByteBuffer nat = ByteBuffer.allocate(shard.natTable.size() * TableLog.RECORD_BYTES);
+                    shard.natTable.forEach((from, to) -> TableLog.put(nat, STATE_NAT, from, to));
+                    parts.add(nat.flip());
+                }
+            }
+            state.writeSnapshot(gen, parts);
+        } catch (IOException e) {
+            System.err.println("Failed to save a table snapshot: " + e.getMessage());
+        }
+    }
+
+    /** Restored hosts that never registered again are dropped if nothing accepts connections on their port. */
+    private void verifyRestored() {
+        List<ClientInfo> restored = new ArrayList<>();
+        synchronized (ipTable) {
+            ipTable.forEach((ip, info) -> {
+                if (info.restored) restored.add(info);
+            });
+        }
+        for (ClientInfo info : restored) {
+            if (isListening(info.port)) continue;
+            synchronized (ipTable) {
+                if (ipTable.get(info.ip) != info) continue; // registered again meanwhile
+                ipTable.remove(info.ip);
+                arpTable.remove(Addr.ipKey(info.ip));
+                macTable.remove(info.mac);
+                record(STATE_HOST_REMOVED, info.ip, 0);
+            }
+            System.err.println("Host " + Addr.formatIp(info.ip) + " does not accept connections on port " + info.port
+                    + " after the router restart, removed.");
+        }
+    }
+
+    private static boolean isListening(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** "a.b.c.d:port" as IP << 16 | port. */
+    private static long parseEndpoint(String endpoint) {
+        int colon = endpoint.indexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Invalid endpoint: " + endpoint);
+        int port = Integer.parseInt(endpoint.substring(colon + 1));
+        if (port < 0 || port > 0xFFFF) throw new IllegalArgumentException("Invalid port: " + endpoint);
+        return (Addr.ipKey(Addr.parseIp(endpoint.substring(0, colon))) << 16) | port;
+    }
+
+    private static String formatEndpoint(long endpoint) {
+        return Addr.formatIp((int) (endpoint >>> 16)) + ":" + (endpoint & 0xFFFF);
+    }
+
+    private ClientInfo lookup(int ip) {
+        synchronized (ipTable) {
+            return ipTable.get(ip);
+        }
+    }
+
+    private void handlePing(String msg, Connection source) {
+        String[] parts = msg.split(" ");
+        String fromIP = parts[1];
+        String toIP = parts[2];
+        int fromIp = Addr.parseIp(fromIP);
+        int toIp = Addr.parseIp(toIP.split(":")[0]);
+        boolean toPublic = ports.isPublic(toIp);
+
+        ClientInfo from = lookup(fromIp);
+        if (from == null) {
+            long externalPort = externals.get(Addr.ipKey(fromIp));
+            if (externalPort != LongLongMap.NO_VALUE && toPublic) {
+                forwardInbound(fromIp, (int) externalPort, parseEndpoint(toIP), source);
+            } else {
+                System.err.println("Source node " + fromIP + " not found in IP table.");
+            }
+            return;
+        }
+
+        if (toPublic) {
+            // hairpin: a private host reaches a forwarded port of the router's own public address
+            long publicEndpoint = parseEndpoint(toIP);
+            long target = forwarding.lookup(publicEndpoint);
+            if (target == LongLongMap.NO_VALUE) {
+                System.err.println("No forwarding rule for " + toIP + ", PING from " + fromIP + " dropped.");
+                return;
+            }
+            if (forwardTarget(target) == null) return;
+            long mapped = translateOutbound(from, toIp, (int) (publicEndpoint & 0xFFFF), target);
+            if (mapped < 0) return;
+            System.out.println("Hairpin: " + fromIP + " -> " + toIP + " -> " + formatEndpoint(target));
+            sendMessage((int) (target & 0xFFFF), "PING_FROM " + formatEndpoint(mapped), source);
+            return;
+        }
+
+        String message;
+        long externalPort = externals.get(Addr.ipKey(toIp));
+
+        if (isPrivate(from.ip) && externalPort != LongLongMap.NO_VALUE) {
+            long mapped = translateOutbound(from, toIp, (int) externalPort, LongLongMap.NO_VALUE);
+            if (mapped < 0) return;
+            message = "PING_FROM " + formatEndpoint(mapped);
+        } else{
+            message = "PING_FROM " + fromIP;
+
+        }
+
+        if (externalPort != LongLongMap.NO_VALUE) {
+            sendMessage((int) externalPort, message, source);
+        } else {
+            ClientInfo to = lookup(toIp);
+            if (to != null) {
+                sendMessage(to.port, message, source);
+            } else {
+                System.err.println("Destination node " + toIP + " not found in IP table.");
+            }
+        }
+    }
+
+    /**
+     * A PONG to a public endpoint answers an outbound or hairpin flow, a PONG from a private host to an
+     * external node answers a forwarded one; either way it is translated back along the flow and the
+     * sender is shown as the endpoint the PING was sent to.
+     */
+    private void handlePong(String msg, Connection source) {
+        String[] parts = msg.split(" ");
+        String fromIP = parts[1];
+        String[] toIpPort = parts[2].split(":");
+        int fromIp = Addr.parseIp(fromIP);
+        int toIp = Addr.parseIp(toIpPort[0]);
+        long externalPort = externals.get(Addr.ipKey(toIp));
+
+        if (ports.isPublic(toIp) || externalPort != LongLongMap.NO_VALUE) {
+            int fromPort = portOf(fromIp);
+            int toPort = externalPort != LongLongMap.NO_VALUE ? (int) externalPort
+                    : toIpPort.length == 2 ? (int) (parseEndpoint(parts[2]) & 0xFFFF) : -1;
+            long[] flow = fromPort < 0 || toPort < 0 ? null : translateReply(fromIp, fromPort, toIp, toPort);
+
+            if (flow != null) {
+                long shown = flow[1];
+                String sender = ports.isPublic((int) (shown >>> 16)) ? formatEndpoint(shown) : Addr.formatIp((int) (shown >>> 16));
+                sendMessage((int) (flow[0] & 0xFFFF), "PONG_FROM " + sender, source);
+            } else {
+                System.err.println("No NAT flow found for PONG to " + parts[2] + " from " + fromIP);
+            }
+        } else {
+            // local-to-local PONG
+            String toIP = toIpPort[0];
+            ClientInfo to = lookup(toIp);
+            if (to != null) {
+                sendMessage(to.port, "PONG_FROM " + fromIP, source);
+            } else {
+                System.err.println("Destination node " + toIP + " not found in IP table.");
+            }
+        }
+    }
+
+    /** The port an external node or a registered host listens on, -1 if the address is unknown. */
+    private int portOf(int ip) {
+        long externalPort = externals.get(Addr.ipKey(ip));
+        if (externalPort != LongLongMap.NO_VALUE) return (int) externalPort;
+        ClientInfo info = lookup(ip);
+        return info == null ? -1 : info.port;
+    }
+
+    /** Each message gets its own non-blocking connection, opened on the source's loop. */
+    private void sendMessage(int port, String msg, Connection source) {
+        try {
+            Connection conn = Connection.connect(source.loop, port, this);
+            String ipForPort = getIpForPort(port);
+            System.out.println("Sending to IP=" + ipForPort + " Port=" + port + ": " + msg);
+            if (!conn.send(msg)) {
+                System.err.println("Queue to port " + port + " is full, message dropped.");
+            }
+            conn.closeAfterFlush();
+        } catch (IOException e) {
+            System.err.println("Error sending to port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private String getIpForPort(int port) {
+        String[] found = {"unknown"};
+        externals.forEach((ip, externalPort) -> {
+            if (externalPort == port) found[0] = Addr.formatIp((int) ip);
+        });
+        synchronized (ipTable) {
+            ipTable.forEach((ip, info) -> {
+                if (info.port == port) found[0] = Addr.formatIp(ip);
+            });
+        }
+        return found[0];
+    }
+
+    private boolean isPrivate(int ip) {
+        for (Prefix network : privateNetworks) {
+            if (network.contains(ip)) return true;
+        }
+        return false;
+    }
+
+    private void shutdown() {
+        timer.shutdownNow();
+        if (state != null) {
+            snapshots.shutdownNow();
+            try {
+                snapshots.awaitTermination(1, TimeUnit.SECONDS);
+                snapshot();
+                state.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the table log: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        System.out.println("Router shut down");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            printUsage();
+            return;
+        }
+        String[] publicIps = {DEFAULT_PUBLIC_IP};
+        PortAllocator.Policy policy = PortAllocator.Policy.ANY;
+        long natTimeoutMs = DEFAULT_NAT_TIMEOUT_MS;
+        int maxFlows = DEFAULT_MAX_FLOWS;
+        String externalNodes = DEFAULT_EXTERNALS;
+        String privateNets = DEFAULT_PRIVATE_NETWORKS;
+        List<String> forwardRules = new ArrayList<>();
+        Path stateBase = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--state" -> stateBase = Path.of(args[++i]);
+                    case "--public" -> publicIps = args[++i].split(",");
+                    case "--ports" -> policy = PortAllocator.Policy.parse(args[++i]);
+                    case "--nat-timeout" -> natTimeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(args[++i]));
+                    case "--max-flows" -> maxFlows = Integer.parseInt(args[++i]);
+                    case "--external" -> externalNodes = args[++i];
+                    case "--private" -> privateNets = args[++i];
+                    case "--forward" -> forwardRules.addAll(Arrays.asList(args[++i].split(",")));
+                    case "--forward-file" -> {
+                        for (String line : Files.readAllLines(Path.of(args[++i]))) {
+                            line = line.trim();
+                            if (!line.isEmpty() && !line.startsWith("#")) forwardRules.add(line);
+                        }
+                    }
+                    default -> {
+                        printUsage();
+                        return;
+                    }
+                }
+            }
+            int[] pool = new int[publicIps.length];
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = Addr.parseIp(publicIps[i]);
+            }
+            Router router = new Router(Integer.parseInt(args[0]), new PortAllocator(pool, policy), natTimeoutMs, maxFlows);
+            for (String external : externalNodes.split(",")) {
+                long endpoint = parseEndpoint(external);
+                router.addExternal((int) (endpoint >>> 16), (int) (endpoint & 0xFFFF));
+            }
+            router.setPrivateNetworks(Prefix.parseList(privateNets));
+            router.setForwarding(PortForwarding.compile(forwardRules));
+            if (stateBase != null) router.persist(stateBase);
+            router.start();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java Router <Port> [--state <table file prefix>] [--public <IP>[,<IP>...]]"
+                + " [--ports <low>-<high>[/parity]] [--nat-timeout <seconds>] [--max-flows <N>]"
+                + " [--external <IP>:<port>[,...]] [--private <network>/<prefix>[,...]]"
+                + " [--forward <public IP>:<port>[-<port>]=<private IP>:<port>[,...]] [--forward-file <file>]");
+        System.out.println("  A forwarding rule targets the listen port the host registered with: start it as"
+                + " java Client <RouterPort> <MAC> <private IP> <port>.");
+    }
+
+    /** An IPv4 network, "a.b.c.d/n". */
+    static final class Prefix {
+        final int network;
+        final int mask;
+
+        Prefix(int network, int prefixLength) {
+            if (prefixLength < 0 || prefixLength > 32) throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+            this.mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            this.network = network & mask;
+        }
+
+        static Prefix parse(String s) {
+            int slash = s.indexOf('/');
+            if (slash < 0) throw new IllegalArgumentException("Invalid network: " + s);
+            return new Prefix(Addr.parseIp(s.substring(0, slash)), Integer.parseInt(s.substring(slash + 1)));
+        }
+
+        static Prefix[] parseList(String s) {
+            String[] parts = s.split(",");
+            Prefix[] prefixes = new Prefix[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                prefixes[i] = parse(parts[i]);
+            }
+            return prefixes;
+        }
+
+        boolean contains(int ip) {
+            return (ip & mask) == network;
+        }
+    }
+
+    /**
+     * NAT state of the private hosts that hash to it (see {@link #natShard}): their mappings, the wheel
+     * expiring them, and the flows they started or that were forwarded to them. Changes only under the
+     * shard's monitor, so hosts of different shards do not contend.
+     */
+    private static final class NatShard {
+        final int index;
+        final int maxFlows;
+        final LongLongMap natTable = new LongLongMap(); // private endpoint -> public endpoint
+        final IntObjectMap<HostMappings> natHosts = new IntObjectMap<>(); // private IP -> its mappings
+        final TimingWheel<HostMappings> natExpiry;
+        final FlowTable flows;
+
+        NatShard(int index, int maxFlows, long now) {
+            this.index = index;
+            this.maxFlows = maxFlows;
+            this.natExpiry = new TimingWheel<>(NAT_TICK_MS, 128, now);
+            this.flows = new FlowTable(maxFlows);
+        }
+    }
+
+    /** NAT mappings of one private host: released together on DISCONNECT and expired by one wheel entry. */
+    private static final class HostMappings {
+        final int ip;
+        long[] endpoints = new long[2]; // private endpoints
+        long[] lastUsed = new long[2];
+        int count;
+        boolean scheduled; // an expiry check for this host is on the wheel
+
+        HostMappings(int ip) {
+            this.ip = ip;
+        }
+
+        void touch(long endpoint, long now) {
+            for (int i = 0; i < count; i++) {
+                if (endpoints[i] == endpoint) {
+                    lastUsed[i] = now;
+                    return;
+                }
+            }
+            if (count == endpoints.length) {
+                endpoints = Arrays.copyOf(endpoints, count * 2);
+                lastUsed = Arrays.copyOf(lastUsed, count * 2);
+            }
+            endpoints[count] = endpoint;
+            lastUsed[count++] = now;
+        }
+
+        void remove(long endpoint) {
+            for (int i = 0; i < count; i++) {
+                if (endpoints[i] == endpoint) {
+                    count--;
+                    endpoints[i] = endpoints[count];
+                    lastUsed[i] = lastUsed[count];
+                    return;
+                }
+            }
+        }
+    }
+
+    static class ClientInfo {
+        int ip;
+        long mac;
+        int port;
+        boolean restored; // loaded from the previous run's snapshot, not registered again yet
+
+        ClientInfo(int ip, long mac, int port) {
+            this.ip = ip;
+            this.mac = mac;
+            this.port = port;
+        }
+    }
 }
\ No newline at end of file
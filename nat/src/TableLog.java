@@ -0,0 +1,193 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Router tables on disk: a compact snapshot {@code <base>.snap} plus a log of changes made after it,
+ * {@code <base>.log.<generation>}. Both hold {@link #RECORD_BYTES}-byte records: type, key, value —
+ * their meaning is up to the owner. The log is appended on every change; a snapshot is written in full
+ * to a temporary file that atomically replaces the old one, while the log moves to a new generation,
+ * so loading replays only the snapshot's generation and later ones on top of it.
+ * On start both are read through mmap, without copying them to the heap.
+ */
+final class TableLog implements Closeable {
+    static final int RECORD_BYTES = 1 + 8 + 8;
+    private static final int MAGIC = 0x52544C31; // "RTL1"
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 8; // magic, generation, record count, CRC32 of records
+    private static final int LOG_BUFFER_BYTES = 64 * 1024;
+
+    /** Receives records on load, in the order they were written. */
+    interface Replay {
+        void apply(int type, long key, long value);
+    }
+
+    private final Path snapshotFile;
+    private final Path directory;
+    private final String logPrefix;
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+    private FileChannel log;
+    private long generation;
+
+    TableLog(Path base) {
+        Path absolute = base.toAbsolutePath();
+        this.directory = absolute.getParent();
+        this.snapshotFile = absolute.resolveSibling(absolute.getFileName() + ".snap");
+        this.logPrefix = absolute.getFileName() + ".log.";
+    }
+
+    /**
+     * Replays the snapshot and the logs of its generation and later, then opens a log of a new
+     * generation for writing. A corrupt snapshot is skipped, and so is a torn last log record.
+     *
+     * @return number of records replayed
+     */
+    synchronized long load(Replay replay) throws IOException {
+        Files.createDirectories(directory);
+        long records = 0;
+        long from = 0;
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (isValidSnapshot(map)) {
+                    from = map.getLong(4);
+                    records += replay(map.position(HEADER_BYTES), replay);
+                } else {
+                    System.err.println("Snapshot " + snapshotFile + " is corrupt, skipped.");
+                }
+            }
+        }
+        long last = from;
+        for (long gen : logGenerations()) {
+            last = Math.max(last, gen);
+            if (gen < from) continue;
+            try (FileChannel channel = FileChannel.open(logFile(gen), StandardOpenOption.READ)) {
+                records += replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), replay);
+            }
+        }
+        openLog(last + 1);
+        return records;
+    }
+
+    private static boolean isValidSnapshot(ByteBuffer map) {
+        if (map.limit() < HEADER_BYTES || map.getInt(0) != MAGIC) return false;
+        int count = map.getInt(12);
+        if (count < 0 || map.limit() != HEADER_BYTES + (long) count * RECORD_BYTES) return false;
+        CRC32 crc = new CRC32();
+        crc.update(map.duplicate().position(HEADER_BYTES));
+        return crc.getValue() == map.getLong(16);
+    }
+
+    private static long replay(ByteBuffer records, Replay replay) {
+        long n = 0;
+        while (records.remaining() >= RECORD_BYTES) {
+            replay.apply(records.get(), records.getLong(), records.getLong());
+            n++;
+        }
+        return n;
+    }
+
+    /** From any thread; the record reaches the file on {@link #flush} or when the buffer fills up. */
+    synchronized void append(int type, long key, long value) throws IOException {
+        if (log == null) return; // closed
+        if (logBuffer.remaining() < RECORD_BYTES) writeBuffer();
+        put(logBuffer, type, key, value);
+    }
+
+    synchronized void flush() throws IOException {
+        if (log != null) writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        logBuffer.flip();
+        while (logBuffer.hasRemaining()) {
+            log.write(logBuffer);
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Closes the current log and starts the next generation. A snapshot collected after this call
+     * is passed to {@link #writeSnapshot} with the returned generation.
+     */
+    synchronized long rotate() throws IOException {
+        if (log == null) throw new IOException("table log is closed");
+        writeBuffer();
+        log.close();
+        openLog(generation + 1);
+        return generation;
+    }
+
+    /**
+     * Writes a snapshot and deletes the logs it covers. Snapshots are written by one thread.
+     *
+     * @param parts back-to-back {@link #RECORD_BYTES}-byte records, each part from position to limit
+     */
+    void writeSnapshot(long gen, List<ByteBuffer> parts) throws IOException {
+        CRC32 crc = new CRC32();
+        long bytes = 0;
+        for (ByteBuffer part : parts) {
+            bytes += part.remaining();
+            crc.update(part.duplicate());
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC).putLong(gen).putInt((int) (bytes / RECORD_BYTES)).putLong(crc.getValue()).flip();
+        ByteBuffer[] all = new ByteBuffer[parts.size() + 1];
+        all[0] = header;
+        for (int i = 0; i < parts.size(); i++) {
+            all[i + 1] = parts.get(i).duplicate();
+        }
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long left = HEADER_BYTES + bytes;
+            while (left > 0) {
+                left -= channel.write(all);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long old : logGenerations()) {
+            if (old < gen) Files.deleteIfExists(logFile(old));
+        }
+    }
+
+    static void put(ByteBuffer records, int type, long key, long value) {
+        records.put((byte) type).putLong(key).putLong(value);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log == null) return;
+        writeBuffer();
+        log.close();
+        log = null;
+    }
+
+    private void openLog(long gen) throws IOException {
+        generation = gen;
+        log = FileChannel.open(logFile(gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path logFile(long gen) {
+        return directory.resolve(logPrefix + gen);
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, logPrefix + "*")) {
+            for (Path file : files) {
+                try {
+                    gens.add(Long.parseLong(file.getFileName().toString().substring(logPrefix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        gens.sort(null);
+        return gens;
+    }
+}
@@ -0,0 +1,68 @@
+public final class Addr {
+    /** 255.255.255.255 — все узлы роутера. */
+    public static final int BROADCAST = -1;
+
+    private Addr() {
+    }
+
+    /** Адрес группы из 224.0.0.0/4. */
+    public static boolean isMulticast(int ip) {
+        return ip >>> 28 == 0xE;
+    }
+
+    public static int parseIp(String s) {
+        if (s == null) throw new IllegalArgumentException("Пустой IP-адрес");
+        int ip = 0, octet = -1, dots = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) throw new IllegalArgumentException("Некорректный IP-адрес: " + s);
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                ip = (ip << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                throw new IllegalArgumentException("Некорректный IP-адрес: " + s);
+            }
+        }
+        if (dots != 3 || octet < 0) throw new IllegalArgumentException("Некорректный IP-адрес: " + s);
+        return (ip << 8) | octet;
+    }
+
+    public static String formatIp(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /** IPv4 как неотрицательный long — для ключей {@link LongLongMap}. */
+    public static long ipKey(int ip) {
+        return ip & 0xFFFFFFFFL;
+    }
+
+    public static long parseMac(String s) {
+        if (s == null || s.length() != 17) throw new IllegalArgumentException("Некорректный MAC-адрес: " + s);
+        long mac = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = s.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') throw new IllegalArgumentException("Некорректный MAC-адрес: " + s);
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) throw new IllegalArgumentException("Некорректный MAC-адрес: " + s);
+            mac = (mac << 4) | digit;
+        }
+        return mac;
+    }
+
+    public static String formatMac(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (mac >>> shift) & 0xFF;
+            if (sb.length() > 0) sb.append(':');
+            sb.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+        return sb.toString();
+    }
+}
@@ -1,133 +1,406 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-
-public class ClientComputer {
-    private final String ipAddress;
-    private final String macAddress;
-    private final int listenPort;
-    private final String routerHost = "localhost";
-    private final int routerPort;
-    private ServerSocket serverSocket;
-
-    public ClientComputer(String routerPortStr, String mac, String ip) throws IOException {
-        this.routerPort = Integer.parseInt(routerPortStr);
-        this.macAddress = mac;
-        this.ipAddress = ip;
-        this.listenPort = 6000 + new Random().nextInt(1000);
-
-        registerWithRouter();
-        startListeningThread();
-    }
-
-    private void registerWithRouter() throws IOException {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("REGISTER " + ipAddress + " " + macAddress + " " + listenPort);
-        }
-    }
-
-    private void startListeningThread() {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(listenPort);
-                System.out.println("Слушаю входящие соединения на порту " + listenPort);
-
-                while (!serverSocket.isClosed()) {
-                    try (Socket socket = serverSocket.accept();
-                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                        String msg = in.readLine();
-                        handleIncomingMessage(msg);
-                    }
-                }
-
-            } catch (IOException e) {
-                System.err.println("Слушающий поток остановлен: " + e.getMessage());
-            }
-        }).start();
-    }
-
-    private void handleIncomingMessage(String msg) {
-        if (msg == null) return;
-
-        if (msg.startsWith("PING")) {
-            String fromIP = msg.split(" ")[1];
-            System.out.println("Получен PING от " + fromIP);
-            sendPongBack(fromIP);
-        } else if (msg.startsWith("PONG")) {
-            String fromIP = msg.split(" ")[1];
-            System.out.println("Получен PONG от " + fromIP);
-        } else {
-            System.out.println("Неизвестное сообщение: " + msg);
-        }
-    }
-
-    private void sendPing(String targetIP) {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("PING " + ipAddress + " " + targetIP);
-        } catch (IOException e) {
-            System.err.println("Не удалось отправить PING: " + e.getMessage());
-        }
-    }
-
-    private void sendPongBack(String targetIP) {
-        try (Socket socket = new Socket("localhost", routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("PONG " + ipAddress + " " + targetIP);
-        } catch (IOException e) {
-            System.err.println("Не удалось отправить PONG клиенту " + targetIP + ": " + e.getMessage());
-        }
-    }
-
-    private void disconnect() {
-        try (Socket socket = new Socket(routerHost, routerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("DISCONNECT " + ipAddress);
-            System.out.println("Отключение клиента...");
-
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-
-        } catch (IOException e) {
-            System.err.println("Ошибка отключения: " + e.getMessage());
-        }
-    }
-
-    public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Использование: java ClientComputer <RouterPort> <MAC> <IP>");
-            return;
-        }
-
-        try {
-            ClientComputer client = new ClientComputer(args[0], args[1], args[2]);
-            Scanner scanner = new Scanner(System.in);
-
-            while (true) {
-                System.out.print("> ");
-                String input = scanner.nextLine().trim().toLowerCase();
-
-                if (input.equals("exit")) {
-                    client.disconnect();
-                    break;
-                } else if (input.startsWith("ping ")) {
-                    String[] parts = input.split(" ");
-                    if (parts.length == 2) {
-                        client.sendPing(parts[1]);
-                    } else {
-                        System.out.println("Использование: ping <IP>");
-                    }
-                } else {
-                    System.out.println("Неизвестная команда. Используйте 'ping <IP>' или 'exit'.");
-                }
-            }
-
-            System.exit(0);
-
-        } catch (IOException e) {
-            System.err.println("Ошибка инициализации клиента: " + e.getMessage());
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class ClientComputer {
+    private static final int PROBE_PAYLOAD = 8; // время отправки пробы, System.nanoTime()
+    private static final int FLOOD_WINDOW = 64; // проб без ответа в режиме -f
+    private static final long FLOOD_MIN_RATE_NS = TimeUnit.MILLISECONDS.toNanos(10); // как ping -f: не реже 100 проб в секунду
+    private static final long REPLY_TIMEOUT_MS = 2000;
+    private static final int FLOOD_DEFAULT_COUNT = 10000;
+    private static final long RECONNECT_DELAY_MS = 500;
+
+    private final String ipAddress;
+    private final int ip;
+    private final String macAddress;
+    private final boolean binary; // PING/PONG двоичными пакетами; false — текстовый режим совместимости
+    private final AtomicInteger nextSeq = new AtomicInteger();
+    private final String routerHost = "localhost";
+    private final int routerPort;
+    private volatile Socket routerSocket;
+    private volatile DataOutputStream out;
+    private volatile boolean closing;
+    private final Set<String> groups = ConcurrentHashMap.newKeySet(); // повторяются после переподключения
+    private volatile PingSession session;
+
+    public ClientComputer(String routerPortStr, String mac, String ip, boolean binary) throws IOException {
+        this.routerPort = Integer.parseInt(routerPortStr);
+        this.macAddress = mac;
+        this.ipAddress = ip;
+        this.ip = Addr.parseIp(ip);
+        this.binary = binary;
+        Trace.preload();
+
+        connect();
+        registerWithRouter();
+        startListeningThread();
+    }
+
+    /** Одно долгоживущее соединение: и запросы к роутеру, и входящие PING/PONG. */
+    private synchronized void connect() throws IOException {
+        Socket socket = new Socket(routerHost, routerPort);
+        socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.routerSocket = socket;
+    }
+
+    private synchronized void send(String msg) throws IOException {
+        Frames.write(out, msg);
+    }
+
+    private synchronized void send(ByteBuffer frame) throws IOException {
+        Frames.write(out, frame);
+    }
+
+    private void registerWithRouter() throws IOException {
+        send("REGISTER " + ipAddress + " " + macAddress + " 0" + (binary ? " BIN" : ""));
+    }
+
+    private void startListeningThread() {
+        new Thread(() -> {
+            do {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(routerSocket.getInputStream()))) {
+                    System.out.println("Подключён к роутеру " + routerHost + ":" + routerPort);
+
+                    ByteBuffer frame;
+                    while ((frame = Frames.readFrame(in)) != null) {
+                        if (Frames.isPacket(frame)) handleIncomingPacket(frame);
+                        else handleIncomingMessage(Frames.text(frame));
+                    }
+                    System.out.println("Роутер закрыл соединение.");
+
+                } catch (IOException e) {
+                    if (!closing) {
+                        System.err.println("Соединение с роутером потеряно: " + e.getMessage());
+                    }
+                }
+            } while (reconnect());
+        }).start();
+    }
+
+    /**
+     * Роутер перезапускается или соединение оборвалось: подключаемся, пока не выйдет, и повторяем REGISTER
+     * и JOIN. Роутер, сохранивший таблицы, держит адрес за узлом и копит сообщения ему до переподключения.
+     *
+     * @return false, если клиент завершает работу
+     */
+    private boolean reconnect() {
+        while (!closing) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+                connect();
+                registerWithRouter();
+                for (String group : groups) {
+                    send("JOIN " + group);
+                }
+                return true;
+            } catch (IOException e) {
+                // роутер ещё не поднялся
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void handleIncomingMessage(String msg) {
+        if (msg.startsWith("PING")) {
+            String fromIP = msg.split(" ")[1];
+            System.out.println("Получен PING от " + fromIP);
+            sendPongBack(fromIP);
+        } else if (msg.startsWith("PONG")) {
+            String fromIP = msg.split(" ")[1];
+            System.out.println("Получен PONG от " + fromIP);
+        } else if (msg.equals("HEARTBEAT")) {
+            try {
+                send("ALIVE");
+            } catch (IOException e) {
+                System.err.println("Не удалось ответить на HEARTBEAT: " + e.getMessage());
+            }
+        } else if (msg.startsWith("UNREACHABLE")) {
+            String ip = msg.split(" ")[1];
+            System.out.println("Узел " + ip + " недоступен.");
+            PingSession s = session;
+            if (s != null && s.target == Addr.parseIp(ip)) s.unreachable();
+        } else {
+            System.out.println("Неизвестное сообщение: " + msg);
+        }
+    }
+
+    private void handleIncomingPacket(ByteBuffer frame) {
+        String fromIP = Addr.formatIp(Packet.src(frame));
+        if (Packet.type(frame) == Packet.PING) {
+            System.out.println("Получен PING от " + fromIP + " seq=" + Packet.seq(frame));
+            Trace.Reply trace = new Trace.Reply();
+            trace.begin();
+            // ответ собирается в том же буфере: данные PING возвращаются отправителю без изменений;
+            // PING мог прийти на широковещательный адрес или адрес группы, поэтому отвечаем от своего
+            Packet.toReply(frame, Packet.PONG);
+            Packet.setSrc(frame, ip);
+            try {
+                send(frame);
+            } catch (IOException e) {
+                System.err.println("Не удалось отправить PONG клиенту " + fromIP + ": " + e.getMessage());
+            }
+            trace.commit(frame);
+        } else if (Packet.type(frame) == Packet.PONG) {
+            PingSession s = session;
+            if (s == null || !s.accept(frame)) {
+                System.out.println("Получен PONG от " + fromIP + " seq=" + Packet.seq(frame));
+            }
+        } else {
+            System.out.println("Неизвестный тип пакета: " + Packet.type(frame));
+        }
+    }
+
+    /** Текстовый PING без измерения RTT: в ответе нет ни номера, ни времени отправки. */
+    private void sendPing(String targetIP) {
+        try {
+            send("PING " + ipAddress + " " + targetIP);
+        } catch (IOException e) {
+            System.err.println("Не удалось отправить PING: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Серия из count проб с интервалом intervalNs (в режиме flood — следующая проба сразу после ответа,
+     * но не больше {@link #FLOOD_WINDOW} без ответа). В конце печатает потери, RTT и пропускную способность.
+     */
+    private void ping(String targetIP, int count, long intervalNs, boolean flood) {
+        int target;
+        try {
+            target = Addr.parseIp(targetIP);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Не удалось отправить PING: " + e.getMessage());
+            return;
+        }
+        PingSession s = new PingSession(target, nextSeq.getAndAdd(count), count, !flood);
+        session = s;
+        System.out.println("PING " + targetIP + ", проб: " + count + (flood ? ", режим flood" : ""));
+
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (flood) {
+                    s.awaitWindow();
+                } else if (i > 0) {
+                    LockSupport.parkNanos(start + i * intervalNs - System.nanoTime());
+                }
+                ByteBuffer probe = Packet.allocate(Packet.PING, ip, target, s.firstSeq + i, PROBE_PAYLOAD);
+                probe.putLong(Packet.PAYLOAD, System.nanoTime());
+                s.sent();
+                Trace.Send trace = new Trace.Send();
+                trace.begin();
+                send(probe);
+                trace.commit(probe);
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось отправить PING: " + e.getMessage());
+        }
+        s.awaitReplies();
+        session = null;
+        s.report(targetIP, start);
+    }
+
+    private void sendPongBack(String targetIP) {
+        try {
+            send("PONG " + ipAddress + " " + targetIP);
+        } catch (IOException e) {
+            System.err.println("Не удалось отправить PONG клиенту " + targetIP + ": " + e.getMessage());
+        }
+    }
+
+    /** ping [-c N] [-i сек] [-f] &lt;IP&gt;; без ключей — одна проба. */
+    private void pingCommand(String[] parts) {
+        int count = -1;
+        long intervalNs = TimeUnit.SECONDS.toNanos(1);
+        boolean flood = false;
+        String target = null;
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                switch (parts[i]) {
+                    case "-c" -> count = Integer.parseInt(parts[++i]);
+                    case "-i" -> intervalNs = (long) (Double.parseDouble(parts[++i]) * 1e9);
+                    case "-f" -> flood = true;
+                    default -> target = parts[i];
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            target = null;
+        }
+        if (target == null || count == 0 || count < -1 || intervalNs < 0) {
+            System.out.println("Использование: ping [-c N] [-i сек] [-f] <IP>");
+            return;
+        }
+        if (!binary) {
+            if (parts.length > 2) System.out.println("Ключи ping работают только в двоичном режиме, отправлена одна проба.");
+            sendPing(target);
+            return;
+        }
+        ping(target, count > 0 ? count : flood ? FLOOD_DEFAULT_COUNT : 1, intervalNs, flood);
+    }
+
+    /** join/leave &lt;группа&gt;: подписка на сообщения, отправленные на адрес группы 224.0.0.0/4. */
+    private void group(String[] parts) {
+        if (parts.length != 2) {
+            System.out.println("Использование: join <группа> | leave <группа>");
+            return;
+        }
+        try {
+            send(parts[0].toUpperCase() + " " + parts[1]);
+            if (parts[0].equals("join")) groups.add(parts[1]);
+            else groups.remove(parts[1]);
+        } catch (IOException e) {
+            System.err.println("Не удалось отправить " + parts[0] + ": " + e.getMessage());
+        }
+    }
+
+    private void disconnect() {
+        closing = true;
+        try {
+            send("DISCONNECT " + ipAddress);
+            System.out.println("Отключение клиента...");
+            routerSocket.close();
+        } catch (IOException e) {
+            System.err.println("Ошибка отключения: " + e.getMessage());
+        }
+    }
+
+    /** Пробы одного запуска ping: номера [firstSeq, firstSeq + count), в данных — время отправки. */
+    private static final class PingSession {
+        final int target;
+        final int firstSeq;
+        final int count;
+        final boolean verbose;
+        final LatencyHistogram rtt = new LatencyHistogram();
+        private int sent;
+        private int received;
+        private long lastEvent;
+        private boolean unreachable;
+
+        PingSession(int target, int firstSeq, int count, boolean verbose) {
+            this.target = target;
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.verbose = verbose;
+        }
+
+        synchronized void sent() {
+            sent++;
+            lastEvent = System.nanoTime();
+        }
+
+        /** @return false, если PONG не из этой серии. */
+        boolean accept(ByteBuffer frame) {
+            int index = Packet.seq(frame) - firstSeq;
+            if (index < 0 || index >= count || Packet.payloadLength(frame) < PROBE_PAYLOAD) return false;
+            long now = System.nanoTime();
+            long elapsed = now - frame.getLong(Packet.PAYLOAD);
+            rtt.record(elapsed);
+            Trace.Pong trace = new Trace.Pong();
+            if (trace.shouldCommit()) {
+                trace.id = Trace.id(frame);
+                trace.rtt = elapsed;
+                trace.commit();
+            }
+            if (verbose) {
+                System.out.printf("Ответ от %s: seq=%d ttl=%d время=%.3f мс%n",
+                        Addr.formatIp(Packet.src(frame)), index, Packet.ttl(frame), elapsed / 1e6);
+            }
+            synchronized (this) {
+                received++;
+                lastEvent = now;
+                notifyAll();
+            }
+            return true;
+        }
+
+        /** Роутер сообщил, что цель недоступна: ответов ждать незачем. */
+        synchronized void unreachable() {
+            unreachable = true;
+            notifyAll();
+        }
+
+        /** Ждёт, пока в пути меньше {@link #FLOOD_WINDOW} проб, но не дольше {@link #FLOOD_MIN_RATE_NS}. */
+        synchronized void awaitWindow() {
+            long deadline = System.nanoTime() + FLOOD_MIN_RATE_NS;
+            long left;
+            while (sent - received >= FLOOD_WINDOW && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Ждёт ответы на все отправленные пробы, пока они приходят не реже раза в {@link #REPLY_TIMEOUT_MS}.
+         * На широковещательный адрес или адрес группы ответов на пробу может быть много — ждём весь срок.
+         */
+        synchronized void awaitReplies() {
+            boolean group = target == Addr.BROADCAST || Addr.isMulticast(target);
+            long left;
+            while ((group || received < sent) && !unreachable
+                    && (left = lastEvent + TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MS) - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        synchronized void report(String targetIP, long start) {
+            long elapsed = Math.max(lastEvent - start, 1);
+            System.out.println("--- " + targetIP + ": статистика ping ---");
+            System.out.printf("передано %d, получено %d, потеряно %.1f%%, время %d мс%n",
+                    sent, received, sent == 0 ? 0 : Math.max(0, 100.0 * (sent - received) / sent), elapsed / 1_000_000);
+            if (received == 0) return;
+            System.out.printf("rtt мин/сред/макс/p99 = %.3f/%.3f/%.3f/%.3f мс%n",
+                    rtt.min() / 1e6, rtt.mean() / 1e6, rtt.max() / 1e6, rtt.percentile(0.99) / 1e6);
+            System.out.printf("пропускная способность %.0f ответов/с%n", received * 1e9 / elapsed);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 3 && !(args.length == 4 && args[3].equals("--text"))) {
+            System.out.println("Использование: java ClientComputer <RouterPort> <MAC> <IP> [--text]");
+            return;
+        }
+
+        try {
+            ClientComputer client = new ClientComputer(args[0], args[1], args[2], args.length == 3);
+            Scanner scanner = new Scanner(System.in);
+
+            while (true) {
+                System.out.print("> ");
+                String input = scanner.nextLine().trim().toLowerCase();
+
+                if (input.equals("exit")) {
+                    client.disconnect();
+                    break;
+                } else if (input.startsWith("ping ")) {
+                    client.pingCommand(input.split("\\s+"));
+                } else if (input.startsWith("join ") || input.startsWith("leave ")) {
+                    client.group(input.split("\\s+"));
+                } else {
+                    System.out.println("Неизвестная команда. Используйте 'ping [-c N] [-i сек] [-f] <IP>',"
+                            + " 'join <группа>', 'leave <группа>' или 'exit'.");
+                }
+            }
+
+            System.exit(0);
+
+        } catch (IOException e) {
+            System.err.println("Ошибка инициализации клиента: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Неблокирующее соединение, закреплённое за одним {@link EventLoop}; из обработчика его сообщения
+ * соединение можно перевести в другой цикл ({@link #moveTo}).
+ * <p>
+ * Входящие данные разбираются либо как кадры {@link Frames}, либо как строки старого протокола;
+ * формат определяется по первому байту. Исходящие сообщения копятся в ограниченной очереди:
+ * {@link #send} можно вызывать из любого потока, запись в сокет выполняет только поток цикла.
+ * Очередь сбрасывается одной задачей после обработки текущих событий цикла (или сразу, если в ней
+ * набралось {@link #BATCH_BYTES}), до {@link #MAX_GATHER} сообщений за одну gathering-запись.
+ * Порядок записи задаёт {@link EgressQueue}: управляющие сообщения первыми, остальные — по очереди
+ * между отправителями с учётом веса их {@link TrafficClass}.
+ * Если очередь отправителя выросла выше {@link #FLOW_HIGH_WATERMARK} или вся очередь выше
+ * {@link #HIGH_WATERMARK}, а отправитель занимает в ней больше средней доли, источник сообщений
+ * ставится на паузу ({@link #pauseUntilDrained}) и возобновляет чтение, когда очередь опустится
+ * ниже {@link #LOW_WATERMARK}.
+ */
+public class Connection implements EventLoop.Handler {
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    public static final int HIGH_WATERMARK = 256 * 1024;
+    public static final int LOW_WATERMARK = 64 * 1024;
+    /** Предел и порог паузы для одного отправителя в очереди соединения. */
+    public static final int MAX_FLOW_BYTES = 256 * 1024;
+    public static final int FLOW_HIGH_WATERMARK = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int SOCKET_SEND_BUFFER = 16 * 1024;
+    private static final int MAX_GATHER = 128;
+    private static final int BLOCKED_GATHER = 16; // пока сокет не успевает, берём из планировщика понемногу
+
+    enum Mode { DETECT, FRAMED, LINE }
+
+    public interface Listener {
+        void onMessage(Connection connection, String message);
+
+        /** Двоичный {@link Packet}; буфер действителен только до возврата, для хранения — {@link Packet#copy}. */
+        void onPacket(Connection connection, ByteBuffer frame);
+
+        void onClose(Connection connection);
+    }
+
+    final SocketChannel channel;
+    volatile EventLoop loop;
+    private EventLoop moveTarget; // только в потоке цикла: куда перейти после текущего события
+    private final Listener listener;
+    private SelectionKey key;
+    private volatile Mode mode;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final EgressQueue egress = new EgressQueue();
+    private final ArrayDeque<EgressQueue.Entry> pending = new ArrayDeque<>(); // только в потоке цикла: взято из egress, не дописано
+    private boolean writeBlocked; // только в потоке цикла: последняя запись упёрлась в буфер сокета
+    private int readPauses; // только в потоке цикла: сколько причин сейчас держат чтение
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // только в потоке цикла
+    private final List<Connection> pausedSources = new ArrayList<>();
+    private volatile boolean closeAfterFlush;
+    private volatile boolean closed;
+    private volatile boolean established;
+    private volatile Object attachment;
+
+    private Connection(EventLoop loop, SocketChannel channel, Mode mode, Listener listener) {
+        this.loop = loop;
+        this.channel = channel;
+        this.mode = mode;
+        this.listener = listener;
+    }
+
+    /** Принятое сервером соединение; формат определяется по первому байту. */
+    public static Connection accepted(EventLoop loop, SocketChannel channel, Listener listener) {
+        Connection connection = new Connection(loop, channel, Mode.DETECT, listener);
+        loop.execute(() -> connection.register(SelectionKey.OP_READ));
+        return connection;
+    }
+
+    /** Исходящее соединение старого протокола к клиенту, который слушает свой порт. */
+    public static Connection connect(EventLoop loop, int port, Listener listener) throws IOException {
+        return connect(loop, port, Mode.LINE, listener);
+    }
+
+    /** Исходящее постоянное соединение кадрами {@link Frames}, например к соседнему роутеру. */
+    public static Connection connectFramed(EventLoop loop, int port, Listener listener) throws IOException {
+        return connect(loop, port, Mode.FRAMED, listener);
+    }
+
+    private static Connection connect(EventLoop loop, int port, Mode mode, Listener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(loop, channel, mode, listener);
+        channel.connect(new InetSocketAddress("localhost", port));
+        loop.execute(() -> connection.register(SelectionKey.OP_CONNECT));
+        return connection;
+    }
+
+    private void register(int ops) {
+        try {
+            if (channel.isConnected()) ops = SelectionKey.OP_READ;
+            key = loop.register(channel, ops, this);
+            if (channel.isConnected()) {
+                established = true;
+                configureSocket();
+                flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Буфер отправки ядра ограничен {@link #SOCKET_SEND_BUFFER}: иначе он автоматически растёт до мегабайт,
+     * и очередь к медленному получателю копится в ядре в порядке поступления, где планировщик её не видит.
+     */
+    private void configureSocket() throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_SEND_BUFFER);
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /** Клиент говорит кадрами {@link Frames}; известно после первого прочитанного байта. */
+    public boolean isFramed() {
+        return mode == Mode.FRAMED;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Соединение было установлено; false после закрытия значит, что подключиться не удалось. */
+    public boolean wasEstablished() {
+        return established;
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (!channel.finishConnect()) return;
+            established = true;
+            configureSocket();
+            key.interestOps(readPauses == 0 ? SelectionKey.OP_READ : 0);
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) onReadable();
+        if (key.isValid() && key.isWritable()) flush();
+        if (moveTarget != null) migrate();
+    }
+
+    /**
+     * Только из обработчика сообщения этого соединения: после разбора текущей порции данных соединение
+     * переходит в цикл target, недочитанный хвост и очередь на запись переходят вместе с ним.
+     */
+    public void moveTo(EventLoop target) {
+        moveTarget = target == loop ? null : target;
+    }
+
+    private void migrate() {
+        EventLoop target = moveTarget;
+        moveTarget = null;
+        if (closed || key == null || !key.isValid()) return;
+        int ops = key.interestOps();
+        key.cancel();
+        key = null;
+        // регистрация ставится в очередь раньше, чем соединение станет видно в новом цикле,
+        // поэтому задачи, пришедшие туда через loop, выполнятся уже с новым ключом
+        target.execute(() -> {
+            if (closed) return;
+            try {
+                key = target.register(channel, ops, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            flush();
+        });
+        loop = target;
+    }
+
+    private void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        if (mode == Mode.DETECT && readBuffer.hasRemaining()) {
+            mode = readBuffer.get(0) == 0 ? Mode.FRAMED : Mode.LINE;
+        }
+        if (mode == Mode.FRAMED) decodeFrames();
+        else decodeLines();
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            // в буфер не поместилось одно сообщение целиком
+            if (readBuffer.capacity() >= Frames.MAX_FRAME + 4) throw new IOException("Слишком длинное сообщение");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, Frames.MAX_FRAME + 4));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    private void decodeFrames() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > Frames.MAX_FRAME) throw new IOException("Некорректная длина кадра: " + length);
+            if (readBuffer.remaining() < 4 + length) return;
+            int start = readBuffer.position();
+            readBuffer.position(start + 4 + length);
+            if (length >= Packet.PAYLOAD - 4 && Packet.isPacket(readBuffer.get(start + 4))) {
+                listener.onPacket(this, readBuffer.slice(start, 4 + length));
+            } else {
+                listener.onMessage(this, new String(readBuffer.array(), readBuffer.arrayOffset() + start + 4,
+                        length, StandardCharsets.UTF_8));
+            }
+            if (closed) return;
+        }
+    }
+
+    private void decodeLines() {
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') continue;
+            int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+            String message = new String(readBuffer.array(), readBuffer.arrayOffset() + start, end - start,
+                    StandardCharsets.UTF_8);
+            start = i + 1;
+            readBuffer.position(start);
+            listener.onMessage(this, message);
+            if (closed) return;
+        }
+    }
+
+    /** Кодирует сообщение в формате этого соединения и ставит в очередь. */
+    public boolean send(String message) {
+        return send(encode(message));
+    }
+
+    public ByteBuffer encode(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer;
+        if (mode == Mode.FRAMED) {
+            buffer = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+        } else {
+            buffer = ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n');
+        }
+        return buffer.flip();
+    }
+
+    /** Управляющее сообщение: уходит раньше всех, что стоят в очереди. */
+    public boolean sendControl(String message) {
+        return send(encode(message), 0, TrafficClass.CONTROL);
+    }
+
+    public boolean send(ByteBuffer buffer) {
+        return send(buffer, 0, TrafficClass.DEFAULT);
+    }
+
+    /**
+     * @param flow отправитель в планировщике, обычно его IP
+     * @return false, если соединение закрыто или очередь (вся или отправителя) заполнена — сообщение отброшено.
+     */
+    public boolean send(ByteBuffer buffer, int flow, TrafficClass cls) {
+        int size = buffer.remaining();
+        if (closed || queuedBytes.get() + size > MAX_QUEUED_BYTES || !egress.offer(buffer, flow, cls, MAX_FLOW_BYTES)) {
+            cls.dropped();
+            return false;
+        }
+        int queued = queuedBytes.addAndGet(size);
+        if (closed) egress.clear(); // закрылось между проверкой и постановкой в очередь
+        if (queued >= BATCH_BYTES && loop.inEventLoop() && !writeBlocked) { // упёрлись в сокет — ждём OP_WRITE
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    /**
+     * Отправителю пора на паузу: его очередь выше {@link #FLOW_HIGH_WATERMARK} или соединение перегружено,
+     * а он занимает больше средней доли. Тихих отправителей перегрузка от чужого потока не останавливает.
+     */
+    public boolean isCongested(int flow) {
+        return egress.isCongested(flow, FLOW_HIGH_WATERMARK, queuedBytes.get() > HIGH_WATERMARK);
+    }
+
+    /** Приостанавливает чтение из {@code source}, пока очередь этого соединения не разгрузится. */
+    public void pauseUntilDrained(Connection source) {
+        if (source == null || source == this) return;
+        synchronized (pausedSources) {
+            if (pausedSources.contains(source)) return;
+            pausedSources.add(source);
+        }
+        source.pauseReading();
+        // очередь могла разгрузиться до того, как источник попал в список
+        if (queuedBytes.get() < LOW_WATERMARK || closed) resumePausedSources();
+    }
+
+    private void resumePausedSources() {
+        List<Connection> sources;
+        synchronized (pausedSources) {
+            if (pausedSources.isEmpty()) return;
+            sources = new ArrayList<>(pausedSources);
+            pausedSources.clear();
+        }
+        for (Connection source : sources) {
+            source.resumeReading();
+        }
+    }
+
+    /**
+     * Приостанавливает чтение из соединения; из любого потока. Паузы считаются: чтение вернётся,
+     * когда каждая из них будет снята своим {@link #resumeReading()}.
+     */
+    public void pauseReading() {
+        changeReadPauses(1);
+    }
+
+    public void resumeReading() {
+        changeReadPauses(-1);
+    }
+
+    private void changeReadPauses(int delta) {
+        loop.execute(() -> {
+            if (!loop.inEventLoop()) { // соединение успело перейти в другой цикл
+                changeReadPauses(delta);
+                return;
+            }
+            readPauses += delta;
+            if (key == null || !key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(readPauses == 0 ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        });
+    }
+
+    /** Закрыть соединение, как только очередь будет записана. */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    private void flush() {
+        if (!loop.inEventLoop()) { // задача поставлена до перехода в другой цикл
+            loop.execute(this::flush);
+            return;
+        }
+        flushScheduled.set(false);
+        if (closed || key == null || !channel.isConnected()) return;
+        try {
+            while (true) {
+                if (pending.isEmpty()) egress.poll(pending, writeBlocked ? BLOCKED_GATHER : MAX_GATHER, BATCH_BYTES);
+                if (pending.isEmpty()) break;
+                int n = 0;
+                for (EgressQueue.Entry e : pending) {
+                    if (n == MAX_GATHER) break;
+                    gather[n++] = e.buffer;
+                }
+                Trace.Write trace = new Trace.Write();
+                trace.begin();
+                long written = channel.write(gather, 0, n);
+                trace.commit(n, written);
+                queuedBytes.addAndGet((int) -written);
+                boolean partial = gather[n - 1].hasRemaining();
+                Arrays.fill(gather, 0, n, null);
+                long now = System.nanoTime();
+                while (!pending.isEmpty() && !pending.peek().buffer.hasRemaining()) {
+                    EgressQueue.Entry e = pending.poll();
+                    e.cls.written(loop, now - e.enqueuedAt);
+                    Trace.written(e.buffer, now - e.enqueuedAt);
+                }
+                writeBlocked = partial;
+                if (partial) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (queuedBytes.get() < LOW_WATERMARK) resumePausedSources();
+        if (closeAfterFlush) close();
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        egress.clear();
+        for (EgressQueue.Entry e : pending) {
+            e.cls.dropped();
+        }
+        pending.clear();
+        queuedBytes.set(0);
+        resumePausedSources();
+        listener.onClose(this);
+    }
+}
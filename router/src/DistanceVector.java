@@ -0,0 +1,211 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Обмен маршрутами с соседними роутерами по схеме distance-vector, как в RIP. Сообщение соседу:
+ * <pre>
+ * UPDATE &lt;порт отправителя&gt; &lt;сеть/длина&gt; &lt;метрика&gt; [&lt;сеть/длина&gt; &lt;метрика&gt; ...]
+ * </pre>
+ * Метрика {@link #INFINITY} означает, что сеть недостижима. Изменения рассылаются триггерными
+ * обновлениями через {@link #TRIGGER_DELAY_MS} (изменения за это время уходят одной пачкой),
+ * а полная таблица — раз в {@link #UPDATE_INTERVAL_MS}. Маршрут не анонсируется тому соседу,
+ * через которого он проходит (split horizon). Если сосед молчит дольше {@link #PEER_TIMEOUT_MS}
+ * или закрыл соединение, маршруты через него снимаются; соседу, от которого ещё ничего не слышно,
+ * таблица повторяется раз в {@link #RETRY_INTERVAL_MS}.
+ * <p>
+ * Маршруты, заданные вручную, анонсируются, но не заменяются полученными.
+ */
+public class DistanceVector {
+    public static final int INFINITY = 16;
+    private static final long UPDATE_INTERVAL_MS = 5000;
+    private static final long PEER_TIMEOUT_MS = 3 * UPDATE_INTERVAL_MS;
+    private static final long TRIGGER_DELAY_MS = 50;
+    private static final long RETRY_INTERVAL_MS = 1000;
+    private static final int ROUTES_PER_UPDATE = 256;
+
+    public interface Transport {
+        /** @return false, если сообщение не удалось поставить в очередь. */
+        boolean send(int routerPort, String message);
+    }
+
+    private final int selfPort;
+    private final RouteTable routes;
+    private final Transport transport;
+    private final IntObjectMap<long[]> peers = new IntObjectMap<>(); // порт -> {время последнего UPDATE, 0 — ещё не было}
+    private final Map<Long, RouteTable.Route> pending = new LinkedHashMap<>(); // снятые — с метрикой INFINITY
+    private boolean triggerScheduled;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dv-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DistanceVector(int selfPort, RouteTable routes, Transport transport) {
+        this.selfPort = selfPort;
+        this.routes = routes;
+        this.transport = transport;
+    }
+
+    public synchronized void addPeer(int port) {
+        if (!peers.containsKey(port)) peers.put(port, new long[1]);
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::periodicUpdate, 0, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::retrySilentPeers, RETRY_INTERVAL_MS, RETRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Разбор UPDATE от соседа. Неизвестный сосед добавляется, так что пиринг достаточно задать
+     * с одной стороны; соседу, который появился впервые или после обрыва, сразу уходит вся таблица.
+     */
+    public void onUpdate(String[] parts) {
+        int peer = Integer.parseInt(parts[1]);
+        boolean fresh;
+        synchronized (this) {
+            addPeer(peer);
+            long[] state = peers.get(peer);
+            fresh = state[0] == 0;
+            state[0] = System.currentTimeMillis();
+            for (int i = 2; i + 1 < parts.length; i += 2) {
+                RouteTable.Route advertised = RouteTable.Route.parse(parts[i], peer);
+                apply(peer, advertised, Math.min(Integer.parseInt(parts[i + 1]) + 1, INFINITY));
+            }
+            scheduleTrigger();
+        }
+        if (fresh) timer.execute(() -> send(new int[]{peer}, allRoutes()));
+    }
+
+    /** Сосед пропал: все маршруты через него снимаются. */
+    public void peerDown(int peer) {
+        List<RouteTable.Route> via = new ArrayList<>();
+        routes.forEach(r -> {
+            if (r.learned && r.nextHop == peer) via.add(r);
+        });
+        synchronized (this) {
+            long[] state = peers.get(peer);
+            if (state != null) state[0] = 0;
+            for (RouteTable.Route r : via) {
+                withdraw(r);
+            }
+            scheduleTrigger();
+        }
+    }
+
+    private void apply(int peer, RouteTable.Route advertised, int metric) {
+        RouteTable.Route current = routes.get(advertised.prefix, advertised.length);
+        if (current != null && !current.learned) return;
+
+        if (current == null || current.nextHop != peer) {
+            // сосед потерял сеть, а у нас есть другой путь — сообщаем ему в ближайшем триггерном обновлении
+            if (metric >= INFINITY && current != null) {
+                pending.put(current.key(), current);
+                return;
+            }
+            // новый маршрут или путь через другого соседа — только если он короче
+            if (metric >= INFINITY || current != null && metric >= current.metric) return;
+        } else if (metric == current.metric) {
+            return;
+        } else if (metric >= INFINITY) {
+            withdraw(current);
+            return;
+        }
+
+        RouteTable.Route route = new RouteTable.Route(advertised.prefix, advertised.length, peer, metric, true);
+        routes.add(route);
+        pending.put(route.key(), route);
+        System.out.println("Маршрут: " + route);
+    }
+
+    private void withdraw(RouteTable.Route route) {
+        if (routes.remove(route.prefix, route.length) == null) return;
+        pending.put(route.key(), new RouteTable.Route(route.prefix, route.length, route.nextHop, INFINITY, true));
+        System.out.println("Маршрут снят: " + route.cidr());
+    }
+
+    private void scheduleTrigger() {
+        if (pending.isEmpty() || triggerScheduled || timer.isShutdown()) return; // соседи закрываются и после stop()
+        triggerScheduled = true;
+        timer.schedule(this::triggeredUpdate, TRIGGER_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void triggeredUpdate() {
+        List<RouteTable.Route> changed;
+        int[] targets;
+        synchronized (this) {
+            triggerScheduled = false;
+            changed = new ArrayList<>(pending.values());
+            pending.clear();
+            targets = peerPorts();
+        }
+        send(targets, changed);
+    }
+
+    private void periodicUpdate() {
+        long now = System.currentTimeMillis();
+        int[] targets;
+        synchronized (this) {
+            targets = peerPorts();
+        }
+        for (int peer : targets) {
+            long heard;
+            synchronized (this) {
+                heard = peers.get(peer)[0];
+            }
+            if (heard != 0 && now - heard > PEER_TIMEOUT_MS) {
+                System.err.println("Сосед :" + peer + " не отвечает, маршруты через него сняты.");
+                peerDown(peer);
+            }
+        }
+
+        send(targets, allRoutes());
+    }
+
+    /** Соседям, от которых ещё ничего не слышно (не запущены или только что пропали), таблица уходит чаще. */
+    private void retrySilentPeers() {
+        List<Integer> silent = new ArrayList<>();
+        synchronized (this) {
+            peers.forEach((port, state) -> {
+                if (state[0] == 0) silent.add(port);
+            });
+        }
+        if (silent.isEmpty()) return;
+        send(silent.stream().mapToInt(Integer::intValue).toArray(), allRoutes());
+    }
+
+    private List<RouteTable.Route> allRoutes() {
+        List<RouteTable.Route> all = new ArrayList<>();
+        routes.forEach(all::add);
+        return all;
+    }
+
+    private int[] peerPorts() {
+        int[] ports = new int[peers.size()];
+        int[] n = {0};
+        peers.forEach((port, state) -> ports[n[0]++] = port);
+        return ports;
+    }
+
+    private void send(int[] targets, List<RouteTable.Route> list) {
+        for (int peer : targets) {
+            StringBuilder msg = new StringBuilder();
+            int count = 0;
+            for (RouteTable.Route r : list) {
+                if (r.nextHop == peer) continue; // split horizon
+                if (count == 0) msg.append("UPDATE ").append(selfPort);
+                msg.append(' ').append(r.cidr()).append(' ').append(r.metric);
+                if (++count == ROUTES_PER_UPDATE) {
+                    transport.send(peer, msg.toString());
+                    msg.setLength(0);
+                    count = 0;
+                }
+            }
+            // пустой UPDATE тоже отправляется: сосед узнаёт, что мы живы
+            transport.send(peer, count > 0 ? msg.toString() : "UPDATE " + selfPort);
+        }
+    }
+}
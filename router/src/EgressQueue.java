@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Очередь на выход одного {@link Connection}. Управляющие сообщения ({@link TrafficClass#CONTROL})
+ * уходят первыми. Остальные раскладываются по потокам — обычно это IP отправителя — и выбираются
+ * deficit round robin: за круг поток получает {@link #QUANTUM} байт, умноженные на вес его класса.
+ * У каждого потока свой предел, поэтому болтливый отправитель теряет свои сообщения, а не чужие.
+ */
+final class EgressQueue {
+    static final int QUANTUM = 512;
+
+    private final ArrayDeque<Entry> control = new ArrayDeque<>();
+    private final IntObjectMap<Flow> flows = new IntObjectMap<>();
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+    private long flowBytes; // сумма по всем потокам, без управляющих
+
+    /** @return false, если у потока уже maxFlowBytes в очереди. */
+    synchronized boolean offer(ByteBuffer buffer, int flowId, TrafficClass cls, int maxFlowBytes) {
+        Entry entry = new Entry(buffer, cls);
+        if (cls.isPriority()) {
+            control.add(entry);
+            return true;
+        }
+        Flow flow = flows.get(flowId);
+        if (flow == null) {
+            flow = new Flow(flowId, cls);
+            flows.put(flowId, flow);
+        }
+        int size = buffer.remaining();
+        if (flow.bytes + size > maxFlowBytes) return false;
+        flow.queue.add(entry);
+        flow.bytes += size;
+        flowBytes += size;
+        if (flow.queue.size() == 1) active.add(flow);
+        return true;
+    }
+
+    /** Забирает в out очередную порцию: не больше maxCount сообщений и примерно maxBytes байт. */
+    synchronized void poll(ArrayDeque<Entry> out, int maxCount, int maxBytes) {
+        int bytes = 0;
+        while (out.size() < maxCount && bytes < maxBytes) {
+            Entry e = control.poll();
+            if (e == null) e = nextByDeficit();
+            if (e == null) return;
+            out.add(e);
+            bytes += e.buffer.remaining();
+        }
+    }
+
+    private Entry nextByDeficit() {
+        Flow flow;
+        while ((flow = active.peek()) != null) {
+            if (!flow.credited) {
+                flow.deficit += QUANTUM * flow.cls.weight;
+                flow.credited = true;
+            }
+            Entry head = flow.queue.peek();
+            int size = head.buffer.remaining();
+            if (size <= flow.deficit) {
+                flow.queue.poll();
+                flow.deficit -= size;
+                flow.bytes -= size;
+                flowBytes -= size;
+                if (flow.queue.isEmpty()) {
+                    active.poll();
+                    flows.remove(flow.id);
+                }
+                return head;
+            }
+            // квант исчерпан — очередь следующего потока
+            active.poll();
+            flow.credited = false;
+            active.add(flow);
+        }
+        return null;
+    }
+
+    /** Поток выше highWatermark или, если overloaded, больше средней доли среди активных потоков. */
+    synchronized boolean isCongested(int flowId, int highWatermark, boolean overloaded) {
+        Flow flow = flows.get(flowId);
+        if (flow == null) return false;
+        if (flow.bytes > highWatermark) return true;
+        return overloaded && (long) flow.bytes * flows.size() > flowBytes;
+    }
+
+    /** Сбрасывает всё, что стоит в очереди; сообщения считаются отброшенными. */
+    synchronized void clear() {
+        for (Entry e : control) {
+            e.cls.dropped();
+        }
+        control.clear();
+        for (Flow flow : active) {
+            for (Entry e : flow.queue) {
+                e.cls.dropped();
+            }
+        }
+        active.clear();
+        flows.clear();
+        flowBytes = 0;
+    }
+
+    static final class Entry {
+        final ByteBuffer buffer;
+        final TrafficClass cls;
+        final long enqueuedAt = System.nanoTime();
+
+        Entry(ByteBuffer buffer, TrafficClass cls) {
+            this.buffer = buffer;
+            this.cls = cls;
+        }
+    }
+
+    private static final class Flow {
+        final int id;
+        final TrafficClass cls;
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        int bytes;
+        int deficit;
+        boolean credited; // квант этого круга уже начислен
+
+        Flow(int id, TrafficClass cls) {
+            this.id = id;
+            this.cls = cls;
+        }
+    }
+}
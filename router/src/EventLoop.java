@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Поток с собственным {@link Selector}: обслуживает закреплённые за ним каналы и выполняет задачи,
+ * переданные из других потоков. Всё состояние канала меняется только в потоке его цикла.
+ * <p>
+ * Циклы одной группы ({@link #startGroup}) передают друг другу задачи через {@link #handOff}:
+ * у каждой пары «отправитель — получатель» своя {@link SpscQueue}, общей очереди и блокировок нет.
+ * Если очередь к получателю заполнена, задачи ждут у отправителя и уходят по мере её разбора,
+ * в том же порядке; отправитель тем временем может придержать источник ({@link #afterHandOff}).
+ */
+public class EventLoop implements Runnable {
+    private static final long SELECT_TIMEOUT_MS = 100;
+    /**
+     * Ёмкость очереди от одного цикла группы к другому. Всё, что в ней лежит, уже прочитано из сокетов,
+     * но ещё не стоит в очередях на выход, поэтому она должна быть заметно меньше запаса между
+     * {@link Connection#FLOW_HIGH_WATERMARK} и {@link Connection#MAX_FLOW_BYTES}, иначе пауза отправителя опоздает.
+     */
+    private static final int HAND_OFF_CAPACITY = 1024;
+    /** Как часто повторять передачу отложенных задач, пока очередь получателя заполнена. */
+    private static final long OVERFLOW_RETRY_MS = 1;
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private EventLoop[] group = {this};
+    private int index;
+    private SpscQueue<Runnable>[] inbound; // по индексу отправителя в группе, своей очереди нет
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private boolean backlog; // только в потоке цикла: очереди группы разобраны не до конца
+    // только в потоке цикла, по индексу получателя: задачи, не поместившиеся в его очередь, и что сделать, когда уйдут
+    private ArrayDeque<Runnable>[] overflow;
+    private List<Runnable>[] afterOverflow;
+    private boolean overflowing;
+
+    public interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        /** Вызывается при ошибке обработки или остановке цикла. */
+        void close();
+    }
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static EventLoop[] startGroup(String prefix, int size) throws IOException {
+        EventLoop[] loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop(prefix + "-" + i);
+        }
+        for (int i = 0; i < size; i++) {
+            loops[i].group = loops;
+            loops[i].index = i;
+            loops[i].inbound = new SpscQueue[size];
+            loops[i].overflow = new ArrayDeque[size];
+            loops[i].afterOverflow = new List[size];
+            for (int other = 0; other < size; other++) {
+                if (other == i) continue;
+                loops[i].inbound[other] = new SpscQueue<>(HAND_OFF_CAPACITY);
+                loops[i].overflow[other] = new ArrayDeque<>();
+                loops[i].afterOverflow[other] = new ArrayList<>();
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        return loops;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Номер цикла в группе. */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Передаёт задачу этому циклу. В его собственном потоке задача выполняется сразу, из другого
+     * цикла группы — через очередь между этими двумя циклами, из остальных потоков — как {@link #execute}.
+     * Порядок задач от одного отправителя сохраняется.
+     *
+     * @return false, если очередь от текущего цикла заполнена: задача отложена в текущем цикле и уйдёт,
+     *         когда освободится место.
+     */
+    public boolean handOff(Runnable task) {
+        EventLoop current = CURRENT.get();
+        if (current == this) {
+            task.run();
+            return true;
+        }
+        if (current == null || current.group != group) {
+            execute(task);
+            return true;
+        }
+        ArrayDeque<Runnable> waiting = current.overflow[index];
+        if (waiting.isEmpty() && inbound[current.index].offer(task)) {
+            signal();
+            return true;
+        }
+        waiting.add(task);
+        current.overflowing = true;
+        return false;
+    }
+
+    /** Из цикла группы после {@link #handOff}, вернувшего false: action выполнится в текущем цикле, когда отложенные задачи уйдут. */
+    public void afterHandOff(Runnable action) {
+        CURRENT.get().afterOverflow[index].add(action);
+    }
+
+    /** Один wakeup, пока цикл не разобрал очереди; get() перед CAS не гоняет строку кэша между отправителями. */
+    private void signal() {
+        if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    /** Ставит задачу в очередь цикла; выполняется после обработки текущих событий. */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /** Только из потока цикла. */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        while (running) {
+            try {
+                // задачи, поставленные из самого цикла после разбора (например, при передаче отложенных), ждать не должны
+                if (backlog || !tasks.isEmpty()) selector.selectNow();
+                else selector.select(overflowing ? OVERFLOW_RETRY_MS : SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                System.err.println("Ошибка селектора: " + e.getMessage());
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) handler.ready(key);
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка обработчика в цикле " + thread.getName() + ": " + e);
+                    handler.close();
+                }
+            }
+
+            // флаг сбрасывается до разбора: задача, поставленная после, снова разбудит цикл;
+            // задачи от других циклов — до своих, чтобы запланированные ими записи ушли в этом же проходе
+            wakeupPending.set(false);
+            backlog = drainInbound();
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка задачи в цикле " + thread.getName() + ": " + e);
+                }
+            }
+            if (overflowing) overflowing = pushOverflow();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Выполняет задачи от других циклов группы, из каждой очереди не больше её ёмкости за проход,
+     * чтобы один отправитель не занял цикл целиком. @return true, если задачи ещё остались.
+     */
+    private boolean drainInbound() {
+        if (inbound == null) return false;
+        boolean more = false;
+        for (SpscQueue<Runnable> queue : inbound) {
+            if (queue == null) continue;
+            Runnable task;
+            int n = 0;
+            while ((task = queue.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка задачи в цикле " + thread.getName() + ": " + e);
+                }
+                if (++n == HAND_OFF_CAPACITY) {
+                    more = true;
+                    break;
+                }
+            }
+        }
+        return more;
+    }
+
+    /** Передаёт отложенные задачи, сколько помещается. @return true, если что-то ещё ждёт. */
+    private boolean pushOverflow() {
+        boolean left = false;
+        for (int i = 0; i < group.length; i++) {
+            ArrayDeque<Runnable> waiting = overflow[i];
+            if (waiting == null || waiting.isEmpty()) continue;
+            EventLoop target = group[i];
+            SpscQueue<Runnable> queue = target.inbound[index];
+            boolean moved = false;
+            while (!waiting.isEmpty() && queue.offer(waiting.peek())) {
+                waiting.poll();
+                moved = true;
+            }
+            if (moved) target.signal();
+            if (!waiting.isEmpty()) {
+                left = true;
+                continue;
+            }
+            for (Runnable action : afterOverflow[i]) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка задачи в цикле " + thread.getName() + ": " + e);
+                }
+            }
+            afterOverflow[i].clear();
+        }
+        return left;
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Замер пропускной способности роутера на сходящемся трафике: несколько отправителей шлют PING
+ * одному получателю, считаются сообщения, дошедшие до получателя. Роутер запускается отдельно,
+ * с сетью, в которую входят {@link #RECEIVER} и адреса отправителей.
+ * <ul>
+ * <li>text — постоянные соединения {@link Frames}, текстовые PING;</li>
+ * <li>bin — постоянные соединения, двоичные {@link Packet};</li>
+ * <li>legacy — старый протокол: соединение на каждое сообщение, роутер открывает соединение
+ * к порту получателя на каждую доставку.</li>
+ * </ul>
+ * Регистрация получателя подтверждается PING самому себе, как в {@link HostFarm}.
+ */
+public class FanInBench {
+    private static final String HOST = "localhost";
+    private static final int RECEIVER = Addr.parseIp("10.0.0.2");
+    private static final int SENDER_NETWORK = Addr.parseIp("10.0.1.0");
+    private static final long LOCAL_MAC = 0x02_00_00_00_00_00L;
+    private static final long TIMEOUT_MS = 60_000;
+    private static final long SETTLE_MS = 200; // регистрации старого протокола не подтверждаются
+    private static final int ACCEPT_BACKLOG = 4096; // иначе очередь переполняется и роутер ждёт повтора SYN
+
+    private final int routerPort;
+    private final String mode;
+    private final int messages;
+    private final int senders;
+    private final AtomicLong delivered = new AtomicLong();
+    private final CountDownLatch registered = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public FanInBench(int routerPort, String mode, int messages, int senders) {
+        this.routerPort = routerPort;
+        this.mode = mode;
+        this.messages = messages / senders * senders;
+        this.senders = senders;
+    }
+
+    public void run() throws Exception {
+        if (mode.equals("legacy")) startLegacyReceiver();
+        else startFramedReceiver();
+        if (!registered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            System.out.println("Получатель не зарегистрировался за " + TIMEOUT_MS + " мс.");
+            return;
+        }
+        Thread[] threads = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            int ip = SENDER_NETWORK + s + 1;
+            threads[s] = daemon("sender-" + s, mode.equals("legacy") ? () -> sendLegacy(ip) : () -> sendFramed(ip));
+        }
+        if (mode.equals("legacy")) Thread.sleep(SETTLE_MS);
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        boolean complete = done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long got = delivered.get();
+        System.out.printf("Режим %s, отправителей: %d, доставлено %d из %d за %.2f с — %.0f сообщений/с%s%n",
+                mode, senders, got, messages, seconds, got / seconds, complete ? "" : " (истёк срок ожидания)");
+    }
+
+    private void startFramedReceiver() throws IOException {
+        boolean binary = mode.equals("bin");
+        Socket socket = connect();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        daemon("receiver", () -> {
+            ByteBuffer frame;
+            while ((frame = Frames.readFrame(in)) != null) {
+                int from;
+                if (Frames.isPacket(frame)) {
+                    from = Packet.type(frame) == Packet.PING ? Packet.src(frame) : -1;
+                } else {
+                    String msg = Frames.text(frame);
+                    if (msg.equals("HEARTBEAT")) {
+                        synchronized (out) {
+                            Frames.write(out, "ALIVE");
+                        }
+                    }
+                    from = msg.startsWith("PING_FROM ") ? Addr.parseIp(msg.substring("PING_FROM ".length())) : -1;
+                }
+                if (from == RECEIVER) registered.countDown();
+                else if (from != -1) count();
+            }
+            return null;
+        }).start();
+        synchronized (out) {
+            Frames.write(out, "REGISTER " + Addr.formatIp(RECEIVER) + " " + Addr.formatMac(LOCAL_MAC) + " 0" + (binary ? " BIN" : ""));
+            if (binary) Frames.write(out, Packet.allocate(Packet.PING, RECEIVER, RECEIVER, -1, 0));
+            else Frames.write(out, "PING " + Addr.formatIp(RECEIVER) + " " + Addr.formatIp(RECEIVER));
+        }
+    }
+
+    private Void sendFramed(int ip) throws IOException {
+        boolean binary = mode.equals("bin");
+        Socket socket = connect();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        daemon("sender-reader", () -> {
+            String msg;
+            while ((msg = Frames.read(in)) != null) {
+                if (!msg.equals("HEARTBEAT")) continue;
+                synchronized (out) {
+                    Frames.write(out, "ALIVE");
+                }
+            }
+            return null;
+        }).start();
+        byte[] ping = ("PING " + Addr.formatIp(ip) + " " + Addr.formatIp(RECEIVER)).getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            Frames.write(out, "REGISTER " + Addr.formatIp(ip) + " " + Addr.formatMac(LOCAL_MAC | ip & 0xFFFFFF) + " 0" + (binary ? " BIN" : ""));
+            for (int i = 0; i < messages / senders; i++) {
+                if (binary) {
+                    ByteBuffer packet = Packet.allocate(Packet.PING, ip, RECEIVER, i, 0);
+                    out.write(packet.array(), 0, packet.limit());
+                } else {
+                    out.writeInt(ping.length);
+                    out.write(ping);
+                }
+            }
+            out.flush();
+        }
+        return null;
+    }
+
+    /** Получатель старого протокола: слушает порт, по одному сообщению на входящее соединение. */
+    private void startLegacyReceiver() throws Exception {
+        ServerSocket server = new ServerSocket(0, ACCEPT_BACKLOG);
+        daemon("receiver", () -> {
+            while (true) {
+                try (Socket socket = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    String msg = in.readLine();
+                    if (msg == null || !msg.startsWith("PING_FROM ")) continue;
+                    if (Addr.parseIp(msg.substring("PING_FROM ".length())) == RECEIVER) registered.countDown();
+                    else count();
+                }
+            }
+        }).start();
+        // отправители тоже регистрируются с портом, но получают сообщения только в ответ, а ответов нет
+        for (int s = 0; s < senders; s++) {
+            int ip = SENDER_NETWORK + s + 1;
+            sendLine("REGISTER " + Addr.formatIp(ip) + " " + Addr.formatMac(LOCAL_MAC | ip & 0xFFFFFF) + " " + server.getLocalPort());
+        }
+        sendLine("REGISTER " + Addr.formatIp(RECEIVER) + " " + Addr.formatMac(LOCAL_MAC) + " " + server.getLocalPort());
+        Thread.sleep(SETTLE_MS);
+        sendLine("PING " + Addr.formatIp(RECEIVER) + " " + Addr.formatIp(RECEIVER));
+    }
+
+    private Void sendLegacy(int ip) throws IOException {
+        String ping = "PING " + Addr.formatIp(ip) + " " + Addr.formatIp(RECEIVER);
+        for (int i = 0; i < messages / senders; i++) {
+            sendLine(ping);
+        }
+        return null;
+    }
+
+    private void sendLine(String msg) throws IOException {
+        try (Socket socket = new Socket(HOST, routerPort)) {
+            OutputStream out = socket.getOutputStream();
+            out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(HOST, routerPort);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private void count() {
+        if (delivered.incrementAndGet() == messages) done.countDown();
+    }
+
+    private interface Task {
+        Void call() throws Exception;
+    }
+
+    private static Thread daemon(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.call();
+            } catch (Exception e) {
+                System.err.println("Поток " + name + " завершился с ошибкой: " + e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public static void main(String[] args) throws Exception {
+        FanInBench bench;
+        try {
+            int port = Integer.parseInt(args[0]);
+            String mode = args.length > 1 ? args[1] : "bin";
+            if (!mode.equals("text") && !mode.equals("bin") && !mode.equals("legacy")) {
+                throw new IllegalArgumentException("Неизвестный режим: " + mode);
+            }
+            int messages = args.length > 2 ? Integer.parseInt(args[2]) : mode.equals("legacy") ? 2_000 : 200_000;
+            int senders = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+            if (senders < 1 || senders > 254 || messages < senders) {
+                throw new IllegalArgumentException("Отправителей должно быть от 1 до 254, сообщений — не меньше, чем отправителей.");
+            }
+            bench = new FanInBench(port, mode, messages, senders);
+        } catch (RuntimeException e) {
+            System.out.println("Использование: java FanInBench <порт роутера> [text|bin|legacy] [<сообщений>] [<отправителей>]");
+            if (!(e instanceof ArrayIndexOutOfBoundsException)) System.err.println(e.getMessage());
+            return;
+        }
+        bench.run();
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кадры постоянного соединения клиент–роутер: [длина, int32 big-endian][сообщение, UTF-8]
+ * или [длина][двоичный {@link Packet}] — пакет отличается старшим битом первого байта.
+ * Первый байт кадра всегда 0 (длина меньше 16 МБ), поэтому роутер отличает такое соединение
+ * от старого текстового протокола «одна строка на соединение» по первому байту.
+ */
+public final class Frames {
+    public static final int MAX_FRAME = 64 * 1024;
+
+    private Frames() {
+    }
+
+    public static void write(DataOutputStream out, String msg) throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /** Кадр, уже собранный в буфере вместе с длиной, например {@link Packet}. */
+    public static void write(DataOutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+        out.flush();
+    }
+
+    /** @return сообщение или null, если соединение закрыто. */
+    public static String read(DataInputStream in) throws IOException {
+        ByteBuffer frame = readFrame(in);
+        return frame == null ? null : text(frame);
+    }
+
+    /** @return кадр целиком, вместе с 4 байтами длины, или null, если соединение закрыто. */
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Некорректная длина кадра: " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length).putInt(length);
+        in.readFully(frame.array(), 4, length);
+        return frame.clear();
+    }
+
+    public static boolean isPacket(ByteBuffer frame) {
+        return frame.limit() > 4 && Packet.isPacket(frame.get(4));
+    }
+
+    public static String text(ByteBuffer frame) {
+        return new String(frame.array(), frame.arrayOffset() + 4, frame.limit() - 4, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ферма узлов: тысячи виртуальных узлов в одной JVM вместо процесса {@link ClientComputer} на каждый.
+ * У узла нет ни потока, ни сокета — только адрес: узлы делят несколько постоянных соединений с роутером
+ * (через одно соединение регистрируется много адресов) и обслуживаются циклами {@link EventLoop}.
+ * На PING узел отвечает PONG, как ClientComputer; сценарий нагрузки — PING между узлами с заданной
+ * частотой, по кругу (узел i — узлу i + 1) или случайным парам, с RTT и потерями раз в секунду.
+ * <p>
+ * Узел i — адрес сети + i + 1, MAC 02:00:xx:xx:xx:xx, соединение i % connections. Регистрация
+ * подтверждается PING каждого узла самому себе: ответ пришёл — адрес уже в таблице роутера.
+ */
+public class HostFarm implements Connection.Listener {
+    private static final int PROBE_PAYLOAD = 8; // время отправки пробы, System.nanoTime()
+    private static final long PACE_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long REGISTER_TIMEOUT_MS = 60_000;
+    /** Сколько регистраций может ждать подтверждения: иначе REGISTER заполнят очередь соединения и вытеснят ответы на PING. */
+    private static final int REGISTER_WINDOW = 1024;
+    private static final long DRAIN_MS = 2000; // ожидание последних ответов после сценария
+    private static final long LOCAL_MAC = 0x02_00_00_00_00_00L; // локально администрируемые адреса
+
+    private final int hosts;
+    private final int network;
+    private final EventLoop[] loops;
+    private final Connection[] connections;
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder pingsServed = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+    private final LongAdder unreachable = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private volatile LatencyHistogram intervalRtt = new LatencyHistogram();
+    private volatile boolean stopping;
+
+    public HostFarm(int routerPort, int hosts, int connectionCount, int loopCount, int network) throws IOException {
+        this.hosts = hosts;
+        this.network = network;
+        this.loops = EventLoop.startGroup("farm", loopCount);
+        this.connections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = Connection.connectFramed(loops[i % loopCount], routerPort, this);
+        }
+    }
+
+    private int ipOf(int host) {
+        return network + host + 1;
+    }
+
+    private Connection connectionOf(int host) {
+        return connections[host % connections.length];
+    }
+
+    /**
+     * Регистрирует все узлы и ждёт, пока каждый получит ответ на PING самому себе. Неподтверждённых
+     * регистраций не больше {@link #REGISTER_WINDOW}.
+     *
+     * @return сколько узлов подтверждено
+     */
+    long register() {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + REGISTER_TIMEOUT_MS;
+        for (int host = 0; host < hosts && !stopping; host++) {
+            while (host - confirmed.sum() >= REGISTER_WINDOW && System.currentTimeMillis() < deadline) {
+                LockSupport.parkNanos(PACE_NS);
+            }
+            int ip = ipOf(host);
+            Connection conn = connectionOf(host);
+            ByteBuffer register = conn.encode("REGISTER " + Addr.formatIp(ip) + " " + Addr.formatMac(LOCAL_MAC | host) + " 0 BIN");
+            ByteBuffer self = Packet.allocate(Packet.PING, ip, ip, -1, 0).rewind();
+            send(conn, register);
+            send(conn, self);
+        }
+        while (confirmed.sum() < hosts && System.currentTimeMillis() < deadline && !stopping) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        long done = confirmed.sum();
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        System.out.printf("Зарегистрировано узлов: %d из %d за %d мс (%.0f регистраций/с)%n", done, hosts,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), done * 1e9 / elapsed);
+        return done;
+    }
+
+    /** Ждёт места в очереди соединения: регистрация не должна теряться. */
+    private void send(Connection conn, ByteBuffer frame) {
+        while (!conn.send(frame, 0, TrafficClass.DEFAULT) && !conn.isClosed()) {
+            LockSupport.parkNanos(PACE_NS);
+        }
+    }
+
+    /**
+     * PING с частотой rate в секунду в течение seconds; раз в секунду печатает итоги за секунду.
+     * Пробы, не поместившиеся в очередь соединения, не отправляются и считаются отдельно.
+     */
+    void run(int rate, int seconds, boolean random) {
+        System.out.printf("Сценарий: %d проб/с, %d с, %s%n", rate, seconds, random ? "случайные пары" : "по кругу");
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0, lastReceived = 0;
+        int seq = 0;
+        int from = 0;
+        long now;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        while ((now = System.nanoTime()) < end && !stopping) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            for (; seq < due; seq++) {
+                int src = random ? rnd.nextInt(hosts) : from;
+                int dst = random ? rnd.nextInt(hosts) : (from + 1) % hosts;
+                from = (from + 1) % hosts;
+                ByteBuffer probe = Packet.allocate(Packet.PING, ipOf(src), ipOf(dst), seq, PROBE_PAYLOAD);
+                probe.putLong(Packet.PAYLOAD, System.nanoTime()).rewind();
+                if (connectionOf(src).send(probe, ipOf(src), TrafficClass.DEFAULT)) sent.increment();
+                else queueFull.increment();
+            }
+            if (now >= nextReport) {
+                long s = sent.sum(), r = received.sum();
+                report((now - start) / 1_000_000_000L, s - lastSent, r - lastReceived, intervalRtt);
+                intervalRtt = new LatencyHistogram();
+                lastSent = s;
+                lastReceived = r;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            LockSupport.parkNanos(PACE_NS);
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        long drainUntil = System.currentTimeMillis() + DRAIN_MS;
+        while (received.sum() < sent.sum() && System.currentTimeMillis() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        System.out.println("--- итог ---");
+        System.out.printf("отправлено %d, получено %d, потеряно %.2f%%, не поместилось в очередь %d, UNREACHABLE %d%n",
+                sent.sum(), received.sum(), sent.sum() == 0 ? 0 : 100.0 * (sent.sum() - received.sum()) / sent.sum(),
+                queueFull.sum(), unreachable.sum());
+        System.out.printf("ответов %.0f/с, на PING ответили узлы фермы: %d%n", received.sum() * 1e9 / elapsed, pingsServed.sum());
+        if (rtt.count() > 0) {
+            System.out.printf("rtt мин/сред/p50/p99/макс = %.3f/%.3f/%.3f/%.3f/%.3f мс%n", rtt.min() / 1e6, rtt.mean() / 1e6,
+                    rtt.percentile(0.5) / 1e6, rtt.percentile(0.99) / 1e6, rtt.max() / 1e6);
+        }
+    }
+
+    private static void report(long second, long sent, long received, LatencyHistogram h) {
+        System.out.printf("%3d с: отправлено %d, получено %d, rtt p50/p99 = %.3f/%.3f мс%n",
+                second, sent, received, h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6);
+    }
+
+    @Override
+    public void onPacket(Connection connection, ByteBuffer frame) {
+        if (Packet.type(frame) == Packet.PING) {
+            // узел фермы отвечает, как ClientComputer: данные PING возвращаются без изменений;
+            // в очереди соединения у каждого узла свой поток, как у отправителей на роутере
+            ByteBuffer reply = Packet.copy(frame);
+            Packet.toReply(reply, Packet.PONG);
+            if (connection.send(reply, Packet.src(reply), TrafficClass.DEFAULT)) pingsServed.increment();
+        } else if (Packet.type(frame) == Packet.PONG) {
+            if (Packet.seq(frame) < 0) {
+                confirmed.increment();
+                return;
+            }
+            if (Packet.payloadLength(frame) < PROBE_PAYLOAD) return;
+            long elapsed = System.nanoTime() - frame.getLong(Packet.PAYLOAD);
+            rtt.record(elapsed);
+            intervalRtt.record(elapsed);
+            received.increment();
+        }
+    }
+
+    @Override
+    public void onMessage(Connection connection, String message) {
+        if (message.equals("HEARTBEAT")) {
+            connection.sendControl("ALIVE");
+        } else if (message.startsWith("UNREACHABLE")) {
+            unreachable.increment();
+        }
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        if (!stopping) System.err.println("Роутер закрыл соединение фермы.");
+    }
+
+    /** Закрывает соединения: роутер снимает все адреса, зарегистрированные через них. */
+    void shutdown() {
+        stopping = true;
+        for (Connection conn : connections) {
+            conn.close();
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Использование: java HostFarm <RouterPort> <узлов> [--connections K] [--loops L]"
+                    + " [--net 10.128.0.0] [--rate проб/с] [--time сек, 0 — только регистрация] [--random]");
+            return;
+        }
+        int routerPort = Integer.parseInt(args[0]);
+        int hosts = Integer.parseInt(args[1]);
+        int connectionCount = 4;
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        int network = Addr.parseIp("10.128.0.0");
+        int rate = 1000;
+        int seconds = 10;
+        boolean random = false;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connections" -> connectionCount = Integer.parseInt(args[++i]);
+                case "--loops" -> loopCount = Integer.parseInt(args[++i]);
+                case "--net" -> network = Addr.parseIp(args[++i]);
+                case "--rate" -> rate = Integer.parseInt(args[++i]);
+                case "--time" -> seconds = Integer.parseInt(args[++i]);
+                case "--random" -> random = true;
+                default -> {
+                    System.out.println("Неизвестный параметр: " + args[i]);
+                    return;
+                }
+            }
+        }
+        if (hosts < 1 || connectionCount < 1 || loopCount < 1 || rate < 0 || seconds < 0) {
+            System.out.println("Число узлов, соединений, циклов, частота и время должны быть положительными.");
+            return;
+        }
+
+        HostFarm farm = new HostFarm(routerPort, hosts, Math.min(connectionCount, hosts), loopCount, network);
+        Runtime.getRuntime().addShutdownHook(new Thread(farm::shutdown));
+        if (farm.register() == hosts) {
+            if (seconds > 0) farm.run(rate, seconds, random);
+        } else {
+            System.err.println("Не все узлы зарегистрированы, сценарий не запущен.");
+        }
+        farm.shutdown();
+        System.exit(0);
+    }
+}
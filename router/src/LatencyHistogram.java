@@ -0,0 +1,89 @@
+/**
+ * Гистограмма задержек в духе HdrHistogram: логарифмические диапазоны, каждый поделён на 64 равные
+ * ячейки, поэтому относительная погрешность перцентилей не больше 1/64, а память постоянна
+ * (около 18 КБ) при любой длине прогона. Минимум, максимум и среднее считаются точно.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS) * SUB_COUNT + SUB_COUNT];
+    private long total;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /** @param value неотрицательное значение, например задержка в наносекундах. */
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /** Добавляет все значения other, например чтобы свести гистограммы нескольких потоков. */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts;
+        long otherTotal, otherSum, otherMin, otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherTotal = other.total;
+            otherSum = other.sum;
+            otherMin = other.min;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += otherCounts[i];
+            }
+            total += otherTotal;
+            sum += otherSum;
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    /** Середина диапазона значений, попадающих в ячейку. */
+    private static long valueAt(int index) {
+        if (index < 2 * SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long low = (long) (index - shift * SUB_COUNT) << shift;
+        return low + (1L << shift) / 2;
+    }
+
+    public synchronized long count() {
+        return total;
+    }
+
+    public synchronized long min() {
+        return total == 0 ? 0 : min;
+    }
+
+    public synchronized long max() {
+        return max;
+    }
+
+    public synchronized double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /** @param q доля от 0 до 1, например 0.99. */
+    public synchronized long percentile(double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(Math.max(valueAt(i), min), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Двоичный пакет данных внутри кадра {@link Frames}. Смещения считаются от начала кадра, вместе
+ * с 4 байтами длины, поэтому буфер пакета можно отправлять как есть:
+ * <pre>
+ *  0  длина кадра      int32
+ *  4  тип              int8, старший бит = 1 (текстовые команды начинаются с ASCII)
+ *  5  TTL              uint8
+ *  6  резерв           2 байта
+ *  8  IP отправителя   int32
+ * 12  IP получателя    int32
+ * 16  порт отправителя uint16
+ * 18  порт получателя  uint16
+ * 20  номер            int32
+ * 24  длина данных     uint16
+ * 26  резерв           2 байта
+ * 28  данные
+ * </pre>
+ * Роутер читает заголовок абсолютными get-ами, меняет TTL прямо в буфере и пересылает кадр,
+ * не разбирая данные.
+ */
+public final class Packet {
+    public static final byte PING = (byte) 0x81;
+    public static final byte PONG = (byte) 0x82;
+    public static final int DEFAULT_TTL = 16;
+
+    static final int TYPE = 4;
+    static final int TTL = 5;
+    static final int SRC = 8;
+    static final int DST = 12;
+    static final int SRC_PORT = 16;
+    static final int DST_PORT = 18;
+    static final int SEQ = 20;
+    static final int PAYLOAD_LENGTH = 24;
+    public static final int PAYLOAD = 28;
+
+    private Packet() {
+    }
+
+    /** Первый байт содержимого кадра — двоичный пакет, а не текстовая команда. */
+    public static boolean isPacket(byte first) {
+        return (first & 0x80) != 0;
+    }
+
+    /** Кадр с заголовком и местом под данные; позиция буфера — начало данных. */
+    public static ByteBuffer allocate(byte type, int src, int dst, int seq, int payloadLength) {
+        if (payloadLength > 0xFFFF || PAYLOAD - 4 + payloadLength > Frames.MAX_FRAME) {
+            throw new IllegalArgumentException("Слишком много данных в пакете: " + payloadLength);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(PAYLOAD + payloadLength);
+        frame.putInt(0, PAYLOAD - 4 + payloadLength)
+                .put(TYPE, type)
+                .put(TTL, (byte) DEFAULT_TTL)
+                .putInt(SRC, src)
+                .putInt(DST, dst)
+                .putInt(SEQ, seq)
+                .putShort(PAYLOAD_LENGTH, (short) payloadLength);
+        return frame.position(PAYLOAD);
+    }
+
+    public static byte type(ByteBuffer frame) {
+        return frame.get(TYPE);
+    }
+
+    public static int ttl(ByteBuffer frame) {
+        return frame.get(TTL) & 0xFF;
+    }
+
+    public static void setTtl(ByteBuffer frame, int ttl) {
+        frame.put(TTL, (byte) ttl);
+    }
+
+    public static int src(ByteBuffer frame) {
+        return frame.getInt(SRC);
+    }
+
+    public static void setSrc(ByteBuffer frame, int ip) {
+        frame.putInt(SRC, ip);
+    }
+
+    public static int dst(ByteBuffer frame) {
+        return frame.getInt(DST);
+    }
+
+    public static int srcPort(ByteBuffer frame) {
+        return frame.getShort(SRC_PORT) & 0xFFFF;
+    }
+
+    public static int dstPort(ByteBuffer frame) {
+        return frame.getShort(DST_PORT) & 0xFFFF;
+    }
+
+    public static int seq(ByteBuffer frame) {
+        return frame.getInt(SEQ);
+    }
+
+    public static int payloadLength(ByteBuffer frame) {
+        return frame.getShort(PAYLOAD_LENGTH) & 0xFFFF;
+    }
+
+    /** Превращает принятый пакет в ответ на месте: тип меняется, адреса и порты меняются местами, данные остаются. */
+    public static void toReply(ByteBuffer frame, byte type) {
+        int src = src(frame);
+        short srcPort = frame.getShort(SRC_PORT);
+        frame.put(TYPE, type)
+                .put(TTL, (byte) DEFAULT_TTL)
+                .putInt(SRC, dst(frame))
+                .putInt(DST, src)
+                .putShort(SRC_PORT, frame.getShort(DST_PORT))
+                .putShort(DST_PORT, srcPort);
+    }
+
+    /** Собственная копия кадра целиком; кадр, переданный в {@code onPacket}, живёт только до возврата. */
+    public static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.limit());
+        copy.put(0, frame, 0, frame.limit());
+        return copy;
+    }
+}
@@ -0,0 +1,218 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.Consumer;
+
+/**
+ * Таблица маршрутов с поиском по самому длинному префиксу, раскладка DIR-16-8-8.
+ * <p>
+ * Первый уровень — 65536 ячеек по старшим 16 битам адреса, в каждой следующий переход лучшего
+ * маршрута длиной до /16. Для /16, под которыми есть более длинные префиксы, заводится блок второго
+ * уровня (256 ячеек на /24), под ним при необходимости — третьего (256 ячеек на /32). Ячейки хранят
+ * nextHop + 1, 0 в блоке означает «наследовать уровень выше». Поиск — не больше трёх чтений
+ * int-массивов, без блокировок и без разыменования объектов маршрутов.
+ * <p>
+ * Изменения выполняются под монитором таблицы: точный набор маршрутов хранится по длинам префикса,
+ * а каждая затронутая ячейка пересчитывается из него и публикуется release-записью. Читатель,
+ * попавший на середину обновления, видит для своей ячейки либо старый, либо новый переход.
+ */
+public class RouteTable {
+    /** Результат {@link #lookup}, если маршрута нет. */
+    public static final int NO_ROUTE = -1;
+
+    private static final VarHandle HOPS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle BLOCKS = MethodHandles.arrayElementVarHandle(int[][].class);
+    private static final VarHandle BLOCK_TABLES = MethodHandles.arrayElementVarHandle(int[][][].class);
+
+    private final int[] level1 = new int[1 << 16];
+    private final int[][] level2 = new int[1 << 16][];
+    private final int[][][] level3 = new int[1 << 16][][]; // по /16 — блоки третьего уровня по /24
+    private final int[] level2Counts = new int[1 << 16]; // маршрутов длиннее /16 под каждым /16
+    private final IntObjectMap<Route>[] byLength;
+    private final IntObjectMap<int[]> level3Counts = new IntObjectMap<>(); // /24 -> {маршрутов длиннее /24}
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RouteTable() {
+        byLength = new IntObjectMap[33];
+        for (int i = 0; i <= 32; i++) {
+            byLength[i] = new IntObjectMap<>();
+        }
+    }
+
+    /** @return порт следующего роутера, 0 для сети, подключённой напрямую, или {@link #NO_ROUTE}. */
+    public int lookup(int ip) {
+        int i1 = ip >>> 16;
+        int hop = (int) HOPS.getAcquire(level1, i1);
+        int[] block = (int[]) BLOCKS.getAcquire(level2, i1);
+        if (block != null) {
+            int i2 = (ip >>> 8) & 0xFF;
+            int h = (int) HOPS.getAcquire(block, i2);
+            if (h != 0) hop = h;
+            int[][] blocks3 = (int[][]) BLOCK_TABLES.getAcquire(level3, i1);
+            if (blocks3 != null) {
+                int[] block3 = (int[]) BLOCKS.getAcquire(blocks3, i2);
+                if (block3 != null) {
+                    h = (int) HOPS.getAcquire(block3, ip & 0xFF);
+                    if (h != 0) hop = h;
+                }
+            }
+        }
+        return hop - 1;
+    }
+
+    /** @return маршрут, который был на этом префиксе, или null. */
+    public synchronized Route add(Route route) {
+        Route old = byLength[route.length].put(route.prefix, route);
+        if (old == null) {
+            size++;
+            adjustBlocks(route, 1);
+        }
+        refresh(route.prefix, route.length);
+        return old;
+    }
+
+    /** @return удалённый маршрут или null. */
+    public synchronized Route remove(int prefix, int length) {
+        Route old = byLength[length].remove(prefix & mask(length));
+        if (old == null) return null;
+        size--;
+        refresh(old.prefix, old.length);
+        adjustBlocks(old, -1);
+        return old;
+    }
+
+    public synchronized Route get(int prefix, int length) {
+        return byLength[length].get(prefix & mask(length));
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Обход всех маршрутов под монитором таблицы, от коротких префиксов к длинным. */
+    public synchronized void forEach(Consumer<Route> action) {
+        for (IntObjectMap<Route> routes : byLength) {
+            routes.forEach((prefix, route) -> action.accept(route));
+        }
+    }
+
+    static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    /** Ячейка для самого длинного маршрута с длиной из [minLength, maxLength], покрывающего адрес. */
+    private int best(int ip, int minLength, int maxLength) {
+        for (int length = maxLength; length >= minLength; length--) {
+            Route r = byLength[length].get(ip & mask(length));
+            if (r != null) return r.nextHop + 1;
+        }
+        return 0;
+    }
+
+    /** Пересчитывает ячейки своего уровня, которые покрывает префикс. */
+    private void refresh(int prefix, int length) {
+        int i1 = prefix >>> 16;
+        if (length <= 16) {
+            for (int i = i1; i < i1 + (1 << (16 - length)); i++) {
+                HOPS.setRelease(level1, i, best(i << 16, 0, 16));
+            }
+            return;
+        }
+
+        int[] block = level2[i1];
+        int i2 = (prefix >>> 8) & 0xFF;
+        if (length <= 24) {
+            if (block == null) return;
+            for (int i = i2; i < i2 + (1 << (24 - length)); i++) {
+                HOPS.setRelease(block, i, best((prefix & 0xFFFF0000) | (i << 8), 17, 24));
+            }
+            return;
+        }
+
+        int[] block3 = level3[i1] == null ? null : level3[i1][i2];
+        if (block3 == null) return;
+        int i3 = prefix & 0xFF;
+        for (int i = i3; i < i3 + (1 << (32 - length)); i++) {
+            HOPS.setRelease(block3, i, best((prefix & 0xFFFFFF00) | i, 25, 32));
+        }
+    }
+
+    /**
+     * Ведёт счётчики маршрутов под блоками: новый блок публикуется до того, как в него попадёт
+     * маршрут, опустевший — снимается после того, как из него убран последний.
+     */
+    private void adjustBlocks(Route route, int delta) {
+        if (route.length <= 16) return;
+        int i1 = route.prefix >>> 16;
+        if (level2[i1] == null) BLOCKS.setRelease(level2, i1, new int[256]);
+        level2Counts[i1] += delta;
+
+        if (route.length > 24) {
+            int i2 = (route.prefix >>> 8) & 0xFF;
+            if (level3[i1] == null) BLOCK_TABLES.setRelease(level3, i1, new int[256][]);
+            if (level3[i1][i2] == null) BLOCKS.setRelease(level3[i1], i2, new int[256]);
+
+            int key = route.prefix & 0xFFFFFF00;
+            int[] count = level3Counts.get(key);
+            if (count == null) {
+                count = new int[1];
+                level3Counts.put(key, count);
+            }
+            count[0] += delta;
+            if (count[0] == 0) {
+                level3Counts.remove(key);
+                BLOCKS.setRelease(level3[i1], i2, null);
+            }
+        }
+        if (level2Counts[i1] == 0) {
+            BLOCKS.setRelease(level2, i1, null);
+            BLOCK_TABLES.setRelease(level3, i1, null);
+        }
+    }
+
+    /**
+     * Маршрут до сети; nextHop — порт следующего роутера, 0 — сеть подключена напрямую.
+     * learned — маршрут получен от соседа через {@link DistanceVector}, иначе задан вручную.
+     */
+    public static final class Route {
+        public final int prefix;
+        public final int length;
+        public final int nextHop;
+        public final int metric;
+        public final boolean learned;
+
+        public Route(int prefix, int length, int nextHop) {
+            this(prefix, length, nextHop, nextHop == 0 ? 0 : 1, false);
+        }
+
+        public Route(int prefix, int length, int nextHop, int metric, boolean learned) {
+            if (length < 0 || length > 32) throw new IllegalArgumentException("Некорректная длина префикса: /" + length);
+            this.prefix = prefix & mask(length);
+            this.length = length;
+            this.nextHop = nextHop;
+            this.metric = metric;
+            this.learned = learned;
+        }
+
+        public static Route parse(String cidr, int nextHop) {
+            int slash = cidr.indexOf('/');
+            if (slash < 0) throw new IllegalArgumentException("Ожидалась сеть в формате CIDR: " + cidr);
+            return new Route(Addr.parseIp(cidr.substring(0, slash)), Integer.parseInt(cidr.substring(slash + 1)), nextHop);
+        }
+
+        public String cidr() {
+            return Addr.formatIp(prefix) + "/" + length;
+        }
+
+        /** Ключ префикса, уникальный вместе с длиной. */
+        long key() {
+            return Addr.ipKey(prefix) << 6 | length;
+        }
+
+        @Override
+        public String toString() {
+            return cidr() + (nextHop == 0 ? " напрямую" : " через роутер :" + nextHop)
+                    + (learned ? ", метрика " + metric : "");
+        }
+    }
+}
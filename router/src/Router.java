@@ -1,177 +1,1143 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class Router {
-    private final int listenPort;
-    private final Map<String, ClientInfo> ipTable = new ConcurrentHashMap<>();
-    private final Map<String, String> arpTable = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-
-
-    public Router(int port) {
-        this.listenPort = port;
-    }
-
-    public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(listenPort);
-        System.out.println("Router запущен на порту " + listenPort);
-
-        new Thread(() -> {
-            Scanner scanner = new Scanner(System.in);
-            while (true) {
-                String command = scanner.nextLine();
-                if ("STOP".equalsIgnoreCase(command.trim())) {
-                    System.out.println("Остановка роутера по команде STOP...");
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Ошибка при закрытии сокета: " + e.getMessage());
-                    }
-                    break;
-                }
-            }
-        }).start();
-
-        try {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.submit(() -> handleClient(clientSocket));
-            }
-        } catch (IOException e) {
-            System.out.println("Сервер остановлен.");
-        } finally {
-            shutdown();
-        }
-    }
-
-    private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String message = in.readLine();
-            if (message == null) return;
-
-            String command = message.split(" ")[0];
-
-            switch (command) {
-                case "REGISTER" -> handleRegister(message);
-                case "DISCONNECT" -> handleDisconnect(message);
-                case "PING" -> handlePing(message);
-                case "PONG" -> handlePong(message);
-                default -> System.err.println("Неизвестная команда: " + command);
-            }
-
-        } catch (IOException e) {
-            System.err.println("Ошибка клиента: " + e.getMessage());
-        }
-    }
-
-    private void handleRegister(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        String mac = parts[2];
-        int port = Integer.parseInt(parts[3]);
-
-        ClientInfo existing = ipTable.get(ip);
-        if (existing != null && !existing.mac.equals(mac)) {
-            System.err.println("Конфликт IP-адреса: " + ip + " уже зарегистрирован другим MAC.");
-            return;
-        }
-
-        if (arpTable.containsValue(mac) && !ip.equals(getIpByMac(mac))) {
-            System.err.println("Конфликт MAC-адреса: " + mac + " уже используется другим IP.");
-            return;
-        }
-
-        ClientInfo info = new ClientInfo(ip, mac, port);
-        ipTable.put(ip, info);
-        arpTable.put(ip, mac);
-
-        System.out.println("Зарегистрирован: IP=" + ip + " MAC=" + mac + " Port=" + port);
-    }
-
-    private String getIpByMac(String mac) {
-        for (Map.Entry<String, String> entry : arpTable.entrySet()) {
-            if (entry.getValue().equals(mac)) {
-                return entry.getKey();
-            }
-        }
-        return null;
-    }
-
-    private void handleDisconnect(String msg) {
-        String[] parts = msg.split(" ");
-        String ip = parts[1];
-        ClientInfo removed = ipTable.remove(ip);
-        if (removed != null) {
-            arpTable.remove(ip);
-            System.out.println("Отключён: IP=" + ip);
-        }
-    }
-
-    private void handlePing(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String toIP = parts[2];
-
-        ClientInfo from = ipTable.get(fromIP);
-        ClientInfo to = ipTable.get(toIP);
-
-        if (from == null || to == null) {
-            System.err.println("Один из узлов не найден в таблице IP.");
-            return;
-        }
-
-        threadPool.submit(() -> sendMessage(to.port, "PING_FROM " + fromIP));
-    }
-
-    private void handlePong(String msg) {
-        String[] parts = msg.split(" ");
-        String fromIP = parts[1];
-        String toIP = parts[2];
-
-        ClientInfo from = ipTable.get(fromIP);
-        ClientInfo to = ipTable.get(toIP);
-
-        if (from == null || to == null) {
-            System.err.println("Один из узлов не найден в таблице IP.");
-            return;
-        }
-
-        threadPool.submit(() -> sendMessage(to.port, "PONG_FROM " + fromIP));
-    }
-
-    private void sendMessage(int port, String msg) {
-        try (Socket socket = new Socket("localhost", port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(msg);
-        } catch (IOException e) {
-            System.err.println("Ошибка отправки на порт " + port + ": " + e.getMessage());
-        }
-    }
-
-    private void shutdown() {
-        threadPool.shutdown();
-
-        System.out.println("Роутер корректно завершил работу.");
-    }
-
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.out.println("Использование: java Router <Port>");
-            return;
-        }
-        new Router(Integer.parseInt(args[0])).start();
-    }
-
-    static class ClientInfo {
-        String ip, mac;
-        int port;
-
-        ClientInfo(String ip, String mac, int port) {
-            this.ip = ip;
-            this.mac = mac;
-            this.port = port;
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Состояние узлов разбито на сегменты по хешу IP ({@link Shard}), по одному на цикл событий: сегмент
+ * читается и меняется только в потоке своего цикла, поэтому без блокировок. Соединение узла после
+ * REGISTER переходит в цикл его сегмента; пакет другому узлу передаётся в цикл сегмента получателя
+ * через {@link EventLoop#handOff}, где и ставится в очередь получателя.
+ */
+public class Router implements Connection.Listener {
+    private final int listenPort;
+    private final Shard[] shards;
+    private final LongLongMap macTable = new LongLongMap(); // MAC -> IP, общий на все сегменты: проверка конфликтов при REGISTER
+    private final RouteTable routes = new RouteTable();
+    private final IntObjectMap<Connection> neighbours = new IntObjectMap<>(); // порт роутера -> соединение
+    private volatile ClassRule[] classRules = new ClassRule[0]; // по убыванию длины префикса
+    private final DistanceVector distanceVector;
+    private final EventLoop[] loops;
+    private int nextLoop;
+    private final TimingWheel<ClientLink> liveness;
+    private final TimingWheel<Integer> unreachableExpiry;
+    private final TimingWheel<Integer> restoreCheck;
+    private volatile long now = System.currentTimeMillis(); // грубые часы, обновляются раз в такт
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "liveness"));
+    private final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "snapshot"));
+    private volatile TableLog state; // null, если таблицы не сохраняются на диск
+
+    /** Сколько роутеров может пройти сообщение, прежде чем будет отброшено. */
+    private static final int DEFAULT_TTL = 16;
+    /** Узлу, который молчит столько времени, отправляется HEARTBEAT. */
+    private static final long HEARTBEAT_INTERVAL_MS = 2000;
+    /** Узел, от которого ничего не слышно столько времени, отключается. */
+    private static final long HOST_TIMEOUT_MS = 3 * HEARTBEAT_INTERVAL_MS;
+    /** Сколько отключённый узел остаётся в кэше недоступных, если не зарегистрируется заново. */
+    private static final long UNREACHABLE_TTL_MS = 30_000;
+    private static final long LIVENESS_TICK_MS = 100;
+    /** Очередь ещё не принятых соединений: при 50 по умолчанию тысячи узлов, подключающихся разом, теряют SYN и ждут повтора. */
+    private static final int ACCEPT_BACKLOG = 4096;
+    /** Как часто таблицы пишутся на диск целиком; изменения между снимками идут в журнал. */
+    private static final long SNAPSHOT_INTERVAL_MS = 30_000;
+    private static final long LOG_FLUSH_MS = 200;
+    /** Сколько узел, восстановленный из снимка, ждёт переподключения; узел старого протокола за это время не проверяется. */
+    private static final long RESTORE_GRACE_MS = 2 * HOST_TIMEOUT_MS;
+    /** Узлы старого протокола после перезапуска проверяются пробным подключением, не больше стольких за такт. */
+    private static final int RESTORE_CHECKS_PER_TICK = 64;
+    /** Сколько сообщений копится для восстановленного узла, пока он не переподключился. */
+    private static final int HOLD_LIMIT = 256;
+    // записи журнала таблиц: ключ — IP, значение — MAC << 16 | порт
+    private static final int STATE_HOST = 1;
+    private static final int STATE_HOST_REMOVED = 2;
+
+    public Router(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Router(int port, int loopCount) throws IOException {
+        this.listenPort = port;
+        this.loops = EventLoop.startGroup("router", loopCount);
+        this.shards = new Shard[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            shards[i] = new Shard(loops[i]);
+        }
+        this.distanceVector = new DistanceVector(port, routes, this::sendToRouter);
+        this.liveness = new TimingWheel<>(LIVENESS_TICK_MS, 128, now);
+        this.unreachableExpiry = new TimingWheel<>(LIVENESS_TICK_MS, 512, now);
+        this.restoreCheck = new TimingWheel<>(LIVENESS_TICK_MS, 512, now);
+        Trace.preload();
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Загружает таблицы, сохранённые прошлым запуском, и дальше сохраняет их в файлы с префиксом base.
+     * Восстановленные узлы доступны сразу: узлам старого протокола сообщения уходят как обычно,
+     * а для узлов с постоянным соединением копятся до их переподключения. Живы ли они, выясняется
+     * позже, в фоне: кто не переподключился за {@link #RESTORE_GRACE_MS}, удаляется, узлы старого
+     * протокола проверяются пробным подключением. Вызывать до {@link #start}.
+     */
+    public void persist(Path base) throws IOException {
+        TableLog log = new TableLog(base);
+        IntObjectMap<ClientInfo> hosts = new IntObjectMap<>();
+        long records = log.load((type, key, value) -> {
+            int ip = (int) key;
+            if (type == STATE_HOST) hosts.put(ip, new ClientInfo(ip, value >>> 16, (int) (value & 0xFFFF), null));
+            else if (type == STATE_HOST_REMOVED) hosts.remove(ip);
+        });
+        int[] restored = {0};
+        hosts.forEach((ip, info) -> {
+            synchronized (macTable) {
+                if (macTable.get(info.mac) != LongLongMap.NO_VALUE) return;
+                macTable.put(info.mac, Addr.ipKey(ip));
+            }
+            control(ip, shard -> restore(shard, info));
+            restoreCheck.schedule(ip, now + RESTORE_GRACE_MS + restored[0]++ / RESTORE_CHECKS_PER_TICK * LIVENESS_TICK_MS);
+        });
+        state = log;
+        snapshots.scheduleWithFixedDelay(this::flushState, LOG_FLUSH_MS, LOG_FLUSH_MS, TimeUnit.MILLISECONDS);
+        snapshots.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Таблицы сохраняются в " + base + ": восстановлено узлов " + restored[0] + " (записей прочитано " + records + ")");
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort), ACCEPT_BACKLOG);
+        System.out.println("Router запущен на порту " + listenPort + ", циклов событий: " + loops.length);
+
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(server, SelectionKey.OP_ACCEPT, new Acceptor(server));
+            } catch (IOException e) {
+                System.err.println("Не удалось начать приём соединений: " + e.getMessage());
+            }
+        });
+        distanceVector.start();
+        timer.scheduleAtFixedRate(this::livenessTick, LIVENESS_TICK_MS, LIVENESS_TICK_MS, TimeUnit.MILLISECONDS);
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine().trim();
+            if ("STOP".equalsIgnoreCase(command)) {
+                System.out.println("Остановка роутера по команде STOP...");
+                break;
+            }
+            try {
+                handleConsole(command);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Некорректная команда: " + e.getMessage());
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("Ошибка при закрытии сокета: " + e.getMessage());
+        }
+        System.out.println("Сервер остановлен.");
+        shutdown();
+    }
+
+    /** ROUTE ADD <сеть/длина> <порт роутера | 0>, ROUTE DEL <сеть/длина>, ROUTES, QOS. */
+    private void handleConsole(String command) {
+        if (command.isEmpty()) return;
+        String[] parts = command.split("\\s+");
+        switch (parts[0].toUpperCase()) {
+            case "ROUTE" -> {
+                switch (parts[1].toUpperCase()) {
+                    case "ADD" -> addRoute(RouteTable.Route.parse(parts[2], Integer.parseInt(parts[3])));
+                    case "DEL" -> {
+                        RouteTable.Route r = RouteTable.Route.parse(parts[2], 0);
+                        RouteTable.Route removed = routes.remove(r.prefix, r.length);
+                        System.out.println(removed != null ? "Маршрут удалён: " + removed : "Маршрут не найден: " + parts[2]);
+                    }
+                    default -> System.err.println("Ожидалось ROUTE ADD или ROUTE DEL");
+                }
+            }
+            case "ROUTES" -> {
+                System.out.println("Маршрутов: " + routes.size());
+                routes.forEach(r -> System.out.println("  " + r));
+            }
+            case "QOS" -> {
+                System.out.println("  " + TrafficClass.CONTROL);
+                for (ClassRule rule : classRules) {
+                    System.out.println("  " + rule.cls);
+                }
+                System.out.println("  " + TrafficClass.DEFAULT);
+            }
+            default -> System.err.println("Неизвестная команда: " + parts[0]);
+        }
+    }
+
+    /** Соседний роутер, с которым обмениваемся маршрутами. */
+    public void addPeer(int routerPort) {
+        distanceVector.addPeer(routerPort);
+    }
+
+    /**
+     * Класс трафика для отправителей из сети: на выходе каждого соединения отправители получают
+     * долю пропорционально весу класса, отправители без класса — вес 1.
+     */
+    public void addClass(String cidr, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("Вес класса должен быть положительным: " + weight);
+        ClassRule rule = new ClassRule(RouteTable.Route.parse(cidr, 0), new TrafficClass(cidr, weight));
+        synchronized (this) {
+            List<ClassRule> rules = new ArrayList<>(Arrays.asList(classRules));
+            rules.add(rule);
+            rules.sort((a, b) -> b.net.length - a.net.length);
+            classRules = rules.toArray(new ClassRule[0]);
+        }
+        System.out.println("Класс трафика: " + cidr + ", вес " + weight);
+    }
+
+    private TrafficClass classify(int src) {
+        for (ClassRule rule : classRules) {
+            if ((src & RouteTable.mask(rule.net.length)) == rule.net.prefix) return rule.cls;
+        }
+        return TrafficClass.DEFAULT;
+    }
+
+    public void addRoute(RouteTable.Route route) {
+        routes.add(route);
+        System.out.println("Маршрут добавлен: " + route);
+    }
+
+    /** Принимает соединения и раздаёт их циклам по кругу. */
+    private class Acceptor implements EventLoop.Handler {
+        private final ServerSocketChannel server;
+
+        Acceptor(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            Trace.Accept trace = new Trace.Accept();
+            trace.begin();
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                Connection.accepted(loop, channel, Router.this);
+                trace.accepted++;
+            }
+            trace.commit();
+        }
+
+        @Override
+        public void close() {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Connection connection, String message) {
+        ClientLink link = connection.isFramed() ? linkOf(connection) : null;
+        if (link != null) link.touch(now);
+        dispatch(message, link, connection);
+    }
+
+    @Override
+    public void onPacket(Connection connection, ByteBuffer frame) {
+        ClientLink link = linkOf(connection);
+        link.touch(now);
+        handlePacket(frame, link, connection);
+    }
+
+    private ClientLink linkOf(Connection connection) {
+        ClientLink link = (ClientLink) connection.attachment();
+        if (link == null) {
+            link = new ClientLink(connection);
+            connection.attach(link);
+        }
+        return link;
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        if (connection.attachment() instanceof ClientInfo legacy) {
+            // соединение для одного сообщения клиенту старого протокола: не подключились — узел мёртв
+            if (!connection.wasEstablished()) control(legacy.ip, shard -> evictLegacy(shard, legacy));
+            return;
+        }
+        ClientLink link = (ClientLink) connection.attachment();
+        if (link == null) return;
+        if (link.peerPort != 0) distanceVector.peerDown(link.peerPort);
+        for (int group : link.groups()) {
+            control(group, shard -> leave(shard, group, link));
+        }
+        for (int ip : link.ips()) {
+            control(ip, shard -> unregister(shard, ip, link));
+        }
+    }
+
+    /** Сегмент, которому принадлежит адрес; соседние адреса расходятся по разным сегментам. */
+    private int shardOf(int ip) {
+        return (int) (((ip * 0x9E3779B9) & 0xFFFFFFFFL) % shards.length);
+    }
+
+    /** Выполняет task в цикле сегмента адреса ip: сразу, если это текущий цикл, иначе передаёт туда. */
+    private void control(int ip, Consumer<Shard> task) {
+        onShard(ip, null, task);
+    }
+
+    /** Как {@link #control}, но задачу породили данные из source: он придерживается, пока очередь к сегменту заполнена. */
+    private void onShard(int ip, Connection source, Consumer<Shard> task) {
+        Shard shard = shards[shardOf(ip)];
+        handOff(shard, source, () -> task.accept(shard));
+    }
+
+    private void handOff(Shard shard, Connection source, Runnable task) {
+        if (shard.loop.handOff(task) || source == null) return;
+        // задача ждёт в текущем цикле; пока не уйдёт, новых данных из источника не читаем
+        if (source.attachment() instanceof ClientLink link && !link.handOffPaused) {
+            link.handOffPaused = true;
+            source.pauseReading();
+            shard.loop.afterHandOff(() -> {
+                link.handOffPaused = false;
+                source.resumeReading();
+            });
+        }
+    }
+
+    private void dispatch(String message, ClientLink link, Connection source) {
+        Trace.Dispatch trace = new Trace.Dispatch();
+        trace.begin();
+        String command = message.split(" ")[0];
+        try {
+            switch (command) {
+                case "REGISTER" -> handleRegister(message, link);
+                case "DISCONNECT" -> handleDisconnect(message);
+                case "PING" -> handlePing(message, link, source);
+                case "PONG" -> handlePong(message, link, source);
+                case "UPDATE" -> handleUpdate(message, link);
+                case "HELLO" -> handleHello(message, link);
+                case "JOIN" -> handleJoin(message, link);
+                case "LEAVE" -> handleLeave(message, link);
+                case "ALIVE" -> {
+                    // ответ на HEARTBEAT; время активности уже отмечено при приёме
+                }
+                default -> System.err.println("Неизвестная команда: " + command);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Некорректное сообщение: " + e.getMessage());
+        }
+        if (trace.shouldCommit()) {
+            trace.command = command;
+            trace.commit();
+        }
+    }
+
+    /**
+     * Адрес привязывается к соединению сразу, чтобы следующие за REGISTER пакеты прошли проверку
+     * отправителя, а запись в таблицу делает цикл сегмента; при конфликте привязка снимается.
+     * Первый адрес определяет цикл, в который переходит соединение узла.
+     */
+    private void handleRegister(String msg, ClientLink link) {
+        String[] parts = msg.split(" ");
+        int ip = Addr.parseIp(parts[1]);
+        long mac = Addr.parseMac(parts[2]);
+        int port = Integer.parseInt(parts[3]);
+        boolean binary = parts.length > 4 && parts[4].equals("BIN");
+
+        boolean bound = false;
+        if (link != null) {
+            if (!link.hasIps()) {
+                link.home = shardOf(ip);
+                link.connection.moveTo(shards[link.home].loop);
+            }
+            bound = link.bind(ip);
+        }
+        boolean unbindOnConflict = bound;
+        control(ip, shard -> register(shard, ip, mac, port, binary, link, unbindOnConflict));
+    }
+
+    private void register(Shard shard, int ip, long mac, int port, boolean binary, ClientLink link, boolean unbindOnConflict) {
+        ClientInfo existing = shard.ipTable.get(ip);
+        if (existing != null && existing.mac != mac) {
+            System.err.println("Конфликт IP-адреса: " + Addr.formatIp(ip) + " уже зарегистрирован другим MAC.");
+            if (unbindOnConflict) unbind(link, ip);
+            return;
+        }
+        synchronized (macTable) {
+            long macIp = macTable.get(mac);
+            if (macIp != LongLongMap.NO_VALUE && macIp != Addr.ipKey(ip)) {
+                System.err.println("Конфликт MAC-адреса: " + Addr.formatMac(mac) + " уже используется другим IP.");
+                if (unbindOnConflict) unbind(link, ip);
+                return;
+            }
+            macTable.put(mac, Addr.ipKey(ip));
+        }
+
+        ClientInfo info = new ClientInfo(ip, mac, port, link);
+        shard.ipTable.put(ip, info);
+        shard.arpTable.put(Addr.ipKey(ip), mac);
+        shard.unreachable.remove(Addr.ipKey(ip));
+        if (existing == null || existing.port != port) record(STATE_HOST, ip, mac << 16 | port);
+        if (link != null) {
+            if (link.startMonitoring()) liveness.schedule(link, now + HEARTBEAT_INTERVAL_MS);
+            if (binary) link.binary = true;
+            if (existing != null && existing.held != null) release(existing.held, link);
+        }
+
+        System.out.println("Зарегистрирован: IP=" + Addr.formatIp(ip) + " MAC=" + Addr.formatMac(mac)
+                + (link != null ? " (постоянное соединение" + (link.binary ? ", двоичные пакеты)" : ")") : " Port=" + port));
+    }
+
+    private void handleDisconnect(String msg) {
+        String[] parts = msg.split(" ");
+        int ip = Addr.parseIp(parts[1]);
+        control(ip, shard -> unregister(shard, ip, null));
+    }
+
+    /** JOIN &lt;группа&gt;: узел начинает получать сообщения, отправленные на адрес группы. */
+    private void handleJoin(String msg, ClientLink link) {
+        int group = parseGroup(msg, link);
+        if (!link.join(group)) return;
+        control(group, shard -> {
+            ClientLink[] members = shard.groups.get(group);
+            if (members == null) {
+                members = new ClientLink[]{link};
+            } else {
+                members = Arrays.copyOf(members, members.length + 1);
+                members[members.length - 1] = link;
+            }
+            shard.groups.put(group, members);
+        });
+        System.out.println("Группа " + Addr.formatIp(group) + ": +" + link.ips().stream().map(Addr::formatIp).toList());
+    }
+
+    private void handleLeave(String msg, ClientLink link) {
+        int group = parseGroup(msg, link);
+        if (link.leave(group)) control(group, shard -> leave(shard, group, link));
+    }
+
+    private int parseGroup(String msg, ClientLink link) {
+        if (link == null || !link.hasIps()) throw new IllegalArgumentException("JOIN/LEAVE только для зарегистрированных узлов с постоянным соединением");
+        int group = Addr.parseIp(msg.split(" ")[1]);
+        if (!Addr.isMulticast(group)) throw new IllegalArgumentException("Не адрес группы: " + Addr.formatIp(group));
+        return group;
+    }
+
+    private void leave(Shard shard, int group, ClientLink link) {
+        ClientLink[] members = shard.groups.get(group);
+        if (members == null) return;
+        int i = Arrays.asList(members).indexOf(link);
+        if (i < 0) return;
+        if (members.length == 1) {
+            shard.groups.remove(group);
+            return;
+        }
+        ClientLink[] rest = new ClientLink[members.length - 1];
+        System.arraycopy(members, 0, rest, 0, i);
+        System.arraycopy(members, i + 1, rest, i, rest.length - i);
+        shard.groups.put(group, rest);
+    }
+
+    /** @param owner если не null, запись удаляется, только пока она принадлежит этому соединению. */
+    private void unregister(Shard shard, int ip, ClientLink owner) {
+        ClientInfo info = shard.ipTable.get(ip);
+        if (info == null || owner != null && info.link != owner) return;
+        remove(shard, info);
+        if (info.link != null) unbind(info.link, ip);
+        System.out.println("Отключён: IP=" + Addr.formatIp(ip));
+    }
+
+    private void remove(Shard shard, ClientInfo info) {
+        shard.ipTable.remove(info.ip);
+        shard.arpTable.remove(Addr.ipKey(info.ip));
+        synchronized (macTable) {
+            if (macTable.get(info.mac) == Addr.ipKey(info.ip)) macTable.remove(info.mac);
+        }
+        record(STATE_HOST_REMOVED, info.ip, 0);
+    }
+
+    /** Узел из снимка прошлого запуска; если он уже успел зарегистрироваться заново, снимок не нужен. */
+    private void restore(Shard shard, ClientInfo info) {
+        if (shard.ipTable.get(info.ip) != null) return;
+        info.restored = true;
+        shard.ipTable.put(info.ip, info);
+        shard.arpTable.put(Addr.ipKey(info.ip), info.mac);
+    }
+
+    /**
+     * Срок восстановленного узла вышел, а он так и не зарегистрировался заново. Узел с постоянным соединением
+     * удаляется вместе с накопленными для него сообщениями; узлу старого протокола открывается пробное
+     * соединение — не подключились, и он удаляется через {@link #evictLegacy}.
+     */
+    private void verifyRestored(Shard shard, int ip) {
+        ClientInfo info = shard.ipTable.get(ip);
+        if (info == null || !info.restored) return;
+        info.restored = false;
+        if (info.port == 0) {
+            remove(shard, info);
+            markUnreachable(shard, ip);
+            System.err.println("Узел " + Addr.formatIp(ip) + " не переподключился после перезапуска роутера, удалён"
+                    + (info.held != null ? ", отброшено сообщений: " + info.held.size() : "") + ".");
+            return;
+        }
+        try {
+            Connection conn = Connection.connect(shard.loop, info.port, this);
+            conn.attach(info);
+            conn.closeAfterFlush();
+        } catch (IOException e) {
+            evictLegacy(shard, info);
+        }
+    }
+
+    /** Сообщение восстановленному узлу с постоянным соединением, пока он не переподключился. */
+    private void hold(ClientInfo to, ByteBuffer packet, String text, int src) {
+        if (to.held == null) to.held = new ArrayDeque<>();
+        if (to.held.size() < HOLD_LIMIT) to.held.add(new Held(packet, text, src));
+        else classify(src).dropped();
+    }
+
+    private void release(ArrayDeque<Held> held, ClientLink link) {
+        Connection conn = link.connection;
+        for (Held h : held) {
+            enqueue(conn, h.packet != null && link.binary ? h.packet : conn.encode(h.text), h.src, null);
+        }
+    }
+
+    private void record(int type, long key, long value) {
+        TableLog log = state;
+        if (log == null) return;
+        try {
+            log.append(type, key, value);
+        } catch (IOException e) {
+            System.err.println("Не удалось записать журнал таблиц: " + e.getMessage());
+        }
+    }
+
+    private void flushState() {
+        try {
+            state.flush();
+        } catch (IOException e) {
+            System.err.println("Не удалось записать журнал таблиц: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Снимок таблиц: журнал переходит на новое поколение, затем каждый сегмент в своём цикле выписывает
+     * свои узлы. Изменения, успевшие попасть и в снимок, и в новый журнал, при загрузке просто повторятся.
+     */
+    private void snapshot() {
+        TableLog log = state;
+        try {
+            long gen = log.rotate();
+            ByteBuffer[] parts = new ByteBuffer[shards.length];
+            CountDownLatch done = new CountDownLatch(shards.length);
+            for (Shard shard : shards) {
+                shard.loop.execute(() -> {
+                    ByteBuffer records = ByteBuffer.allocate(shard.ipTable.size() * TableLog.RECORD_BYTES);
+                    shard.ipTable.forEach((ip, info) -> TableLog.put(records, STATE_HOST, ip, info.mac << 16 | info.port));
+                    parts[shard.index] = records.flip();
+                    done.countDown();
+                });
+            }
+            if (!done.await(SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Снимок таблиц пропущен: циклы событий не ответили.");
+                return;
+            }
+            log.writeSnapshot(gen, Arrays.asList(parts));
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить снимок таблиц: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Снимает адрес с соединения; если ушёл адрес, по которому выбран домашний сегмент, выбирается новый.
+     * У закрытого соединения дом не выбирается: anyIp обходит всю таблицу адресов, и закрытие соединения
+     * фермы с сотнями тысяч адресов стало бы квадратичным.
+     */
+    private void unbind(ClientLink link, int ip) {
+        if (link.unbind(ip) && link.home == shardOf(ip) && !link.connection.isClosed()) link.home = shardOf(link.anyIp());
+    }
+
+    /**
+     * Кэш недоступных узлов: сообщение узлу, недавно отключённому за молчание или к которому
+     * не удалось подключиться, отбрасывается сразу, а отправитель получает UNREACHABLE.
+     */
+    private boolean rejectUnreachable(Shard shard, int ip, Connection source, boolean fromHost) {
+        if (shard.unreachable.get(Addr.ipKey(ip)) < now) return false;
+        if (fromHost && source.isFramed()) source.sendControl("UNREACHABLE " + Addr.formatIp(ip));
+        return true;
+    }
+
+    private void markUnreachable(Shard shard, int ip) {
+        long until = now + UNREACHABLE_TTL_MS;
+        shard.unreachable.put(Addr.ipKey(ip), until);
+        unreachableExpiry.schedule(ip, until);
+    }
+
+    /** Раз в такт: обновляет часы, проверяет молчащие узлы и чистит кэш недоступных. */
+    private void livenessTick() {
+        now = System.currentTimeMillis();
+        liveness.advance(now, this::checkLiveness);
+        unreachableExpiry.advance(now, ip -> control(ip, shard -> {
+            long until = shard.unreachable.get(Addr.ipKey(ip));
+            if (until != LongLongMap.NO_VALUE && until <= now) shard.unreachable.remove(Addr.ipKey(ip));
+        }));
+        restoreCheck.advance(now, ip -> control(ip, shard -> verifyRestored(shard, ip)));
+    }
+
+    /**
+     * Любой кадр от узла считается признаком жизни. Узлу, молчащему {@link #HEARTBEAT_INTERVAL_MS},
+     * уходит HEARTBEAT (ответ — ALIVE); молчащий {@link #HOST_TIMEOUT_MS} отключается.
+     */
+    private void checkLiveness(ClientLink link) {
+        if (link.connection.isClosed() || link.stopMonitoringIfEmpty()) return;
+        long idle = now - link.lastSeen;
+        if (idle >= HOST_TIMEOUT_MS) {
+            List<Integer> ips = link.ips();
+            for (int ip : ips) {
+                control(ip, shard -> markUnreachable(shard, ip));
+            }
+            System.err.println("Узел " + ips.stream().map(Addr::formatIp).toList()
+                    + " молчит " + idle + " мс, соединение закрыто.");
+            link.connection.loop.execute(link.connection::close);
+            return;
+        }
+        if (idle >= HEARTBEAT_INTERVAL_MS) {
+            link.connection.sendControl("HEARTBEAT");
+            liveness.schedule(link, Math.min(link.lastSeen + HOST_TIMEOUT_MS, now + HEARTBEAT_INTERVAL_MS));
+        } else {
+            liveness.schedule(link, link.lastSeen + HEARTBEAT_INTERVAL_MS);
+        }
+    }
+
+    private void evictLegacy(Shard shard, ClientInfo info) {
+        if (shard.ipTable.get(info.ip) != info) return; // узел уже зарегистрировался заново
+        remove(shard, info);
+        markUnreachable(shard, info.ip);
+        System.err.println("Узел " + Addr.formatIp(info.ip) + " не принимает соединения на порту " + info.port + ", отключён.");
+    }
+
+    private void handlePing(String msg, ClientLink link, Connection source) {
+        relay(msg, "PING_FROM ", link, source);
+    }
+
+    private void handlePong(String msg, ClientLink link, Connection source) {
+        relay(msg, "PONG_FROM ", link, source);
+    }
+
+    /**
+     * Доставляет PING/PONG зарегистрированному узлу, а если его здесь нет — пересылает следующему
+     * роутеру по самому длинному совпадающему префиксу. Между роутерами сообщение несёт
+     * оставшийся TTL четвёртым полем; без него сообщение пришло от узла и отправитель проверяется
+     * в его сегменте, а доставка идёт в сегменте получателя. Правила те же, что у {@link #handlePacket}:
+     * TTL принимается только от соседнего роутера, а узел с постоянным соединением шлёт только от своих
+     * адресов. У старого протокола (link == null) соединения на сообщение, так что TTL от него не бывает.
+     */
+    private void relay(String msg, String deliveredPrefix, ClientLink link, Connection source) {
+        String[] parts = msg.split(" ");
+        int fromIp = Addr.parseIp(parts[1]);
+        int toIp = Addr.parseIp(parts[2]);
+        boolean transit = parts.length > 3;
+        boolean group = toIp == Addr.BROADCAST || Addr.isMulticast(toIp);
+        if (transit ? link == null || link.peerPort == 0 : link != null && !link.owns(fromIp)) {
+            System.err.println((transit ? "Транзитное сообщение не от соседнего роутера" : "Сообщение с чужим адресом отправителя")
+                    + " отброшено: " + msg);
+            return;
+        }
+
+        if (transit) {
+            if (!group) onShard(toIp, source, shard -> relayTo(shard, parts, deliveredPrefix, source));
+            return;
+        }
+        onShard(fromIp, source, shard -> {
+            if (shard.ipTable.get(fromIp) == null) {
+                System.err.println("Один из узлов не найден в таблице IP.");
+            } else if (group) {
+                fanOut(toIp, fromIp, null, deliveredPrefix + parts[1], source);
+            } else {
+                onShard(toIp, source, to -> relayTo(to, parts, deliveredPrefix, source));
+            }
+        });
+    }
+
+    private void relayTo(Shard shard, String[] parts, String deliveredPrefix, Connection source) {
+        String fromIP = parts[1];
+        int fromIp = Addr.parseIp(fromIP);
+        int toIp = Addr.parseIp(parts[2]);
+        boolean transit = parts.length > 3;
+
+        ClientInfo to = shard.ipTable.get(toIp);
+        if (to != null) {
+            sendMessage(to, deliveredPrefix + fromIP, fromIp, source);
+            return;
+        }
+        if (rejectUnreachable(shard, toIp, source, !transit)) return;
+
+        int nextHop = routes.lookup(toIp);
+        if (nextHop == RouteTable.NO_ROUTE || nextHop == 0) {
+            System.err.println("Один из узлов не найден в таблице IP.");
+            return;
+        }
+        int ttl = transit ? Integer.parseInt(parts[3]) - 1 : DEFAULT_TTL;
+        if (ttl <= 0) {
+            System.err.println("TTL истёк, сообщение отброшено: " + String.join(" ", parts));
+            return;
+        }
+        Connection conn = neighbour(shard, nextHop);
+        if (conn != null) enqueue(conn, conn.encode(parts[0] + " " + fromIP + " " + parts[2] + " " + ttl), fromIp, source);
+    }
+
+    /**
+     * Двоичный PING/PONG: заголовок читается прямо из буфера, данные не разбираются. Пакет от узла
+     * принимается, только если адрес отправителя зарегистрирован через это же соединение;
+     * транзитные пакеты принимаются только от соседних роутеров (соединений, приславших HELLO или UPDATE).
+     * Проверенный пакет копируется и уходит в цикл сегмента получателя.
+     */
+    private void handlePacket(ByteBuffer frame, ClientLink link, Connection source) {
+        Trace.Receive trace = new Trace.Receive();
+        trace.begin();
+        int src = Packet.src(frame);
+        int dst = Packet.dst(frame);
+        boolean fromHost = link.hasIps();
+        if (fromHost && !link.owns(src)) {
+            System.err.println("Пакет с чужим адресом отправителя " + Addr.formatIp(src) + " отброшен.");
+            return;
+        }
+        if (!fromHost && link.peerPort == 0) {
+            System.err.println("Пакет " + Addr.formatIp(src) + " от незарегистрированного соединения отброшен.");
+            return;
+        }
+        ByteBuffer packet = Packet.copy(frame);
+        trace.commit(packet);
+        if (dst == Addr.BROADCAST || Addr.isMulticast(dst)) {
+            // групповые рассылки не выходят за пределы роутера
+            if (fromHost) fanOut(dst, src, packet, kind(packet) + Addr.formatIp(src), source);
+            return;
+        }
+        long queuedAt = Trace.handOffStart();
+        onShard(dst, source, shard -> {
+            Trace.handedOff(packet, queuedAt);
+            deliver(shard, packet, src, dst, fromHost, source);
+        });
+    }
+
+    private static String kind(ByteBuffer packet) {
+        return Packet.type(packet) == Packet.PING ? "PING_FROM " : "PONG_FROM ";
+    }
+
+    private void deliver(Shard shard, ByteBuffer packet, int src, int dst, boolean fromHost, Connection source) {
+        Trace.Forward trace = new Trace.Forward();
+        trace.begin();
+        String action = forward(shard, packet, src, dst, fromHost, source);
+        trace.commit(packet, action);
+    }
+
+    /** @return что сделано с пакетом, для {@link Trace.Forward} */
+    private String forward(Shard shard, ByteBuffer packet, int src, int dst, boolean fromHost, Connection source) {
+        ClientInfo to = shard.ipTable.get(dst);
+        if (to != null) {
+            if (to.isAwaited()) {
+                hold(to, packet, kind(packet) + Addr.formatIp(src), src);
+                return "held";
+            } else if (to.link != null && to.link.binary) {
+                enqueue(to.link.connection, packet, src, source);
+                return "local";
+            }
+            sendMessage(to, kind(packet) + Addr.formatIp(src), src, source);
+            return "local-text";
+        }
+        if (rejectUnreachable(shard, dst, source, fromHost)) return "unreachable";
+
+        int nextHop = routes.lookup(dst);
+        if (nextHop == RouteTable.NO_ROUTE || nextHop == 0) {
+            System.err.println("Узел " + Addr.formatIp(dst) + " не найден в таблице IP.");
+            return "no-route";
+        }
+        int ttl = Packet.ttl(packet) - 1;
+        if (ttl <= 0) {
+            System.err.println("TTL истёк, пакет " + Addr.formatIp(src) + " -> " + Addr.formatIp(dst) + " отброшен.");
+            return "ttl-expired";
+        }
+        Packet.setTtl(packet, ttl);
+        Connection conn = neighbour(shard, nextHop);
+        if (conn == null) return "no-route";
+        enqueue(conn, packet, src, source);
+        return "next-hop";
+    }
+
+    /**
+     * Рассылка на {@link Addr#BROADCAST} — всем узлам роутера, на адрес группы — её участникам, кроме
+     * отправителя. Широковещательную рассылку каждый сегмент делает по своим узлам, групповую — сегмент
+     * группы. Сообщение кодируется один раз на сегмент (двоичный пакет и текст для узлов без двоичного
+     * режима), каждому получателю уходит duplicate() общего буфера. Очереди у получателей свои
+     * и ограниченные: переполненная теряет сообщение, но рассылку не задерживает и источник на паузу не ставит.
+     *
+     * @param packet собственная копия кадра или null для текстового сообщения; между сегментами не меняется
+     */
+    private void fanOut(int dst, int src, ByteBuffer packet, String text, Connection source) {
+        if (dst == Addr.BROADCAST) {
+            for (Shard shard : shards) {
+                handOff(shard, source, () -> fanOut(shard, dst, src, packet, text, source));
+            }
+        } else {
+            onShard(dst, source, shard -> fanOut(shard, dst, src, packet, text, source));
+        }
+    }
+
+    private void fanOut(Shard shard, int dst, int src, ByteBuffer packet, String text, Connection source) {
+        List<ClientLink> links = new ArrayList<>();
+        List<ClientInfo> legacy = new ArrayList<>();
+        if (dst == Addr.BROADCAST) {
+            int mark = ++shard.fanOutMark;
+            shard.ipTable.forEach((ip, info) -> {
+                if (info.link == null) {
+                    legacy.add(info);
+                } else if (info.link.home == shard.index && info.link.fanOutMark != mark) {
+                    // у узла может быть несколько адресов, в том числе в других сегментах: доставляет домашний сегмент, один раз
+                    info.link.fanOutMark = mark;
+                    links.add(info.link);
+                }
+            });
+        } else {
+            ClientLink[] members = shard.groups.get(dst);
+            if (members != null) links.addAll(Arrays.asList(members));
+        }
+
+        TrafficClass cls = classify(src);
+        ByteBuffer encoded = null;
+        int delivered = 0;
+        int dropped = 0;
+        for (ClientLink link : links) {
+            Connection conn = link.connection;
+            if (conn == source) continue;
+            ByteBuffer shared;
+            if (packet != null && link.binary) {
+                shared = packet;
+            } else {
+                if (encoded == null) encoded = conn.encode(text);
+                shared = encoded;
+            }
+            if (conn.send(shared.duplicate(), src, cls)) delivered++;
+            else dropped++;
+        }
+        for (ClientInfo info : legacy) {
+            sendMessage(info, text, src, source);
+            delivered++;
+        }
+        if (dropped > 0) {
+            System.err.println("Рассылка на " + Addr.formatIp(dst) + ": доставлено " + delivered
+                    + ", отброшено " + dropped + " (очередь получателя переполнена).");
+        }
+    }
+
+    /**
+     * HELLO &lt;порт&gt;: первый кадр соединения, открытого соседним роутером, — в том числе по статическому
+     * маршруту, где UPDATE не бывает. После него соединение считается транзитным.
+     */
+    private void handleHello(String msg, ClientLink link) {
+        if (link == null) return;
+        if (link.hasIps()) {
+            System.err.println("HELLO от соединения с зарегистрированными узлами отброшен.");
+            return;
+        }
+        link.peerPort = Integer.parseInt(msg.split(" ")[1]);
+    }
+
+    private void handleUpdate(String msg, ClientLink link) {
+        String[] parts = msg.split(" ");
+        if (link != null) link.peerPort = Integer.parseInt(parts[1]);
+        distanceVector.onUpdate(parts);
+    }
+
+    /**
+     * Ставит кадр в очередь получателя, в поток отправителя src. Если его очередь у получателя выросла,
+     * чтение из соединения-источника приостанавливается до разгрузки. Отброшенные сообщения
+     * считаются в статистике класса отправителя (команда QOS).
+     */
+    private void enqueue(Connection conn, ByteBuffer frame, int src, Connection source) {
+        if (conn.send(frame, src, classify(src)) && conn.isCongested(src)) conn.pauseUntilDrained(source);
+    }
+
+    private boolean sendToRouter(int routerPort, String msg) {
+        Connection conn = neighbour(routerPort, loops[routerPort % loops.length]);
+        return conn != null && conn.sendControl(msg);
+    }
+
+    /** Соединение к соседнему роутеру из кэша сегмента; общая таблица — только при промахе. */
+    private Connection neighbour(Shard shard, int routerPort) {
+        Connection conn = shard.neighbours.get(routerPort);
+        if (conn == null || conn.isClosed()) {
+            conn = neighbour(routerPort, shard.loop);
+            if (conn != null) shard.neighbours.put(routerPort, conn);
+        }
+        return conn;
+    }
+
+    /** Постоянное соединение к соседнему роутеру; открывается при первой надобности и после обрыва. */
+    private Connection neighbour(int routerPort, EventLoop loop) {
+        try {
+            synchronized (neighbours) {
+                Connection conn = neighbours.get(routerPort);
+                if (conn == null || conn.isClosed()) {
+                    conn = Connection.connectFramed(loop, routerPort, this);
+                    conn.sendControl("HELLO " + listenPort); // до любых данных, иначе сосед не примет транзит
+                    neighbours.put(routerPort, conn);
+                }
+                return conn;
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка соединения с роутером :" + routerPort + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void sendMessage(ClientInfo to, String msg, int src, Connection source) {
+        if (to.link != null) {
+            Connection conn = to.link.connection;
+            enqueue(conn, conn.encode(msg), src, source);
+            return;
+        }
+        if (to.isAwaited()) {
+            hold(to, null, msg, src);
+            return;
+        }
+
+        // клиент старого протокола: отдельное соединение на сообщение, в цикле источника
+        Trace.Connect trace = new Trace.Connect();
+        trace.begin();
+        try {
+            Connection conn = Connection.connect(source.loop, to.port, this);
+            conn.attach(to);
+            conn.send(msg);
+            conn.closeAfterFlush();
+        } catch (IOException e) {
+            System.err.println("Ошибка отправки на порт " + to.port + ": " + e.getMessage());
+        }
+        trace.port = to.port;
+        trace.commit();
+    }
+
+    private void shutdown() {
+        distanceVector.stop();
+        timer.shutdownNow();
+        if (state != null) {
+            snapshots.shutdownNow();
+            try {
+                snapshots.awaitTermination(1, TimeUnit.SECONDS);
+                snapshot();
+                state.close();
+            } catch (IOException e) {
+                System.err.println("Не удалось закрыть журнал таблиц: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+
+        System.out.println("Роутер корректно завершил работу.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        String usage = "Использование: java Router <Port> [--network <сеть/длина>] [--peer <порт роутера>]"
+                + " [--route <сеть/длина> <порт роутера>] [--class <сеть/длина> <вес>] [--loops <число циклов>]"
+                + " [--state <префикс файлов таблиц>] ...";
+        if (args.length < 1) {
+            System.out.println(usage);
+            return;
+        }
+        List<RouteTable.Route> staticRoutes = new ArrayList<>();
+        List<Integer> peers = new ArrayList<>();
+        List<String[]> classes = new ArrayList<>();
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        Path stateBase = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--network" -> staticRoutes.add(RouteTable.Route.parse(args[++i], 0));
+                    case "--peer" -> peers.add(Integer.parseInt(args[++i]));
+                    case "--route" -> {
+                        String cidr = args[++i];
+                        staticRoutes.add(RouteTable.Route.parse(cidr, Integer.parseInt(args[++i])));
+                    }
+                    case "--class" -> classes.add(new String[]{args[++i], args[++i]});
+                    case "--loops" -> loopCount = Integer.parseInt(args[++i]);
+                    case "--state" -> stateBase = Path.of(args[++i]);
+                    default -> throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println(usage);
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        Router router = new Router(Integer.parseInt(args[0]), loopCount);
+        staticRoutes.forEach(router::addRoute);
+        peers.forEach(router::addPeer);
+        for (String[] c : classes) {
+            router.addClass(c[0], Integer.parseInt(c[1]));
+        }
+        if (stateBase != null) router.persist(stateBase);
+        router.start();
+    }
+
+    /**
+     * Сегмент состояния: узлы, чьи адреса попадают в него по {@link #shardOf}, кэш недоступных для этих
+     * адресов и группы с такими адресами. Читается и меняется только в потоке своего цикла.
+     */
+    private static final class Shard {
+        final EventLoop loop;
+        final int index;
+        final IntObjectMap<ClientInfo> ipTable = new IntObjectMap<>();
+        final LongLongMap arpTable = new LongLongMap(); // IP -> MAC
+        final LongLongMap unreachable = new LongLongMap(); // IP -> до какого времени узел считается мёртвым
+        final IntObjectMap<ClientLink[]> groups = new IntObjectMap<>(); // группа -> участники
+        final IntObjectMap<Connection> neighbours = new IntObjectMap<>(); // кэш Router.neighbours для этого цикла
+        int fanOutMark; // метка текущей широковещательной рассылки, см. ClientLink.fanOutMark
+
+        Shard(EventLoop loop) {
+            this.loop = loop;
+            this.index = loop.index();
+        }
+    }
+
+    private static final class ClassRule {
+        final RouteTable.Route net;
+        final TrafficClass cls;
+
+        ClassRule(RouteTable.Route net, TrafficClass cls) {
+            this.net = net;
+            this.cls = cls;
+        }
+    }
+
+    static class ClientInfo {
+        int ip;
+        long mac;
+        int port;
+        ClientLink link; // null для клиентов старого протокола, которые слушают свой порт
+        boolean restored; // только в цикле сегмента: из снимка, узел ещё не регистрировался заново
+        ArrayDeque<Held> held; // только в цикле сегмента: сообщения, ждущие переподключения узла
+
+        ClientInfo(int ip, long mac, int port, ClientLink link) {
+            this.ip = ip;
+            this.mac = mac;
+            this.port = port;
+            this.link = link;
+        }
+
+        /** Узел с постоянным соединением, восстановленный из снимка: соединения ещё нет, сообщения копятся. */
+        boolean isAwaited() {
+            return restored && link == null && port == 0;
+        }
+    }
+
+    private static final class Held {
+        final ByteBuffer packet; // null, если сообщение только текстовое
+        final String text;
+        final int src;
+
+        Held(ByteBuffer packet, String text, int src) {
+            this.packet = packet;
+            this.text = text;
+            this.src = src;
+        }
+    }
+
+    /**
+     * Постоянное соединение с клиентом или соседним роутером и адреса, зарегистрированные через него.
+     * Адресов может быть много (ферма узлов {@link HostFarm} — десятки тысяч на соединение), а проверка
+     * отправителя идёт на каждый пакет, поэтому они в хеш-таблице.
+     */
+    static class ClientLink {
+        final Connection connection;
+        private final IntObjectMap<Boolean> ips = new IntObjectMap<>(2);
+        volatile int peerPort; // порт соседнего роутера, если соединение открыл он (HELLO или UPDATE)
+        volatile boolean binary; // узел принимает PING/PONG двоичными пакетами
+        volatile long lastSeen = System.currentTimeMillis(); // время последнего кадра от узла
+        private boolean monitored; // стоит в колесе проверки активности
+        private final List<Integer> groups = new ArrayList<>(0);
+        volatile boolean handOffPaused; // чтение придержано, пока задачи из него ждут места в очереди к сегменту
+        volatile int home; // сегмент первого адреса: в его цикле живёт соединение, он же доставляет рассылки
+        int fanOutMark; // только в цикле домашнего сегмента, см. Router.fanOut
+
+        ClientLink(Connection connection) {
+            this.connection = connection;
+        }
+
+        void touch(long now) {
+            if (lastSeen != now) lastSeen = now;
+        }
+
+        /** @return true, если соединение ещё не проверялось на активность и его нужно поставить в колесо. */
+        synchronized boolean startMonitoring() {
+            if (monitored) return false;
+            monitored = true;
+            return true;
+        }
+
+        /** Адресов не осталось (все отключены через DISCONNECT) — проверка снимается до новой регистрации. */
+        synchronized boolean stopMonitoringIfEmpty() {
+            if (ips.size() > 0) return false;
+            monitored = false;
+            return true;
+        }
+
+        /** @return false, если адрес уже был привязан. */
+        synchronized boolean bind(int ip) {
+            return ips.put(ip, Boolean.TRUE) == null;
+        }
+
+        /** @return true, если адреса ещё остались. */
+        synchronized boolean unbind(int ip) {
+            ips.remove(ip);
+            return ips.size() > 0;
+        }
+
+        /** Какой-нибудь из адресов; обходит таблицу, поэтому не для пути пакета. */
+        synchronized int anyIp() {
+            int[] any = new int[1];
+            ips.forEach((ip, bound) -> any[0] = ip);
+            return any[0];
+        }
+
+        /** @return false, если узел уже в группе. */
+        synchronized boolean join(int group) {
+            if (groups.contains(group)) return false;
+            groups.add(group);
+            return true;
+        }
+
+        synchronized boolean leave(int group) {
+            return groups.remove(Integer.valueOf(group));
+        }
+
+        synchronized List<Integer> groups() {
+            return new ArrayList<>(groups);
+        }
+
+        synchronized boolean hasIps() {
+            return ips.size() > 0;
+        }
+
+        synchronized boolean owns(int ip) {
+            return ips.containsKey(ip);
+        }
+
+        synchronized List<Integer> ips() {
+            List<Integer> list = new ArrayList<>(ips.size());
+            ips.forEach((ip, bound) -> list.add(ip));
+            return list;
+        }
+    }
+}
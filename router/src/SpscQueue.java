@@ -0,0 +1,48 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограниченная очередь без блокировок для одного производителя и одного потребителя: кольцевой буфер,
+ * каждая сторона пишет только свой индекс. Производитель помнит последний увиденный индекс потребителя
+ * и перечитывает его, только когда буфер кажется полным, так что в обычном режиме стороны не делят
+ * изменяемых строк кэша.
+ */
+final class SpscQueue<T> {
+    private static final int HEAD = 0;
+    private static final int TAIL = 16; // 128 байт от HEAD: индексы на разных строках кэша
+
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLongArray indices = new AtomicLongArray(TAIL + 16);
+    private long cachedHead; // только производитель
+
+    /** @param capacity степень двойки */
+    SpscQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Ёмкость должна быть степенью двойки: " + capacity);
+        this.buffer = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /** Только из потока производителя. @return false, если очередь заполнена. */
+    boolean offer(T item) {
+        long tail = indices.get(TAIL);
+        if (tail - cachedHead >= buffer.length) {
+            cachedHead = indices.get(HEAD);
+            if (tail - cachedHead >= buffer.length) return false;
+        }
+        buffer[(int) tail & mask] = item;
+        indices.set(TAIL, tail + 1); // публикует элемент потребителю
+        return true;
+    }
+
+    /** Только из потока потребителя. @return null, если очередь пуста. */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long head = indices.get(HEAD);
+        if (head == indices.get(TAIL)) return null;
+        int i = (int) head & mask;
+        T item = (T) buffer[i];
+        buffer[i] = null;
+        indices.lazySet(HEAD, head + 1);
+        return item;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Хешированное колесо таймеров: срок округляется до такта и попадает в ячейку «такт по модулю
+ * числа ячеек». Добавление — O(1), каждый такт просматривается одна ячейка; сроки дальше одного
+ * оборота колеса ждут в ячейке нужное число оборотов. Отменять таймеры не нужно: владелец
+ * при срабатывании проверяет, актуален ли он, и при необходимости ставит новый.
+ */
+public class TimingWheel<T> {
+    private final long tickMs;
+    private final List<Entry<T>>[] slots;
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMs, int slotCount, long nowMs) {
+        this.tickMs = tickMs;
+        this.slots = new List[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.currentTick = nowMs / tickMs;
+    }
+
+    public synchronized void schedule(T item, long deadlineMs) {
+        long tick = Math.max(deadlineMs / tickMs, currentTick + 1);
+        slots[(int) (tick % slots.length)].add(new Entry<>(item, tick));
+    }
+
+    /** Продвигает колесо до nowMs; истёкшие элементы передаются в expired уже вне монитора колеса. */
+    public void advance(long nowMs, Consumer<T> expired) {
+        List<T> due = new ArrayList<>();
+        synchronized (this) {
+            long target = nowMs / tickMs;
+            while (currentTick < target) {
+                currentTick++;
+                List<Entry<T>> slot = slots[(int) (currentTick % slots.length)];
+                int kept = 0;
+                for (Entry<T> e : slot) {
+                    if (e.tick <= currentTick) due.add(e.item);
+                    else slot.set(kept++, e);
+                }
+                slot.subList(kept, slot.size()).clear();
+            }
+        }
+        due.forEach(expired);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
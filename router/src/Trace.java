@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import jdk.jfr.*;
+
+/**
+ * События JDK Flight Recorder на пути PING/PONG: от отправки пробы клиентом через этапы роутера
+ * до ответа. Двоичный пакет несёт в заголовке адрес отправителя пробы и номер, ответ сохраняет номер,
+ * поэтому номер пакета ({@link #id}) один и тот же во всех процессах и собирается анализатором
+ * {@link TraceReport} без изменений в протоколе. Текстовые сообщения номера не несут и пишутся без него.
+ * <p>
+ * Пока запись не идёт, события выключены: {@link Event#shouldCommit()} возвращает false, объект события
+ * не покидает метода и JIT его убирает, а время ожидания в очередях замеряется только после такой проверки.
+ * Запись: {@code java -XX:StartFlightRecording:filename=router.jfr Router ...}.
+ */
+final class Trace {
+    private Trace() {
+    }
+
+    /**
+     * Загружает классы событий при запуске: первый из них тянет за собой jdk.jfr, это сотни миллисекунд,
+     * и без этого их ждали бы первое соединение и первый пакет.
+     */
+    static void preload() {
+        new Receive();
+        new HandOff();
+        new Forward();
+        new Egress();
+        new Write();
+        new Accept();
+        new Dispatch();
+        new Connect();
+        new Send();
+        new Reply();
+        new Pong();
+    }
+
+    /** Номер пакета: IP отправителя пробы << 32 | номер пробы; у PONG отправитель пробы — получатель ответа. */
+    static long id(ByteBuffer packet) {
+        int origin = Packet.type(packet) == Packet.PONG ? Packet.dst(packet) : Packet.src(packet);
+        return (long) origin << 32 | (Packet.seq(packet) & 0xFFFFFFFFL);
+    }
+
+    /** Время постановки в очередь между циклами или 0, если событие не пишется. */
+    static long handOffStart() {
+        return new HandOff().isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /** В цикле-получателе, перед выполнением задачи. */
+    static void handedOff(ByteBuffer packet, long startedAt) {
+        if (startedAt == 0) return;
+        HandOff event = new HandOff();
+        event.id = id(packet);
+        event.queued = System.nanoTime() - startedAt;
+        event.commit();
+    }
+
+    /** Кадр записан в сокет, простояв в очереди соединения queued нс. */
+    static void written(ByteBuffer frame, long queued) {
+        Egress event = new Egress();
+        if (!event.isEnabled() || frame.limit() < Packet.PAYLOAD || !Packet.isPacket(Packet.type(frame))) return;
+        event.id = id(frame);
+        event.queued = queued;
+        event.commit();
+    }
+
+    @Name("router.Receive")
+    @Label("Приём пакета")
+    @Description("Проверка отправителя и копирование пакета в цикле соединения-источника")
+    @Category({"Router", "Путь пакета"})
+    @StackTrace(false)
+    static final class Receive extends Event {
+        @Label("Номер пакета")
+        long id;
+
+        void commit(ByteBuffer packet) {
+            if (!shouldCommit()) return;
+            id = id(packet);
+            commit();
+        }
+    }
+
+    @Name("router.HandOff")
+    @Label("Передача в цикл сегмента")
+    @Description("Ожидание в очереди между циклом источника и циклом сегмента получателя")
+    @Category({"Router", "Путь пакета"})
+    @StackTrace(false)
+    static final class HandOff extends Event {
+        @Label("Номер пакета")
+        long id;
+        @Label("В очереди")
+        @Timespan
+        long queued;
+    }
+
+    @Name("router.Forward")
+    @Label("Поиск получателя")
+    @Description("Поиск в таблице IP или маршрутов и постановка в очередь соединения получателя")
+    @Category({"Router", "Путь пакета"})
+    @StackTrace(false)
+    static final class Forward extends Event {
+        @Label("Номер пакета")
+        long id;
+        @Label("Решение")
+        String action;
+
+        void commit(ByteBuffer packet, String action) {
+            if (!shouldCommit()) return;
+            id = id(packet);
+            this.action = action;
+            commit();
+        }
+    }
+
+    @Name("router.Egress")
+    @Label("Очередь на выход")
+    @Description("Ожидание в очереди соединения до записи в сокет")
+    @Category({"Router", "Путь пакета"})
+    @StackTrace(false)
+    static final class Egress extends Event {
+        @Label("Номер пакета")
+        long id;
+        @Label("В очереди")
+        @Timespan
+        long queued;
+    }
+
+    @Name("router.Write")
+    @Label("Запись в сокет")
+    @Description("Одна gathering-запись очереди соединения")
+    @Category({"Router", "Сокеты"})
+    @StackTrace(false)
+    static final class Write extends Event {
+        @Label("Сообщений")
+        int frames;
+        @Label("Записано")
+        @DataAmount
+        long bytes;
+
+        void commit(int frames, long bytes) {
+            if (!shouldCommit()) return;
+            this.frames = frames;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    @Name("router.Accept")
+    @Label("Приём соединений")
+    @Category({"Router", "Сокеты"})
+    @StackTrace(false)
+    static final class Accept extends Event {
+        @Label("Соединений")
+        int accepted;
+    }
+
+    @Name("router.Dispatch")
+    @Label("Разбор команды")
+    @Description("Текстовая команда от начала разбора до передачи в цикл сегмента")
+    @Category({"Router", "Путь пакета"})
+    @StackTrace(false)
+    static final class Dispatch extends Event {
+        @Label("Команда")
+        String command;
+    }
+
+    @Name("router.Connect")
+    @Label("Подключение к узлу")
+    @Description("Отдельное соединение для сообщения узлу старого протокола")
+    @Category({"Router", "Сокеты"})
+    @StackTrace(false)
+    static final class Connect extends Event {
+        @Label("Порт")
+        int port;
+    }
+
+    @Name("client.Send")
+    @Label("Отправка пробы")
+    @Category({"Client", "Путь пакета"})
+    @StackTrace(false)
+    static final class Send extends Event {
+        @Label("Номер пакета")
+        long id;
+
+        void commit(ByteBuffer packet) {
+            if (!shouldCommit()) return;
+            id = id(packet);
+            commit();
+        }
+    }
+
+    @Name("client.Reply")
+    @Label("Ответ на PING")
+    @Description("От получения PING до отправки PONG")
+    @Category({"Client", "Путь пакета"})
+    @StackTrace(false)
+    static final class Reply extends Event {
+        @Label("Номер пакета")
+        long id;
+
+        void commit(ByteBuffer packet) {
+            if (!shouldCommit()) return;
+            id = id(packet);
+            commit();
+        }
+    }
+
+    @Name("client.Pong")
+    @Label("Получен PONG")
+    @Category({"Client", "Путь пакета"})
+    @StackTrace(false)
+    static final class Pong extends Event {
+        @Label("Номер пакета")
+        long id;
+        @Label("RTT")
+        @Timespan
+        long rtt;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Разбор записей JFR с событиями {@link Trace}: задержки по этапам и разбивка RTT отдельных проб.
+ * Записи роутеров и клиентов можно передать вместе — события одного пакета собираются по номеру.
+ * <pre>
+ * java TraceReport [--slowest N] router.jfr client.jfr ...
+ * </pre>
+ * Длительность этапа — время ожидания в очереди для событий с полем queued, RTT для client.Pong,
+ * иначе длительность события.
+ */
+public class TraceReport {
+    private static final int DEFAULT_SLOWEST = 5;
+
+    private final Map<String, LatencyHistogram> stages = new TreeMap<>();
+    private final Map<Long, Probe> probes = new HashMap<>();
+
+    /** События одного пакета и ответа на него. */
+    private static final class Probe {
+        final long id;
+        final List<Step> steps = new ArrayList<>();
+        long rtt = -1; // из client.Pong; -1 — ответа в записях нет
+
+        Probe(long id) {
+            this.id = id;
+        }
+    }
+
+    /** Один этап пути одного пакета. */
+    private static final class Step {
+        final String stage;
+        final long startNanos; // от эпохи, для порядка этапов
+        final long nanos;
+
+        Step(String stage, long startNanos, long nanos) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.nanos = nanos;
+        }
+    }
+
+    private void read(Path file) throws IOException {
+        try (RecordingFile recording = new RecordingFile(file)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith("router.") && !name.startsWith("client.")) continue;
+                long nanos = event.hasField("queued") ? event.getLong("queued")
+                        : event.hasField("rtt") ? event.getLong("rtt")
+                        : event.getDuration().toNanos();
+                stages.computeIfAbsent(name, n -> new LatencyHistogram()).record(nanos);
+                if (!event.hasField("id")) continue;
+                long start = event.getStartTime().getEpochSecond() * 1_000_000_000L + event.getStartTime().getNano();
+                if (event.hasField("queued")) start -= nanos; // событие пишется, когда ожидание уже кончилось
+                Probe probe = probes.computeIfAbsent(event.getLong("id"), Probe::new);
+                if (name.equals("client.Pong")) probe.rtt = nanos;
+                else probe.steps.add(new Step(name, start, nanos));
+            }
+        }
+    }
+
+    private void printStages() {
+        System.out.println("Этапы, мкс:");
+        System.out.printf("%-18s %10s %9s %9s %9s %9s %9s%n", "этап", "событий", "мин", "сред", "p50", "p99", "макс");
+        stages.forEach((name, h) -> System.out.printf("%-18s %10d %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, h.count(),
+                h.min() / 1e3, h.mean() / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.max() / 1e3));
+    }
+
+    /**
+     * Для проб с client.Pong: средняя доля каждого этапа в RTT (PING и PONG проходят роутер каждый,
+     * их этапы складываются) и пути самых медленных проб. Остаток — сеть, чтение из сокетов и всё,
+     * что не отмечено событиями.
+     */
+    private void printProbes(int slowest) {
+        List<Probe> answered = new ArrayList<>();
+        for (Probe probe : probes.values()) {
+            if (probe.rtt >= 0) answered.add(probe);
+        }
+        if (answered.isEmpty()) {
+            System.out.println("Проб с ответом (client.Pong) в записях нет.");
+            return;
+        }
+        Map<String, Long> totals = new TreeMap<>();
+        long rttTotal = 0;
+        for (Probe probe : answered) {
+            rttTotal += probe.rtt;
+            for (Step step : probe.steps) {
+                totals.merge(step.stage, step.nanos, Long::sum);
+            }
+        }
+        int n = answered.size();
+        System.out.println();
+        System.out.printf("Проб с ответом: %d, средний RTT %.1f мкс%n", n, rttTotal / 1e3 / n);
+        long accounted = 0;
+        for (Map.Entry<String, Long> e : totals.entrySet()) {
+            accounted += e.getValue();
+            System.out.printf("  %-18s %9.1f мкс %5.1f%%%n", e.getKey(), e.getValue() / 1e3 / n, 100.0 * e.getValue() / rttTotal);
+        }
+        System.out.printf("  %-18s %9.1f мкс %5.1f%%%n", "остаток", (rttTotal - accounted) / 1e3 / n,
+                100.0 * (rttTotal - accounted) / rttTotal);
+
+        answered.sort(Comparator.comparingLong((Probe probe) -> probe.rtt).reversed());
+        for (Probe probe : answered.subList(0, Math.min(slowest, n))) {
+            probe.steps.sort(Comparator.comparingLong(step -> step.startNanos));
+            System.out.printf("%nПроба %s seq=%d, RTT %.1f мкс:%n", Addr.formatIp((int) (probe.id >>> 32)), (int) probe.id, probe.rtt / 1e3);
+            long origin = probe.steps.isEmpty() ? 0 : probe.steps.get(0).startNanos;
+            for (Step step : probe.steps) {
+                System.out.printf("  +%9.1f  %-18s %9.1f мкс%n", (step.startNanos - origin) / 1e3, step.stage, step.nanos / 1e3);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int slowest = DEFAULT_SLOWEST;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--slowest") && i + 1 < args.length) slowest = Integer.parseInt(args[++i]);
+            else files.add(Path.of(args[i]));
+        }
+        if (files.isEmpty()) {
+            System.out.println("Использование: java TraceReport [--slowest N] <запись.jfr> ...");
+            return;
+        }
+        TraceReport report = new TraceReport();
+        for (Path file : files) {
+            report.read(file);
+        }
+        report.printStages();
+        report.printProbes(slowest);
+    }
+}
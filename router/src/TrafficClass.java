@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Класс трафика на выходе роутера: вес отправителей этого класса в планировщике {@link EgressQueue}
+ * и статистика по всем соединениям — сколько отправлено, сколько отброшено и сколько сообщения
+ * простояли в очереди.
+ * <p>
+ * Запись в сокет учитывается на каждое сообщение, поэтому задержки (и с ними число отправленных)
+ * копятся в отдельной гистограмме на каждый цикл событий и сводятся только для команды QOS:
+ * общая гистограмма стала бы одним монитором на все циклы.
+ */
+public final class TrafficClass {
+    /** Управляющие сообщения роутера (UPDATE, HEARTBEAT, UNREACHABLE): строгий приоритет. */
+    public static final TrafficClass CONTROL = new TrafficClass("control", 0);
+    public static final TrafficClass DEFAULT = new TrafficClass("default", 1);
+
+    final String name;
+    final int weight;
+    private final LongAdder dropped = new LongAdder();
+    private volatile LatencyHistogram[] delays = new LatencyHistogram[0]; // по номеру цикла; наносекунды от send до записи
+
+    public TrafficClass(String name, int weight) {
+        this.name = name;
+        this.weight = weight;
+    }
+
+    boolean isPriority() {
+        return this == CONTROL;
+    }
+
+    /** Сообщение записано в сокет; только из потока цикла loop. */
+    void written(EventLoop loop, long delayNs) {
+        LatencyHistogram[] stripes = delays;
+        int i = loop.index();
+        LatencyHistogram delay = i < stripes.length ? stripes[i] : null;
+        if (delay == null) delay = addStripe(i);
+        delay.record(delayNs);
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    private synchronized LatencyHistogram addStripe(int i) {
+        LatencyHistogram[] stripes = delays;
+        if (i >= stripes.length) stripes = Arrays.copyOf(stripes, i + 1);
+        if (stripes[i] == null) {
+            stripes[i] = new LatencyHistogram();
+            delays = stripes; // публикуется вместе с новой гистограммой
+        }
+        return stripes[i];
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram delay = new LatencyHistogram();
+        for (LatencyHistogram stripe : delays) {
+            if (stripe != null) delay.add(stripe);
+        }
+        return String.format("%-18s вес %-3s отправлено %-10d отброшено %-8d очередь p50/p99/макс = %.3f/%.3f/%.3f мс",
+                name, isPriority() ? "-" : String.valueOf(weight), delay.count(), dropped.sum(),
+                delay.percentile(0.5) / 1e6, delay.percentile(0.99) / 1e6, delay.max() / 1e6);
+    }
+}